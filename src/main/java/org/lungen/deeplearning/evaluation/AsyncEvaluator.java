@@ -0,0 +1,89 @@
+package org.lungen.deeplearning.evaluation;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.deeplearning4j.nn.api.Model;
+import org.lungen.deeplearning.model.ModelSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AsyncEvaluator.
+ * Evaluates a model on a background thread, so that training does not wait
+ * for evaluation to complete.
+ * <p>
+ * On the calling (training) thread only parameters are copied into a replica
+ * of the model allocated once, evaluation runs against the replica.
+ * Evaluations do not queue up: if the previous one is still running,
+ * the next one is skipped.
+ *
+ */
+public class AsyncEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger("evaluation.async");
+
+    private final ModelSnapshot snapshot = new ModelSnapshot();
+    private final ExecutorService executor;
+    private Future<?> pending;
+    private int skipped;
+
+    public AsyncEvaluator() {
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-evaluator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes snapshot of the model and schedules evaluation of the snapshot.
+     *
+     * @param evaluation    evaluation of the model replica, runs on the evaluator thread
+     * @param callback      receives evaluation result, runs on the evaluator thread
+     * @return true if evaluation is scheduled, false if skipped since the previous one is still running
+     */
+    public synchronized <T> boolean evaluate(Model model, Function<Model, T> evaluation, Consumer<T> callback) {
+        if (pending != null && !pending.isDone()) {
+            skipped++;
+            log.debug("Previous evaluation is still running, skipped: {}", skipped);
+            return false;
+        }
+        // replica buffers are not in use, since previous evaluation is done
+        Model replica = snapshot.update(model, false);
+        pending = executor.submit(() -> {
+            long startNano = System.nanoTime();
+            try {
+                T result = evaluation.apply(replica);
+                log.debug("Evaluation completed in {} seconds", (System.nanoTime() - startNano) / 1e+9);
+                callback.accept(result);
+            } catch (RuntimeException e) {
+                log.error("Evaluation failed", e);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return number of evaluations skipped since the previous one was still running
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Completes running evaluation and stops the evaluator thread.
+     */
+    public synchronized void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
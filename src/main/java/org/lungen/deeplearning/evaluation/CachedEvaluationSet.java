@@ -0,0 +1,142 @@
+package org.lungen.deeplearning.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.deeplearning4j.nn.api.Model;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CachedEvaluationSet.
+ * Evaluation examples vectorized once and kept in memory for the life of training,
+ * so that repeated evaluation costs forward passes only.
+ * <p>
+ * Sequences are bucketed by length: each example is trimmed to its unmasked steps,
+ * examples are sorted by length and batched, so that a batch is padded only
+ * up to its longest sequence instead of the maximum length of the data set.
+ *
+ */
+public class CachedEvaluationSet {
+
+    private static final Logger log = LoggerFactory.getLogger("evaluation.cached");
+
+    private final List<DataSet> batches;
+    private final int numExamples;
+
+    private CachedEvaluationSet(List<DataSet> batches, int numExamples) {
+        this.batches = Collections.unmodifiableList(batches);
+        this.numExamples = numExamples;
+    }
+
+    /**
+     * Takes first examples of the iterator. Iterator is reset before and after.
+     *
+     * @param maxExamples   maximum number of examples to take
+     * @param batchSize     number of examples in a cached batch
+     */
+    public static CachedEvaluationSet fromIterator(DataSetIterator iterator, int maxExamples, int batchSize) {
+        long startNano = System.nanoTime();
+        List<DataSet> examples = new ArrayList<>();
+        iterator.reset();
+        while (examples.size() < maxExamples && iterator.hasNext()) {
+            for (DataSet example : iterator.next().asList()) {
+                if (examples.size() < maxExamples) {
+                    examples.add(trim(example));
+                }
+            }
+        }
+        iterator.reset();
+
+        examples.sort(Comparator.comparingLong(CachedEvaluationSet::length));
+        List<DataSet> batches = new ArrayList<>();
+        for (int from = 0; from < examples.size(); from += batchSize) {
+            List<DataSet> bucket = examples.subList(from, Math.min(from + batchSize, examples.size()));
+            // pads to the longest sequence in the bucket and creates masks if lengths differ
+            batches.add(DataSet.merge(bucket));
+        }
+        log.info("Evaluation set: {} examples in {} batches, cached in {} seconds",
+                examples.size(), batches.size(), (System.nanoTime() - startNano) / 1e+9);
+        return new CachedEvaluationSet(batches, examples.size());
+    }
+
+    public List<DataSet> getBatches() {
+        return batches;
+    }
+
+    public int getNumExamples() {
+        return numExamples;
+    }
+
+    /**
+     * @param model MultiLayerNetwork or ComputationGraph with single output
+     */
+    public Evaluation evaluate(Model model) {
+        TrainingEvents.Evaluation event = new TrainingEvents.Evaluation();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        Evaluation evaluation = new Evaluation();
+        for (DataSet batch : batches) {
+            INDArray output = ValidationSet.output(model, batch);
+            evaluation.eval(batch.getLabels(), output, batch.getLabelsMaskArray());
+        }
+        MemoryAccountant.get().record(MemoryAccountant.Phase.EVALUATION, before);
+        event.commit("cached", batches);
+        return evaluation;
+    }
+
+    private static long length(DataSet example) {
+        return example.getFeatures().rank() == 3 ? example.getFeatures().size(2) : 1;
+    }
+
+    /**
+     * Trims single example sequence to the span of its unmasked steps.
+     */
+    private static DataSet trim(DataSet example) {
+        INDArray featuresMask = example.getFeaturesMaskArray();
+        if (example.getFeatures().rank() != 3 || featuresMask == null) {
+            return example;
+        }
+        double[] mask = featuresMask.reshape(featuresMask.length()).toDoubleVector();
+        int first = 0;
+        while (first < mask.length && mask[first] == 0) {
+            first++;
+        }
+        int last = mask.length - 1;
+        while (last > first && mask[last] == 0) {
+            last--;
+        }
+        if (first == mask.length || (first == 0 && last == mask.length - 1)) {
+            return example;
+        }
+        int from = first;
+        int to = last + 1;
+        INDArray labels = example.getLabels();
+        INDArray labelsMask = example.getLabelsMaskArray();
+        boolean sequenceLabels = labels.rank() == 3 && labels.size(2) == mask.length;
+        return new DataSet(
+                steps(example.getFeatures(), from, to),
+                sequenceLabels ? steps(labels, from, to) : labels,
+                steps(featuresMask, from, to),
+                sequenceLabels && labelsMask != null ? steps(labelsMask, from, to) : labelsMask);
+    }
+
+    /**
+     * @param array time series [examples, features, steps] or mask [examples, steps]
+     */
+    private static INDArray steps(INDArray array, int from, int to) {
+        if (array.rank() == 3) {
+            return array.get(NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.interval(from, to)).dup('f');
+        }
+        return array.get(NDArrayIndex.all(), NDArrayIndex.interval(from, to)).dup('f');
+    }
+}
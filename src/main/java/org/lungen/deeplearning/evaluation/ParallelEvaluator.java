@@ -0,0 +1,133 @@
+package org.lungen.deeplearning.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.deeplearning4j.nn.api.Model;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.lungen.deeplearning.model.ModelSnapshot;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ParallelEvaluator.
+ * Evaluates a model on cached batches using several read-only replicas
+ * of the model, each on its own thread.
+ * <p>
+ * Replicas are allocated once and refreshed by copying parameters before
+ * each evaluation. Batches are taken by workers from a shared counter,
+ * so that workers stay busy with batches of different length.
+ * Evaluations of the workers are merged into one.
+ * <p>
+ * Each ND4J op of a worker runs on its own OpenMP thread pool, so workers beyond
+ * {@link #defaultWorkers()} oversubscribe the CPU, and while training runs concurrently
+ * they take cores away from it.
+ *
+ */
+public class ParallelEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger("evaluation.parallel");
+
+    private final ModelSnapshot[] replicas;
+    private final ExecutorService executor;
+
+    /**
+     * @param numWorkers number of model replicas and threads, see {@link #defaultWorkers()}
+     */
+    public ParallelEvaluator(int numWorkers) {
+        if (numWorkers <= 0) {
+            throw new IllegalArgumentException("Invalid number of workers (must be >0): " + numWorkers);
+        }
+        this.replicas = new ModelSnapshot[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            replicas[i] = new ModelSnapshot();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(numWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "model-evaluator-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return number of workers that fit the cores along with OpenMP threads of their ops, at least 1
+     */
+    public static int defaultWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        try {
+            int ompThreads = NativeOpsHolder.getInstance().getDeviceNativeOps().ompGetMaxThreads();
+            return Math.max(1, cores / Math.max(1, ompThreads));
+        } catch (RuntimeException | LinkageError e) {
+            log.debug("Number of OpenMP threads is not available", e);
+            return 1;
+        }
+    }
+
+    /**
+     * @param model MultiLayerNetwork or ComputationGraph with single output, not modified during the call
+     */
+    public synchronized Evaluation evaluate(Model model, List<DataSet> batches) {
+        long startNano = System.nanoTime();
+        TrainingEvents.Evaluation event = new TrainingEvents.Evaluation();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        AtomicInteger nextBatch = new AtomicInteger();
+        List<Future<Evaluation>> futures = new ArrayList<>();
+        for (ModelSnapshot snapshot : replicas) {
+            Model replica = snapshot.update(model, false);
+            futures.add(executor.submit(() -> evaluate(replica, batches, nextBatch)));
+        }
+
+        Evaluation merged = new Evaluation();
+        for (Future<Evaluation> future : futures) {
+            try {
+                Evaluation evaluation = future.get();
+                if (evaluation != null) {
+                    merged.merge(evaluation);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Evaluation interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Evaluation failed", e.getCause());
+            }
+        }
+        MemoryAccountant.get().record(MemoryAccountant.Phase.EVALUATION, before);
+        event.commit("parallel", batches);
+        log.debug("Evaluated {} batches on {} replicas in {} seconds",
+                batches.size(), replicas.length, (System.nanoTime() - startNano) / 1e+9);
+        return merged;
+    }
+
+    /**
+     * @return evaluation of the batches taken by the worker or null if there were none
+     */
+    private static Evaluation evaluate(Model replica, List<DataSet> batches, AtomicInteger nextBatch) {
+        Evaluation evaluation = null;
+        int index;
+        while ((index = nextBatch.getAndIncrement()) < batches.size()) {
+            DataSet batch = batches.get(index);
+            INDArray output = ValidationSet.output(replica, batch);
+            if (evaluation == null) {
+                evaluation = new Evaluation();
+            }
+            evaluation.eval(batch.getLabels(), output, batch.getLabelsMaskArray());
+        }
+        return evaluation;
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,50 @@
+package org.lungen.deeplearning.evaluation;
+
+/**
+ * ValidationResult.
+ * Scores of a model on a validation set: mean cross-entropy loss per prediction
+ * (per example for classifiers, per time step for sequence outputs) and accuracy.
+ *
+ */
+public class ValidationResult {
+
+    private static final double LN_2 = Math.log(2);
+
+    private final double loss;
+    private final double accuracy;
+    private final long numPredictions;
+
+    public ValidationResult(double loss, double accuracy, long numPredictions) {
+        this.loss = loss;
+        this.accuracy = accuracy;
+        this.numPredictions = numPredictions;
+    }
+
+    /**
+     * @return mean cross-entropy in nats
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * @return mean cross-entropy in bits, i.e. bits per character for character level models
+     */
+    public double getBitsPerCharacter() {
+        return loss / LN_2;
+    }
+
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    public long getNumPredictions() {
+        return numPredictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("loss %.4f, bits per char %.4f, accuracy %.4f, predictions %d",
+                loss, getBitsPerCharacter(), accuracy, numPredictions);
+    }
+}
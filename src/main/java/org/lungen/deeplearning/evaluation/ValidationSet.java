@@ -0,0 +1,139 @@
+package org.lungen.deeplearning.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.TimeSeriesUtils;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ValidationSet.
+ * Fixed subset of held-out examples, vectorized once and kept in memory,
+ * so that validation on a schedule costs forward passes only.
+ * <p>
+ * Models are expected to have a single softmax output with one-hot labels,
+ * either per example (classifiers) or per time step (sequence outputs).
+ * Label masks, if present, are per example or per time step.
+ *
+ */
+public class ValidationSet {
+
+    private static final Logger log = LoggerFactory.getLogger("evaluation.validation");
+
+    private static final double MIN_PROBABILITY = 1e-12;
+
+    private final List<DataSet> batches;
+    private final int numExamples;
+
+    public ValidationSet(List<DataSet> batches) {
+        this.batches = Collections.unmodifiableList(new ArrayList<>(batches));
+        this.numExamples = batches.stream().mapToInt(DataSet::numExamples).sum();
+        log.info("Validation set: {} examples in {} batches", numExamples, batches.size());
+    }
+
+    /**
+     * Takes first examples of the iterator, batched by length, see {@link CachedEvaluationSet}.
+     * Iterator is reset before and after.
+     *
+     * @param numExamples maximum number of examples to take
+     */
+    public static ValidationSet fromIterator(DataSetIterator iterator, int numExamples) {
+        return new ValidationSet(CachedEvaluationSet.fromIterator(iterator, numExamples, iterator.batch()).getBatches());
+    }
+
+    public int getNumExamples() {
+        return numExamples;
+    }
+
+    public List<DataSet> getBatches() {
+        return batches;
+    }
+
+    /**
+     * @param model MultiLayerNetwork or ComputationGraph with single output
+     */
+    public ValidationResult evaluate(Model model) {
+        TrainingEvents.Evaluation event = new TrainingEvents.Evaluation();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        double sumLogProbability = 0;
+        double sumCorrect = 0;
+        long count = 0;
+        for (DataSet batch : batches) {
+            INDArray output = output(model, batch);
+            INDArray labels = batch.getLabels();
+
+            // 1 for positions with a label, 0 for padding
+            INDArray present = labels.sum(1);
+            INDArray labelsMask = batch.getLabelsMaskArray();
+            if (labelsMask != null && labelsMask.length() == present.length()) {
+                present.muli(labelsMask.reshape(present.shape()));
+            }
+
+            // probability assigned to the correct class
+            INDArray probability = output.mul(labels).sum(1);
+            INDArray logProbability = Transforms.log(Transforms.max(probability, MIN_PROBABILITY, false), false);
+            sumLogProbability += logProbability.muli(present).sumNumber().doubleValue();
+
+            INDArray correct = Nd4j.argMax(output, 1).eq(Nd4j.argMax(labels, 1));
+            sumCorrect += correct.muli(present).sumNumber().doubleValue();
+            count += present.sumNumber().longValue();
+        }
+        MemoryAccountant.get().record(MemoryAccountant.Phase.EVALUATION, before);
+        event.commit("validation", batches);
+        if (count == 0) {
+            return new ValidationResult(Double.NaN, Double.NaN, 0);
+        }
+        return new ValidationResult(-sumLogProbability / count, sumCorrect / count, count);
+    }
+
+    /**
+     * Output of a network for the batch. Per-step output of a sequence classifier
+     * (labels per sequence) is reduced to the output at the last step of each sequence.
+     *
+     * @param model MultiLayerNetwork or ComputationGraph with single output
+     */
+    public static INDArray output(Model model, DataSet batch) {
+        INDArray output;
+        if (model instanceof MultiLayerNetwork) {
+            output = ((MultiLayerNetwork) model).output(batch.getFeatures(), false,
+                    batch.getFeaturesMaskArray(), batch.getLabelsMaskArray());
+        } else if (model instanceof ComputationGraph) {
+            output = ((ComputationGraph) model).output(false,
+                    new INDArray[] {batch.getFeatures()},
+                    batch.getFeaturesMaskArray() != null ? new INDArray[] {batch.getFeaturesMaskArray()} : null,
+                    batch.getLabelsMaskArray() != null ? new INDArray[] {batch.getLabelsMaskArray()} : null)[0];
+        } else {
+            throw new IllegalArgumentException("Unsupported model: " + model.getClass().getName());
+        }
+        return batch.getLabels().rank() == 2 ? lastStep(output, batch.getFeaturesMaskArray()) : output;
+    }
+
+    /**
+     * @param output        network output [examples, classes, steps] or [examples, classes]
+     * @param featuresMask  mask [examples, steps] or null if sequences are not padded
+     * @return output [examples, classes] at the last unmasked step of each sequence
+     */
+    public static INDArray lastStep(INDArray output, INDArray featuresMask) {
+        if (output.rank() != 3) {
+            return output;
+        }
+        if (featuresMask == null) {
+            return output.get(NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.point(output.size(2) - 1));
+        }
+        return TimeSeriesUtils.pullLastTimeSteps(output, featuresMask).getFirst();
+    }
+}
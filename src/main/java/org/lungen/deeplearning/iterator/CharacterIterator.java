@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -50,6 +51,8 @@ public class CharacterIterator implements DataSetIterator {
 
     //Offsets for the start of each example
     private LinkedList<Integer> exampleStartOffsets = new LinkedList<>();
+    //Number of examples at the end of the file excluded from training, see holdOut()
+    private int numHoldOutExamples;
 
     public CharacterIterator(File textFile,
                              int miniBatchSize,
@@ -178,6 +181,44 @@ public class CharacterIterator implements DataSetIterator {
         }
 
         int currMinibatchSize = Math.min(batchSize, exampleStartOffsets.size());
+        int[] offsets = new int[currMinibatchSize];
+        for (int i = 0; i < currMinibatchSize; i++) {
+            offsets[i] = exampleStartOffsets.removeFirst();
+        }
+        return vectorize(offsets);
+    }
+
+    /**
+     * Reserves the last examples of the file for validation.
+     * They are excluded from training epochs (including the current one)
+     * and returned vectorized in minibatches.
+     *
+     * @param numExamples number of examples to hold out
+     * @return held out examples
+     */
+    public List<DataSet> holdOut(int numExamples) {
+        int totalExamples = (fileCharacters.length - 1) / exampleLength - 2;
+        if (numExamples <= 0 || numExamples >= totalExamples) {
+            throw new IllegalArgumentException("Invalid number of hold out examples: " + numExamples
+                    + " (must be >0 and <" + totalExamples + ")");
+        }
+        this.numHoldOutExamples = numExamples;
+        int firstHoldOutOffset = (totalExamples - numExamples) * exampleLength;
+        exampleStartOffsets.removeIf(offset -> offset >= firstHoldOutOffset);
+
+        List<DataSet> batches = new ArrayList<>();
+        for (int start = 0; start < numExamples; start += miniBatchSize) {
+            int[] offsets = new int[Math.min(miniBatchSize, numExamples - start)];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = firstHoldOutOffset + (start + i) * exampleLength;
+            }
+            batches.add(vectorize(offsets));
+        }
+        return batches;
+    }
+
+    private DataSet vectorize(int[] offsets) {
+        int currMinibatchSize = offsets.length;
         // Allocate space:
         // Note the order here:
         //  dimension 0 = number of examples in minibatch
@@ -192,7 +233,7 @@ public class CharacterIterator implements DataSetIterator {
         // Fill input and labelData with one-hot data
         // Use charToIdxMap to determine index of 1.0 (to represent as one-hot)
         for (int i = 0; i < currMinibatchSize; i++) {
-            int startIdx = exampleStartOffsets.removeFirst();
+            int startIdx = offsets[i];
             int endIdx = startIdx + exampleLength;
             int currCharIdx = charToIdxMap.get(fileCharacters[startIdx]);    //Current input
             int c = 0;
@@ -227,6 +268,7 @@ public class CharacterIterator implements DataSetIterator {
     private int initializeOffsets() {
         // This defines the order in which parts of the file are fetched
         int nMinibatchesPerEpoch = (fileCharacters.length - 1) / exampleLength - 2;   //-2: for end index, and for partial example
+        nMinibatchesPerEpoch -= numHoldOutExamples;
         for (int i = 0; i < nMinibatchesPerEpoch; i++) {
             exampleStartOffsets.add(i * exampleLength);
         }
@@ -285,4 +327,29 @@ public class CharacterIterator implements DataSetIterator {
     public char[] getValidCharacters() {
         return validCharacters;
     }
+
+    /**
+     * @return start offsets of examples remaining in the current epoch, in the order they will be fetched
+     */
+    public int[] getExampleStartOffsets() {
+        return exampleStartOffsets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public Random getRng() {
+        return rng;
+    }
+
+    /**
+     * Restores position within an epoch, e.g. from a training checkpoint.
+     *
+     * @param offsets start offsets of examples remaining in the epoch, see {@link #getExampleStartOffsets()}
+     * @param rng Random number generator used for shuffling of the next epochs
+     */
+    public void restoreState(int[] offsets, Random rng) {
+        this.rng = rng;
+        exampleStartOffsets.clear();
+        for (int offset : offsets) {
+            exampleStartOffsets.add(offset);
+        }
+    }
 }
@@ -42,7 +42,10 @@ public class CharacterSequenceClassifierIterator implements DataSetIterator {
 
     // offsets for the start of each example
     private LinkedList<Integer> miniBatchStartOffsets = new LinkedList<>();
+    //Number of examples at the end of the file excluded from training, see holdOut()
+    private int numHoldOutExamples;
     private int numOuputClasses;
+    private DataSetPreProcessor preProcessor;
 
 
     public CharacterSequenceClassifierIterator() {
@@ -99,7 +102,7 @@ public class CharacterSequenceClassifierIterator implements DataSetIterator {
 
     private void initializeOffsets() {
         //This defines the order in which parts of the file are fetched
-        int nMinibatchesPerEpoch = (int) Math.ceil(csvParser.getParsedLines().size() / (double) miniBatchSize);
+        int nMinibatchesPerEpoch = (int) Math.ceil((charSequences.size() - numHoldOutExamples) / (double) miniBatchSize);
 
         for (int i = 0; i < nMinibatchesPerEpoch; i++) {
             miniBatchStartOffsets.add(i * miniBatchSize);
@@ -123,12 +126,12 @@ public class CharacterSequenceClassifierIterator implements DataSetIterator {
 
     @Override
     public void setPreProcessor(DataSetPreProcessor preProcessor) {
-        throw new UnsupportedOperationException("Not implemented");
+        this.preProcessor = preProcessor;
     }
 
     @Override
     public DataSetPreProcessor getPreProcessor() {
-        return null;
+        return preProcessor;
     }
 
     @Override
@@ -196,7 +199,7 @@ public class CharacterSequenceClassifierIterator implements DataSetIterator {
         }
 
         int indexStart = miniBatchStartOffsets.removeFirst();
-        int currMinibatchSize = Math.min(batchSize, charSequences.size() - indexStart);
+        int currMinibatchSize = Math.min(batchSize, charSequences.size() - numHoldOutExamples - indexStart);
 
 //        //Allocate space:
 //        //Note the order here:
@@ -208,6 +211,14 @@ public class CharacterSequenceClassifierIterator implements DataSetIterator {
 //        INDArray nonSequenceInput = Nd4j.create(new int[]{currMinibatchSize, nonSequenceSize}, 'f');
 //        INDArray labels = Nd4j.create(new int[]{currMinibatchSize, 1}, 'f');
 
+        DataSet dataSet = vectorize(indexStart, currMinibatchSize);
+        if (preProcessor != null) {
+            preProcessor.preProcess(dataSet);
+        }
+        return dataSet;
+    }
+
+    private DataSet vectorize(int indexStart, int currMinibatchSize) {
         // data
         INDArray sequenceInput = Nd4j.zeros(new int[]{currMinibatchSize, charDictionary.length, charSequenceMaxLength}, 'f');
         INDArray labels = Nd4j.zeros(new int[]{currMinibatchSize, 3}, 'f');
@@ -244,6 +255,30 @@ public class CharacterSequenceClassifierIterator implements DataSetIterator {
                 sequenceInputMask, null);
     }
 
+    /**
+     * Reserves the last examples of the file for validation.
+     * They are excluded from training epochs (including the current one)
+     * and returned vectorized in minibatches, the preprocessor is not applied.
+     *
+     * @param numExamples number of examples to hold out
+     * @return held out examples
+     */
+    public List<DataSet> holdOut(int numExamples) {
+        if (numExamples <= 0 || numExamples >= charSequences.size()) {
+            throw new IllegalArgumentException("Invalid number of hold out examples: " + numExamples
+                    + " (must be >0 and <" + charSequences.size() + ")");
+        }
+        this.numHoldOutExamples = numExamples;
+        int firstHoldOutIndex = charSequences.size() - numExamples;
+        miniBatchStartOffsets.removeIf(offset -> offset >= firstHoldOutIndex);
+
+        List<DataSet> batches = new ArrayList<>();
+        for (int start = 0; start < numExamples; start += miniBatchSize) {
+            batches.add(vectorize(firstHoldOutIndex + start, Math.min(miniBatchSize, numExamples - start)));
+        }
+        return batches;
+    }
+
     @Override
     public int inputColumns() {
         return getNumSequenceFeatures();
@@ -0,0 +1,335 @@
+package org.lungen.deeplearning.iterator;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.lungen.deeplearning.metrics.TrainingMetrics;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DataPipeline.
+ * Feeds minibatches of the training iterator to the training loop and tells whether training
+ * is compute-bound or starved by data preparation: measures time the loop is blocked waiting
+ * for the next minibatch versus time in fit, vectorization throughput (bytes of minibatch arrays
+ * per second spent in next() of the iterator) and, with prefetching, depth of the prefetch queue.
+ * <p>
+ * Per epoch the stats are logged and data stall ratio - the share of waiting in waiting plus
+ * fit time - is published to {@link TrainingMetrics}. Ratio close to 0 means compute-bound training,
+ * growing ratio means the iterator cannot keep up.
+ * <p>
+ * Vectorization of each minibatch is recorded as {@link TrainingEvents.Vectorization} JFR event
+ * and accounted by {@link MemoryAccountant}.
+ * <p>
+ * With prefetching, minibatches are vectorized by a background thread up to the given number ahead,
+ * so the iterator must not be used by the training thread for iteration meanwhile. Prefetch depth
+ * may be reduced during training to save memory, see {@link #reducePrefetch()}.
+ *
+ */
+public class DataPipeline<T> implements Iterator<T> {
+
+    private static final Logger log = LoggerFactory.getLogger("iterator.pipeline");
+
+    private static final Object END = new Object();
+
+    private final Iterator<T> iterator;
+    private final Runnable resetIterator;
+    private final Function<T, INDArray> features;
+    private final ToLongFunction<T> bytes;
+    private final int prefetchBatches;
+    private final TrainingMetrics metrics;
+
+    private final BlockingQueue<Object> queue;
+    private Thread producer;
+    private Object nextItem;
+    // free places of the prefetch queue, taken by the producer and returned by the training thread
+    private Semaphore slots;
+    private int prefetchDepth;
+    private int slotsToDrop;
+
+    // written by the producer thread when prefetching
+    private final AtomicLong vectorizeNanos = new AtomicLong();
+    private final AtomicLong vectorizedBytes = new AtomicLong();
+
+    private long batches;
+    private long waitNanos;
+    private long fitNanos;
+    private long fitStartNanos;
+    private long queueDepthSum;
+    private int queueDepthMax;
+
+    /**
+     * @param resetIterator     resets the iterator for the next epoch
+     * @param features          (first) features array of a minibatch
+     * @param bytes             size of arrays of a minibatch, bytes
+     * @param prefetchBatches   number of minibatches vectorized ahead in background, 0 to vectorize on demand
+     * @param metrics           metrics the data stall ratio is published to, may be null
+     */
+    public DataPipeline(Iterator<T> iterator, Runnable resetIterator, Function<T, INDArray> features,
+                        ToLongFunction<T> bytes, int prefetchBatches, TrainingMetrics metrics) {
+        this.iterator = iterator;
+        this.resetIterator = resetIterator;
+        this.features = features;
+        this.bytes = bytes;
+        this.prefetchBatches = Math.max(prefetchBatches, 0);
+        this.metrics = metrics;
+        this.prefetchDepth = this.prefetchBatches;
+        // one more place for the end marker
+        this.queue = this.prefetchBatches > 0 ? new ArrayBlockingQueue<>(this.prefetchBatches + 1) : null;
+    }
+
+    public static DataPipeline<DataSet> of(DataSetIterator iterator, int prefetchBatches, TrainingMetrics metrics) {
+        return new DataPipeline<>(iterator, iterator::reset, DataSet::getFeatures, DataPipeline::bytes,
+                prefetchBatches, metrics);
+    }
+
+    public static DataPipeline<MultiDataSet> of(MultiDataSetIterator iterator, int prefetchBatches,
+                                                TrainingMetrics metrics) {
+        return new DataPipeline<>(iterator, iterator::reset, dataSet -> dataSet.getFeatures(0), DataPipeline::bytes,
+                prefetchBatches, metrics);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextItem != null) {
+            return nextItem != END;
+        }
+        long start = System.nanoTime();
+        if (queue == null) {
+            boolean hasNext = iterator.hasNext();
+            waitNanos += System.nanoTime() - start;
+            return hasNext;
+        }
+        startProducer();
+        int depth = queue.size();
+        queueDepthSum += depth;
+        queueDepthMax = Math.max(queueDepthMax, depth);
+        try {
+            nextItem = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for minibatch", e);
+        }
+        waitNanos += System.nanoTime() - start;
+        if (nextItem != END && !(nextItem instanceof Failure)) {
+            releaseSlot();
+        }
+        if (nextItem instanceof Failure) {
+            Failure failure = (Failure) nextItem;
+            nextItem = END;
+            throw new IllegalStateException("Minibatch vectorization failed", failure.cause);
+        }
+        return nextItem != END;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T batch;
+        if (queue == null) {
+            long start = System.nanoTime();
+            batch = vectorize();
+            waitNanos += System.nanoTime() - start;
+        } else {
+            batch = (T) nextItem;
+            nextItem = null;
+        }
+        batches++;
+        return batch;
+    }
+
+    private void releaseSlot() {
+        if (slotsToDrop > 0) {
+            slotsToDrop--;
+        } else {
+            slots.release();
+        }
+    }
+
+    /**
+     * Halves the number of minibatches vectorized ahead, at least one minibatch stays prefetched.
+     * Minibatches already in the queue are kept, so the depth goes down as they are taken.
+     *
+     * @return false if nothing is prefetched or the depth cannot be reduced
+     */
+    public boolean reducePrefetch() {
+        if (queue == null || prefetchDepth <= 1) {
+            return false;
+        }
+        int depth = prefetchDepth / 2;
+        slotsToDrop += prefetchDepth - depth;
+        prefetchDepth = depth;
+        return true;
+    }
+
+    /**
+     * @return current number of minibatches vectorized ahead, 0 if minibatches are vectorized on demand
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void fitStarted() {
+        fitStartNanos = System.nanoTime();
+    }
+
+    public void fitDone() {
+        fitNanos += System.nanoTime() - fitStartNanos;
+    }
+
+    /**
+     * Logs stats of the epoch, publishes data stall ratio and starts stats of the next epoch.
+     */
+    public void epochDone(int epoch) {
+        double stallRatio = waitNanos + fitNanos > 0 ? waitNanos / (double) (waitNanos + fitNanos) : Double.NaN;
+        long vectorizeNanos = this.vectorizeNanos.getAndSet(0);
+        long vectorizedBytes = this.vectorizedBytes.getAndSet(0);
+        double megabytesPerSecond = vectorizeNanos > 0 ? vectorizedBytes * 1e+3 / vectorizeNanos : Double.NaN;
+        if (queue != null) {
+            log.info(String.format("[%d] Data pipeline: %d minibatches, waiting %.0f ms, fit %.0f ms, "
+                            + "data stall ratio %.1f%%, vectorized %.1f MB/s, prefetch queue depth %.1f avg, %d max of %d",
+                    epoch, batches, waitNanos / 1e+6, fitNanos / 1e+6, stallRatio * 100, megabytesPerSecond,
+                    batches > 0 ? queueDepthSum / (double) batches : 0.0, queueDepthMax, prefetchDepth));
+        } else {
+            log.info(String.format("[%d] Data pipeline: %d minibatches, waiting %.0f ms, fit %.0f ms, "
+                            + "data stall ratio %.1f%%, vectorized %.1f MB/s",
+                    epoch, batches, waitNanos / 1e+6, fitNanos / 1e+6, stallRatio * 100, megabytesPerSecond));
+        }
+        if (metrics != null) {
+            metrics.setDataStallRatio(stallRatio);
+        }
+        batches = 0;
+        waitNanos = 0;
+        fitNanos = 0;
+        queueDepthSum = 0;
+        queueDepthMax = 0;
+    }
+
+    /**
+     * Stops prefetching and resets the iterator for the next epoch.
+     */
+    public void reset() {
+        stopProducer();
+        resetIterator.run();
+    }
+
+    /**
+     * Stops prefetching, e.g. when training is stopped before the end of epoch.
+     */
+    public void close() {
+        stopProducer();
+    }
+
+    private void startProducer() {
+        if (producer != null) {
+            return;
+        }
+        slots = new Semaphore(prefetchDepth);
+        slotsToDrop = 0;
+        producer = new Thread(this::produce, "data-pipeline");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void produce() {
+        try {
+            while (iterator.hasNext()) {
+                slots.acquire();
+                queue.put(vectorize());
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException | Error e) {
+            // the training thread must not block forever
+            queue.clear();
+            queue.offer(new Failure(e));
+        }
+    }
+
+    private T vectorize() {
+        TrainingEvents.Vectorization event = new TrainingEvents.Vectorization();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        long start = System.nanoTime();
+        T batch = iterator.next();
+        vectorizeNanos.addAndGet(System.nanoTime() - start);
+        MemoryAccountant.get().record(MemoryAccountant.Phase.VECTORIZATION, before);
+        event.end();
+        long size = bytes.applyAsLong(batch);
+        vectorizedBytes.addAndGet(size);
+        if (event.shouldCommit()) {
+            event.setShape(features.apply(batch));
+            event.bytes = size;
+            event.commit();
+        }
+        return batch;
+    }
+
+    private void stopProducer() {
+        nextItem = null;
+        if (producer == null) {
+            return;
+        }
+        producer.interrupt();
+        try {
+            producer.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (producer.isAlive()) {
+            log.warn("Data pipeline thread did not stop");
+        }
+        producer = null;
+        queue.clear();
+    }
+
+    private static long bytes(DataSet dataSet) {
+        return bytes(dataSet.getFeatures()) + bytes(dataSet.getLabels())
+                + bytes(dataSet.getFeaturesMaskArray()) + bytes(dataSet.getLabelsMaskArray());
+    }
+
+    private static long bytes(MultiDataSet dataSet) {
+        return bytes(dataSet.getFeatures()) + bytes(dataSet.getLabels())
+                + bytes(dataSet.getFeaturesMaskArrays()) + bytes(dataSet.getLabelsMaskArrays());
+    }
+
+    private static long bytes(INDArray[] arrays) {
+        long bytes = 0;
+        if (arrays != null) {
+            for (INDArray array : arrays) {
+                bytes += bytes(array);
+            }
+        }
+        return bytes;
+    }
+
+    private static long bytes(INDArray array) {
+        return array != null ? array.length() * array.data().getElementSize() : 0;
+    }
+
+    private static final class Failure {
+        private final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.lungen.deeplearning.iterator;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.broadcast.BroadcastCopyOp;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * TargetReplicationPreProcessor.
+ * Replicates label of a sequence to every time step of the sequence, for classifiers
+ * with per-step output layer. Each step gets a training signal, also each segment
+ * of truncated BPTT, which does not reach the end of a sequence.
+ * <p>
+ * Labels mask is the features mask, padding steps have no label.
+ *
+ */
+public class TargetReplicationPreProcessor implements DataSetPreProcessor {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void preProcess(DataSet dataSet) {
+        INDArray features = dataSet.getFeatures();
+        INDArray labels = dataSet.getLabels();
+        if (features.rank() != 3 || labels.rank() != 2) {
+            return;
+        }
+        long numExamples = features.size(0);
+        long numSteps = features.size(2);
+        INDArray replicated = Nd4j.createUninitialized(new long[] {numExamples, labels.size(1), numSteps}, 'f');
+        // labels [examples, classes] along dimensions 0 and 1 of [examples, classes, steps]
+        Nd4j.getExecutioner().exec(new BroadcastCopyOp(replicated, labels, replicated, 0, 1));
+
+        INDArray featuresMask = dataSet.getFeaturesMaskArray();
+        dataSet.setLabels(replicated);
+        dataSet.setLabelsMaskArray(featuresMask != null ? featuresMask : Nd4j.ones(numExamples, numSteps));
+    }
+}
@@ -1,65 +1,151 @@
 package org.lungen.deeplearning.listener;
 
-import java.io.IOException;
-
-import org.deeplearning4j.earlystopping.saver.InMemoryModelSaver;
 import org.deeplearning4j.nn.api.Model;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.model.ModelSnapshot;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * EarlyStopListener.
+ * Tracks the best model and recommends to stop training when the score
+ * does not improve for a number of iterations.
+ * <p>
+ * Minibatch score is noisy, so improvement is detected on its exponential
+ * moving average and must exceed the minimum delta. The best model is kept
+ * as a copy of the flat parameter vector in a buffer allocated once and
+ * overwritten on each improvement, so that the copy always holds parameters
+ * of the iteration the best score was recorded at.
+ * <p>
+ * Alternatively stopping can be driven by validation score reported on a schedule
+ * via {@link #validationDone(Model, double)}, see {@link #setValidationPatience(int)}.
+ * Training minibatch scores are then ignored.
+ *
+ */
 public class EarlyStopListener extends ScoreIterationListener {
 
     private static final Logger log = LoggerFactory.getLogger("listener.earlystop");
 
-    private InMemoryModelSaver<Model> modelSaver = new InMemoryModelSaver<>();
+    public static final double DEFAULT_SMOOTHING = 0.1;
+    public static final double DEFAULT_MIN_DELTA = 0.0;
 
+    private double smoothedScore = Double.NaN;
     private double bestScore = Double.MAX_VALUE;
 
     private int iterationsWithoutImprovement;
 
+    // flat parameters of the best model, allocated on first snapshot
+    private INDArray bestParams;
+    private Model model;
+
     private String name;
     private int iterationsWithoutImprovementLimit;
     private int minNumberEpochs;
+    private double smoothing;
+    private double minDelta;
+    private int validationPatience;
     private int epoch;
 
     private boolean stopRecommended;
 
     public EarlyStopListener(String name, int iterationsWithoutImprovementLimit, int minNumberEpochs) {
+        this(name, iterationsWithoutImprovementLimit, minNumberEpochs,
+                DEFAULT_SMOOTHING, DEFAULT_MIN_DELTA);
+    }
+
+    /**
+     * @param smoothing                 weight of the latest score in moving average, 1 disables smoothing
+     * @param minDelta                  minimum decrease of the smoothed score counted as improvement
+     */
+    public EarlyStopListener(String name, int iterationsWithoutImprovementLimit, int minNumberEpochs,
+                             double smoothing, double minDelta) {
         this.name = name;
         this.iterationsWithoutImprovementLimit = iterationsWithoutImprovementLimit;
         this.minNumberEpochs = minNumberEpochs;
+        this.smoothing = smoothing;
+        this.minDelta = minDelta;
     }
 
     public void setEpoch(int epoch) {
         this.epoch = epoch;
     }
 
+    /**
+     * Switches stopping decisions from training minibatch score to validation score.
+     * In this mode the number of iterations without improvement counts validations.
+     *
+     * @param validationPatience number of validations without improvement before stop is recommended,
+     *                           non-positive value switches back to training score
+     */
+    public void setValidationPatience(int validationPatience) {
+        this.validationPatience = validationPatience;
+    }
+
+    public boolean isValidationDriven() {
+        return validationPatience > 0;
+    }
+
     @Override
     public void iterationDone(Model model, int iteration, int epoch) {
-        if (this.epoch < minNumberEpochs) {
+        this.model = model;
+        if (this.epoch < minNumberEpochs || isValidationDriven()) {
             return;
         }
 
-        try {
-
-            double score = model.score();
-            if (bestScore > score) {
-                modelSaver.saveBestModel(model, score);
-                log.info("Improved model: {} -> {}, saved score {}", bestScore, score, modelSaver.getBestModel().score());
-                iterationsWithoutImprovement = 0;
-                bestScore = score;
-            } else {
-                iterationsWithoutImprovement++;
-                if (iterationsWithoutImprovement > iterationsWithoutImprovementLimit) {
-                    stopRecommended = true;
-                    log.info("{} iterations without score improvement. Stop recommended.", iterationsWithoutImprovementLimit);
-                }
+        double score = model.score();
+        smoothedScore = Double.isNaN(smoothedScore) ? score : smoothing * score + (1 - smoothing) * smoothedScore;
+        if (smoothedScore < bestScore - minDelta) {
+            log.debug("Improved score: {} -> {}", bestScore, smoothedScore);
+            iterationsWithoutImprovement = 0;
+            bestScore = smoothedScore;
+            snapshot(model.params());
+        } else {
+            iterationsWithoutImprovement++;
+            if (iterationsWithoutImprovement > iterationsWithoutImprovementLimit) {
+                stopRecommended = true;
+                log.info("{} iterations without score improvement. Stop recommended.", iterationsWithoutImprovementLimit);
+            }
+        }
+    }
+
+    /**
+     * Reports score of the model on validation set.
+     *
+     * @param score validation score, lower is better
+     */
+    public void validationDone(Model model, double score) {
+        this.model = model;
+        if (this.epoch < minNumberEpochs || !isValidationDriven()) {
+            return;
+        }
+        smoothedScore = score;
+        if (score < bestScore - minDelta) {
+            log.info("Improved validation score: {} -> {}", bestScore, score);
+            iterationsWithoutImprovement = 0;
+            bestScore = score;
+            snapshot(model.params());
+        } else {
+            iterationsWithoutImprovement++;
+            if (iterationsWithoutImprovement >= validationPatience) {
+                stopRecommended = true;
+                log.info("{} validations without score improvement. Stop recommended.", validationPatience);
             }
+        }
+    }
 
-        } catch (IOException e) {
-            log.error("Error processing iteration", e);
+    @SuppressWarnings("try")
+    private void snapshot(INDArray params) {
+        if (bestParams == null || bestParams.length() != params.length()) {
+            // buffer must outlive the workspace of the current iteration
+            try (MemoryWorkspace ws = Nd4j.getMemoryManager().scopeOutOfWorkspaces()) {
+                bestParams = params.dup();
+            }
+        } else {
+            bestParams.assign(params);
         }
     }
 
@@ -67,17 +153,51 @@ public class EarlyStopListener extends ScoreIterationListener {
         return bestScore;
     }
 
+    public double getSmoothedScore() {
+        return smoothedScore;
+    }
+
     public boolean isStopRecommended() {
         return stopRecommended;
     }
 
-    public void writeBestModel() {
-        try {
-            Model bestModel = modelSaver.getBestModel();
-            ModelPersistence.save(name, bestModel);
+    public int getIterationsWithoutImprovement() {
+        return iterationsWithoutImprovement;
+    }
 
-        } catch (IOException e) {
-            log.error("Cannot save model", e);
+    /**
+     * @return flat parameters of the best model so far, or null if no snapshot was taken yet.
+     * The buffer is overwritten by subsequent snapshots.
+     */
+    public INDArray getBestParams() {
+        return bestParams;
+    }
+
+    /**
+     * Restores listener state, e.g. from a training checkpoint.
+     *
+     * @param bestParams flat parameters of the best model so far, may be null
+     */
+    public void restoreState(double bestScore, double smoothedScore, int iterationsWithoutImprovement,
+                             INDArray bestParams) {
+        this.bestScore = bestScore;
+        this.smoothedScore = smoothedScore;
+        this.iterationsWithoutImprovement = iterationsWithoutImprovement;
+        if (bestParams != null) {
+            snapshot(bestParams);
+        }
+    }
+
+    /**
+     * Saves the best model: parameters snapshot applied to a copy of the trained model.
+     */
+    public void writeBestModel() {
+        if (bestParams == null || model == null) {
+            log.warn("No best model to save");
+            return;
         }
+        Model bestModel = new ModelSnapshot().update(model, false);
+        bestModel.params().assign(bestParams);
+        ModelPersistence.save(name, bestModel, bestScore);
     }
 }
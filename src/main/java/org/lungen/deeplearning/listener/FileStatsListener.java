@@ -0,0 +1,32 @@
+package org.lungen.deeplearning.listener;
+
+import java.io.File;
+
+import org.deeplearning4j.ui.stats.StatsListener;
+
+/**
+ * FileStatsListener.
+ * StatsListener for headless training: reports stats sampled each given number
+ * of iterations to local files of bounded size and number ({@link RotatingFileStatsStorage}),
+ * starts no UI server.
+ *
+ */
+public class FileStatsListener extends StatsListener implements StatsReporter {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param reportEachIterations  stats are reported once per this number of iterations
+     * @param updatesPerFile        number of reports written into a file before the next one is started
+     * @param keepFiles             number of most recent files to keep
+     */
+    public FileStatsListener(File directory, String name, int reportEachIterations,
+                             int updatesPerFile, int keepFiles) {
+        super(new RotatingFileStatsStorage(directory, name, updatesPerFile, keepFiles), reportEachIterations);
+    }
+
+    @Override
+    public void close() {
+        ((RotatingFileStatsStorage) getStorageRouter()).close();
+    }
+}
@@ -0,0 +1,173 @@
+package org.lungen.deeplearning.listener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.deeplearning4j.optimize.solvers.BaseOptimizer;
+import org.lungen.deeplearning.metrics.ArrayStats;
+import org.lungen.deeplearning.metrics.ArrayStats.Saturation;
+import org.lungen.deeplearning.metrics.LayerHealth;
+import org.lungen.deeplearning.metrics.TrainingMetrics;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationHardSigmoid;
+import org.nd4j.linalg.activations.impl.ActivationHardTanH;
+import org.nd4j.linalg.activations.impl.ActivationSigmoid;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GradientHealthListener.
+ * Samples gradient and activation statistics of each layer every N iterations:
+ * gradient norm and min/mean/max of absolute values, mean absolute activation,
+ * fractions of zero and saturated activations (tanh, sigmoid). Statistics are published
+ * to {@link TrainingMetrics} and layers with vanishing or exploding gradients are logged.
+ * <p>
+ * Activations are taken from the first forward pass of a sampled iteration, except the output layer,
+ * which is not activated in the forward pass of training. Gradient is taken before the updater
+ * is applied and divided by the number of examples of the iteration.
+ * Iterations not sampled cost one counter check per callback.
+ *
+ */
+public class GradientHealthListener extends BaseTrainingListener {
+
+    private static final Logger log = LoggerFactory.getLogger("listener.health");
+
+    private final TrainingMetrics metrics;
+    private final int sampleEachIterations;
+    private final double vanishingNorm;
+    private final double explodingNorm;
+    private final ArrayStats stats = new ArrayStats();
+
+    private Layer[] layers;
+    private Saturation[] saturation;
+    private List<LayerHealth> health;
+    private long examples;
+    private int activationsIteration = -1;
+
+    /**
+     * @param sampleEachIterations  sampling frequency, non-positive value disables sampling
+     * @param vanishingNorm         per example gradient norm of a layer below which gradient is vanishing
+     * @param explodingNorm         per example gradient norm of a layer above which gradient is exploding
+     */
+    public GradientHealthListener(TrainingMetrics metrics, int sampleEachIterations,
+                                  double vanishingNorm, double explodingNorm) {
+        this.metrics = metrics;
+        this.sampleEachIterations = sampleEachIterations;
+        this.vanishingNorm = vanishingNorm;
+        this.explodingNorm = explodingNorm;
+    }
+
+    private boolean isSampled(Model model) {
+        return sampleEachIterations > 0 && BaseOptimizer.getIterationCount(model) % sampleEachIterations == 0;
+    }
+
+    @Override
+    public void onForwardPass(Model model, List<INDArray> activations) {
+        if (!isSampled(model)) {
+            return;
+        }
+        examples += activations.get(0).size(0);
+        if (isFirstForwardPass(model)) {
+            // activations of layer i follow the network input, output layer is activated in backprop
+            for (int i = 0; i + 1 < activations.size(); i++) {
+                activationStats(i, activations.get(i + 1));
+            }
+        }
+    }
+
+    @Override
+    public void onForwardPass(Model model, Map<String, INDArray> activations) {
+        if (!isSampled(model)) {
+            return;
+        }
+        String input = ((ComputationGraph) model).getConfiguration().getNetworkInputs().get(0);
+        examples += activations.get(input).size(0);
+        if (isFirstForwardPass(model)) {
+            for (int i = 0; i < layers.length; i++) {
+                activationStats(i, activations.get(health.get(i).getLayer()));
+            }
+        }
+    }
+
+    private boolean isFirstForwardPass(Model model) {
+        int iteration = BaseOptimizer.getIterationCount(model);
+        if (iteration == activationsIteration) {
+            // further micro-batches or segments of the same iteration
+            return false;
+        }
+        activationsIteration = iteration;
+        init(model);
+        return true;
+    }
+
+    private void activationStats(int i, INDArray activations) {
+        stats.reset();
+        stats.add(activations, saturation[i]);
+        health.get(i).setActivations(stats);
+    }
+
+    @Override
+    public void onGradientCalculation(Model model) {
+        if (!isSampled(model)) {
+            return;
+        }
+        init(model);
+        int iteration = BaseOptimizer.getIterationCount(model);
+        for (int i = 0; i < layers.length; i++) {
+            stats.reset();
+            stats.add(layers[i].getGradientsViewArray(), Saturation.NONE);
+            LayerHealth layerHealth = health.get(i);
+            layerHealth.setGradient(iteration, stats, examples);
+            if (layerHealth.check(vanishingNorm, explodingNorm) != LayerHealth.Status.OK) {
+                log.warn("[{}] {} gradient: {}", iteration, layerHealth.getStatus(), layerHealth);
+            } else if (log.isDebugEnabled()) {
+                log.debug("[{}] {}", iteration, layerHealth);
+            }
+        }
+        metrics.setLayerHealth(health);
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        examples = 0;
+    }
+
+    private void init(Model model) {
+        if (layers != null) {
+            return;
+        }
+        layers = model instanceof MultiLayerNetwork
+                ? ((MultiLayerNetwork) model).getLayers()
+                : ((ComputationGraph) model).getLayers();
+        saturation = new Saturation[layers.length];
+        List<LayerHealth> layerHealth = new ArrayList<>(layers.length);
+        for (int i = 0; i < layers.length; i++) {
+            org.deeplearning4j.nn.conf.layers.Layer conf = layers[i].conf().getLayer();
+            String name = conf.getLayerName() != null ? conf.getLayerName() : "layer-" + i;
+            layerHealth.add(new LayerHealth(name, layers[i].getClass().getSimpleName()));
+            saturation[i] = conf instanceof BaseLayer
+                    ? saturation(((BaseLayer) conf).getActivationFn())
+                    : Saturation.NONE;
+        }
+        health = layerHealth;
+    }
+
+    private static Saturation saturation(IActivation activation) {
+        if (activation instanceof ActivationTanH || activation instanceof ActivationHardTanH) {
+            return Saturation.SYMMETRIC;
+        }
+        if (activation instanceof ActivationSigmoid || activation instanceof ActivationHardSigmoid) {
+            return Saturation.UNIT;
+        }
+        return Saturation.NONE;
+    }
+}
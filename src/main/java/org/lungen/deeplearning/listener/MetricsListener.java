@@ -0,0 +1,177 @@
+package org.lungen.deeplearning.listener;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.lungen.deeplearning.metrics.MetricsFileExporter;
+import org.lungen.deeplearning.metrics.TrainingMetrics;
+import org.lungen.deeplearning.metrics.TrainingMetrics.Series;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MetricsListener.
+ * Records throughput and resource metrics of each training iteration into {@link TrainingMetrics}:
+ * time per iteration and per fit, examples and time steps, score, JVM heap,
+ * ND4J off-heap memory and garbage collections.
+ * <p>
+ * Metrics are published through JMX as org.lungen.deeplearning:type=TrainingMetrics,name=model
+ * and, if export directory is given, periodically written to files by {@link MetricsFileExporter}.
+ * <p>
+ * Examples and time steps are counted from network input of forward passes, so minibatches
+ * split for gradient accumulation and segments of truncated BPTT are counted as well.
+ * Time steps include padding of masked sequences.
+ *
+ */
+public class MetricsListener extends BaseTrainingListener {
+
+    private static final Logger log = LoggerFactory.getLogger("listener.metrics");
+
+    private final TrainingMetrics metrics;
+    private final MetricsFileExporter exporter;
+    private final long exportEachMillis;
+    private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+    private ObjectName objectName;
+
+    private int epoch;
+    private long lastIterationNano = -1;
+    private long fitStartNano = -1;
+    private long examples;
+    private long steps;
+    private long lastExportMillis;
+
+    /**
+     * @param exportDirectory   directory of metrics files, null to publish through JMX only
+     * @param exportEachSeconds minimum interval between rewrites of metrics files
+     */
+    public MetricsListener(String modelName, File exportDirectory, int exportEachSeconds) {
+        this.metrics = new TrainingMetrics(modelName);
+        this.exporter = exportDirectory != null ? new MetricsFileExporter(exportDirectory, modelName) : null;
+        this.exportEachMillis = exportEachSeconds * 1000L;
+        register(modelName);
+    }
+
+    private void register(String modelName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            objectName = new ObjectName("org.lungen.deeplearning:type=TrainingMetrics,name="
+                    + ObjectName.quote(modelName));
+            // network initialized again in the same JVM replaces metrics of the previous one
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            log.warn("Cannot register training metrics MBean", e);
+            objectName = null;
+        }
+    }
+
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    public TrainingMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void onForwardPass(Model model, List<INDArray> activations) {
+        countInput(activations.get(0));
+    }
+
+    @Override
+    public void onForwardPass(Model model, Map<String, INDArray> activations) {
+        String input = ((ComputationGraph) model).getConfiguration().getNetworkInputs().get(0);
+        countInput(activations.get(input));
+    }
+
+    private void countInput(INDArray input) {
+        if (fitStartNano < 0) {
+            fitStartNano = System.nanoTime();
+        }
+        if (input == null) {
+            return;
+        }
+        long numExamples = input.size(0);
+        examples += numExamples;
+        steps += input.rank() == 3 ? numExamples * input.size(2) : numExamples;
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        long now = System.nanoTime();
+        double fitMillis = fitStartNano >= 0 ? (now - fitStartNano) / 1e+6 : 0;
+        double iterationMillis = lastIterationNano >= 0 ? (now - lastIterationNano) / 1e+6 : fitMillis;
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            gcCount += Math.max(gcBean.getCollectionCount(), 0);
+            gcMillis += Math.max(gcBean.getCollectionTime(), 0);
+        }
+        Runtime runtime = Runtime.getRuntime();
+
+        metrics.set(Series.TIMESTAMP_MILLIS, System.currentTimeMillis());
+        metrics.set(Series.ITERATION, iteration);
+        metrics.set(Series.EPOCH, this.epoch);
+        metrics.set(Series.ITERATION_MILLIS, iterationMillis);
+        metrics.set(Series.FIT_MILLIS, fitMillis);
+        metrics.set(Series.EXAMPLES, examples);
+        metrics.set(Series.STEPS, steps);
+        metrics.set(Series.SCORE, model.score());
+        metrics.set(Series.HEAP_USED_BYTES, runtime.totalMemory() - runtime.freeMemory());
+        metrics.set(Series.OFF_HEAP_BYTES, Pointer.totalBytes());
+        metrics.set(Series.PHYSICAL_BYTES, Pointer.physicalBytes());
+        metrics.set(Series.GC_COUNT, gcCount);
+        metrics.set(Series.GC_MILLIS, gcMillis);
+        metrics.commit();
+
+        lastIterationNano = now;
+        fitStartNano = -1;
+        examples = 0;
+        steps = 0;
+
+        long nowMillis = System.currentTimeMillis();
+        if (exporter != null && nowMillis - lastExportMillis >= exportEachMillis) {
+            lastExportMillis = nowMillis;
+            export();
+        }
+    }
+
+    private void export() {
+        try {
+            exporter.export(metrics);
+        } catch (IllegalStateException e) {
+            log.warn("Cannot export training metrics", e);
+        }
+    }
+
+    /**
+     * Writes final metrics and unregisters the MBean.
+     */
+    public void close() {
+        if (exporter != null) {
+            export();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.warn("Cannot unregister training metrics MBean", e);
+            }
+            objectName = null;
+        }
+    }
+}
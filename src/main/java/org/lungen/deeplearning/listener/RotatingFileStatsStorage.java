@@ -0,0 +1,164 @@
+package org.lungen.deeplearning.listener;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.deeplearning4j.api.storage.Persistable;
+import org.deeplearning4j.api.storage.StatsStorageRouter;
+import org.deeplearning4j.api.storage.StorageMetaData;
+import org.deeplearning4j.ui.storage.FileStatsStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RotatingFileStatsStorage.
+ * Routes training stats into a sequence of local stats files of bounded size:
+ * after a number of updates the next file name-N.dl4j is started and the oldest files
+ * beyond the retention limit are deleted, including files of previous runs.
+ * <p>
+ * Storage metadata and static info are written into each file, so every file
+ * can be opened on its own, e.g. by {@link org.lungen.deeplearning.util.StatsChartRenderer}
+ * or attached to UI server as {@link FileStatsStorage}.
+ *
+ */
+public class RotatingFileStatsStorage implements StatsStorageRouter {
+
+    private static final Logger log = LoggerFactory.getLogger("listener.stats");
+
+    public static final String SUFFIX = ".dl4j";
+
+    private final File directory;
+    private final String name;
+    private final int updatesPerFile;
+    private final int keepFiles;
+    private final Deque<File> files = new ArrayDeque<>();
+    private final List<StorageMetaData> metaData = new ArrayList<>();
+    private final List<Persistable> staticInfo = new ArrayList<>();
+
+    private FileStatsStorage storage;
+    private int number;
+    private int updates;
+
+    /**
+     * @param updatesPerFile    number of updates written into a file before the next one is started
+     * @param keepFiles         number of most recent files to keep
+     */
+    public RotatingFileStatsStorage(File directory, String name, int updatesPerFile, int keepFiles) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create stats directory: " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.name = name;
+        this.updatesPerFile = Math.max(updatesPerFile, 1);
+        this.keepFiles = Math.max(keepFiles, 1);
+
+        // files of previous runs are subject to retention as well
+        for (Map.Entry<Integer, File> entry : listFiles(directory, name).entrySet()) {
+            files.addLast(entry.getValue());
+            number = entry.getKey();
+        }
+    }
+
+    /**
+     * @return stats files of the given name ordered by number
+     */
+    public static TreeMap<Integer, File> listFiles(File directory, String name) {
+        Pattern pattern = Pattern.compile(Pattern.quote(name) + "-(\\d+)" + Pattern.quote(SUFFIX));
+        TreeMap<Integer, File> numbered = new TreeMap<>();
+        File[] existing = directory.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                Matcher matcher = pattern.matcher(file.getName());
+                if (matcher.matches()) {
+                    numbered.put(Integer.parseInt(matcher.group(1)), file);
+                }
+            }
+        }
+        return numbered;
+    }
+
+    @Override
+    public synchronized void putStorageMetaData(StorageMetaData storageMetaData) {
+        metaData.add(storageMetaData);
+        current().putStorageMetaData(storageMetaData);
+    }
+
+    @Override
+    public synchronized void putStorageMetaData(Collection<? extends StorageMetaData> storageMetaData) {
+        for (StorageMetaData m : storageMetaData) {
+            putStorageMetaData(m);
+        }
+    }
+
+    @Override
+    public synchronized void putStaticInfo(Persistable persistable) {
+        staticInfo.add(persistable);
+        current().putStaticInfo(persistable);
+    }
+
+    @Override
+    public synchronized void putStaticInfo(Collection<? extends Persistable> persistables) {
+        for (Persistable persistable : persistables) {
+            putStaticInfo(persistable);
+        }
+    }
+
+    @Override
+    public synchronized void putUpdate(Persistable persistable) {
+        if (updates >= updatesPerFile) {
+            rotate();
+        }
+        current().putUpdate(persistable);
+        updates++;
+    }
+
+    @Override
+    public synchronized void putUpdate(Collection<? extends Persistable> persistables) {
+        for (Persistable persistable : persistables) {
+            putUpdate(persistable);
+        }
+    }
+
+    private FileStatsStorage current() {
+        if (storage == null) {
+            rotate();
+        }
+        return storage;
+    }
+
+    private void rotate() {
+        closeStorage();
+        File file = new File(directory, name + "-" + (++number) + SUFFIX);
+        storage = new FileStatsStorage(file);
+        updates = 0;
+        storage.putStorageMetaData(metaData);
+        storage.putStaticInfo(staticInfo);
+        files.addLast(file);
+        while (files.size() > keepFiles) {
+            File oldest = files.removeFirst();
+            if (!oldest.delete()) {
+                log.warn("Cannot delete stats file: {}", oldest);
+            }
+        }
+        log.info("Writing stats to: {}", file);
+    }
+
+    private void closeStorage() {
+        if (storage != null) {
+            storage.close();
+            storage = null;
+        }
+    }
+
+    public synchronized void close() {
+        closeStorage();
+    }
+}
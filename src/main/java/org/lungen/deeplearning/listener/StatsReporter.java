@@ -0,0 +1,24 @@
+package org.lungen.deeplearning.listener;
+
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.deeplearning4j.optimize.api.TrainingListener;
+
+/**
+ * StatsReporter.
+ * Training listener reporting training stats to a storage, closed at the end of training.
+ *
+ */
+public interface StatsReporter extends TrainingListener {
+
+    void close();
+
+    /**
+     * Reporter of no stats, e.g. on headless nodes watched through training metrics.
+     */
+    class None extends BaseTrainingListener implements StatsReporter {
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -13,7 +13,7 @@ import org.slf4j.LoggerFactory;
  * and attaches it to UI Server.
  *
  */
-public class UIStatsListener extends StatsListener {
+public class UIStatsListener extends StatsListener implements StatsReporter {
 
     private static final Logger log = LoggerFactory.getLogger("listener.ui");
 
@@ -23,6 +23,7 @@ public class UIStatsListener extends StatsListener {
         uiServer.attach((InMemoryStatsStorage) getStorageRouter());
     }
 
+    @Override
     public void close() {
         InMemoryStatsStorage statsStorage = (InMemoryStatsStorage) getStorageRouter();
         try {
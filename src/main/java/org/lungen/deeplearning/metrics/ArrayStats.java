@@ -0,0 +1,125 @@
+package org.lungen.deeplearning.metrics;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * ArrayStats.
+ * Statistics of array elements - L2 norm, min/mean/max of absolute values, fractions of zeros,
+ * saturated and non-finite values - gathered in a single pass over the array buffer,
+ * instead of a separate reduction per statistic.
+ * Arrays are added with {@link #add(INDArray, Saturation)}, several arrays may be added
+ * between {@link #reset()} calls. Adding does not allocate unless the array has no
+ * element-wise stride, e.g. a non-contiguous view, which is copied.
+ *
+ */
+public class ArrayStats {
+
+    /**
+     * Range of saturated values of an activation function.
+     */
+    public enum Saturation {
+        /** saturation not counted */
+        NONE,
+        /** |x| >= 0.99, e.g. tanh */
+        SYMMETRIC,
+        /** x <= 0.01 or x >= 0.99, e.g. sigmoid */
+        UNIT
+    }
+
+    private static final double SATURATED = 0.99;
+
+    private long count;
+    private long zeros;
+    private long saturated;
+    private long nonFinite;
+    private double sumSquares;
+    private double sumAbs;
+    private double minAbs;
+    private double maxAbs;
+
+    public ArrayStats() {
+        reset();
+    }
+
+    public void reset() {
+        count = 0;
+        zeros = 0;
+        saturated = 0;
+        nonFinite = 0;
+        sumSquares = 0;
+        sumAbs = 0;
+        minAbs = Double.POSITIVE_INFINITY;
+        maxAbs = 0;
+    }
+
+    public void add(INDArray array, Saturation saturation) {
+        if (array == null || array.length() == 0) {
+            return;
+        }
+        long stride = array.elementWiseStride();
+        if (stride < 1) {
+            array = array.dup();
+            stride = 1;
+        }
+        // buffer of a view starts at the view offset
+        DataBuffer data = array.data();
+        long length = array.length();
+        for (long i = 0; i < length; i++) {
+            double x = data.getDouble(i * stride);
+            if (Double.isNaN(x) || Double.isInfinite(x)) {
+                nonFinite++;
+                continue;
+            }
+            double abs = Math.abs(x);
+            sumSquares += x * x;
+            sumAbs += abs;
+            if (abs < minAbs) {
+                minAbs = abs;
+            }
+            if (abs > maxAbs) {
+                maxAbs = abs;
+            }
+            if (x == 0) {
+                zeros++;
+            }
+            if (saturation == Saturation.SYMMETRIC && abs >= SATURATED
+                    || saturation == Saturation.UNIT && (x <= 1 - SATURATED || x >= SATURATED)) {
+                saturated++;
+            }
+        }
+        count += length;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getNorm() {
+        return Math.sqrt(sumSquares);
+    }
+
+    public double getMinAbs() {
+        return count > nonFinite ? minAbs : Double.NaN;
+    }
+
+    public double getMeanAbs() {
+        return count > nonFinite ? sumAbs / (count - nonFinite) : Double.NaN;
+    }
+
+    public double getMaxAbs() {
+        return count > nonFinite ? maxAbs : Double.NaN;
+    }
+
+    public double getZeroFraction() {
+        return count > 0 ? zeros / (double) count : Double.NaN;
+    }
+
+    public double getSaturatedFraction() {
+        return count > 0 ? saturated / (double) count : Double.NaN;
+    }
+
+    public long getNonFinite() {
+        return nonFinite;
+    }
+}
@@ -0,0 +1,123 @@
+package org.lungen.deeplearning.metrics;
+
+/**
+ * LayerHealth.
+ * Latest sampled gradient and activation statistics of a layer.
+ * Gradient statistics are per example, i.e. of the minibatch gradient divided by the number of examples.
+ *
+ */
+public class LayerHealth {
+
+    public enum Status {
+        OK,
+        /** gradient norm below the vanishing threshold */
+        VANISHING,
+        /** gradient norm above the exploding threshold, or NaN/infinite gradient */
+        EXPLODING
+    }
+
+    private final String layer;
+    private final String type;
+
+    private int iteration = -1;
+    private double gradientNorm = Double.NaN;
+    private double gradientMinAbs = Double.NaN;
+    private double gradientMeanAbs = Double.NaN;
+    private double gradientMaxAbs = Double.NaN;
+    private long gradientNonFinite;
+    private double activationMeanAbs = Double.NaN;
+    private double activationZeroFraction = Double.NaN;
+    private double activationSaturatedFraction = Double.NaN;
+    private Status status = Status.OK;
+
+    public LayerHealth(String layer, String type) {
+        this.layer = layer;
+        this.type = type;
+    }
+
+    /**
+     * @param examples number of examples the gradient is summed over
+     */
+    public void setGradient(int iteration, ArrayStats stats, long examples) {
+        double scale = examples > 0 ? 1.0 / examples : 1.0;
+        this.iteration = iteration;
+        this.gradientNorm = stats.getNorm() * scale;
+        this.gradientMinAbs = stats.getMinAbs() * scale;
+        this.gradientMeanAbs = stats.getMeanAbs() * scale;
+        this.gradientMaxAbs = stats.getMaxAbs() * scale;
+        this.gradientNonFinite = stats.getNonFinite();
+    }
+
+    public void setActivations(ArrayStats stats) {
+        this.activationMeanAbs = stats.getMeanAbs();
+        this.activationZeroFraction = stats.getZeroFraction();
+        this.activationSaturatedFraction = stats.getSaturatedFraction();
+    }
+
+    public Status check(double vanishingNorm, double explodingNorm) {
+        if (gradientNonFinite > 0 || gradientNorm > explodingNorm) {
+            status = Status.EXPLODING;
+        } else if (gradientNorm < vanishingNorm) {
+            status = Status.VANISHING;
+        } else {
+            status = Status.OK;
+        }
+        return status;
+    }
+
+    public String getLayer() {
+        return layer;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public double getGradientNorm() {
+        return gradientNorm;
+    }
+
+    public double getGradientMinAbs() {
+        return gradientMinAbs;
+    }
+
+    public double getGradientMeanAbs() {
+        return gradientMeanAbs;
+    }
+
+    public double getGradientMaxAbs() {
+        return gradientMaxAbs;
+    }
+
+    public long getGradientNonFinite() {
+        return gradientNonFinite;
+    }
+
+    public double getActivationMeanAbs() {
+        return activationMeanAbs;
+    }
+
+    public double getActivationZeroFraction() {
+        return activationZeroFraction;
+    }
+
+    public double getActivationSaturatedFraction() {
+        return activationSaturatedFraction;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s): gradient norm %.3e, |g| min/mean/max %.3e/%.3e/%.3e, "
+                        + "activations mean |a| %.3f, zeros %.1f%%, saturated %.1f%% - %s",
+                layer, type, gradientNorm, gradientMinAbs, gradientMeanAbs, gradientMaxAbs,
+                activationMeanAbs, activationZeroFraction * 100, activationSaturatedFraction * 100, status);
+    }
+}
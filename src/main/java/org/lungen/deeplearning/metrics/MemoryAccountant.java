@@ -0,0 +1,231 @@
+package org.lungen.deeplearning.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MemoryAccountant.
+ * Accounts native memory of training and inference phases - minibatch vectorization, fit,
+ * evaluation and sampling: off-heap memory allocated by ND4J through JavaCPP and physical memory
+ * (resident set) of the process are snapshot before and after each phase, e.g.
+ * <pre>
+ * MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+ * ...
+ * MemoryAccountant.get().record(Phase.FIT, before);
+ * </pre>
+ * Per phase the number of calls, average and maximum off-heap growth and peak usage are kept
+ * until {@link #report(int)}. Phases may run concurrently on different threads, e.g. prefetching
+ * and parallel evaluation, then growth of a phase includes allocations of the other threads.
+ * <p>
+ * Off-heap memory of released arrays is freed after garbage collection, so growth of off-heap usage
+ * between fits does not mean a leak. Leaks are detected on the baseline - minimum off-heap usage
+ * observed right after a garbage collection in a window of fits: if the baseline grows in each of
+ * the last windows, arrays are likely retained across iterations, and a warning is logged.
+ *
+ */
+public final class MemoryAccountant {
+
+    private static final Logger log = LoggerFactory.getLogger("metrics.memory");
+
+    public enum Phase {
+        VECTORIZATION,
+        FIT,
+        EVALUATION,
+        SAMPLING
+    }
+
+    private static final MemoryAccountant INSTANCE = new MemoryAccountant();
+
+    private static final double MB = 1024 * 1024;
+    private static final int LEAK_WINDOW_FITS = 100;
+    private static final int LEAK_WINDOWS = 5;
+    private static final long LEAK_MIN_GROWTH_BYTES = 16 * 1024 * 1024;
+
+    private final Map<Phase, PhaseUsage> usage = new EnumMap<>(Phase.class);
+    private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+
+    private volatile long offHeapBytes;
+    private volatile long physicalBytes;
+
+    // leak detection, fed by fits
+    private final RingBuffer baselines = new RingBuffer(LEAK_WINDOWS);
+    private long lastGcCount = -1;
+    private long windowBaseline = Long.MAX_VALUE;
+    private int windowFits;
+    private volatile long leakGrowthBytes;
+
+    private MemoryAccountant() {
+        for (Phase phase : Phase.values()) {
+            usage.put(phase, new PhaseUsage());
+        }
+    }
+
+    public static MemoryAccountant get() {
+        return INSTANCE;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(Pointer.totalBytes(), physicalBytes());
+    }
+
+    private static long physicalBytes() {
+        try {
+            return Pointer.physicalBytes();
+        } catch (UnsatisfiedLinkError e) {
+            // JavaCPP natives are not loaded until the first array is created
+            return 0;
+        }
+    }
+
+    /**
+     * Records memory usage after the phase started with the given snapshot.
+     *
+     * @return snapshot after the phase
+     */
+    public Snapshot record(Phase phase, Snapshot before) {
+        Snapshot after = snapshot();
+        offHeapBytes = after.offHeapBytes;
+        physicalBytes = after.physicalBytes;
+        usage.get(phase).add(before, after);
+        if (phase == Phase.FIT) {
+            trackBaseline(after.offHeapBytes);
+        }
+        return after;
+    }
+
+    /**
+     * @return off-heap memory allocated by ND4J after the latest recorded phase, bytes
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * @return physical memory of the process after the latest recorded phase, bytes
+     */
+    public long getPhysicalBytes() {
+        return physicalBytes;
+    }
+
+    /**
+     * @return growth of the off-heap baseline over the last windows of fits if it grows steadily, otherwise 0
+     */
+    public long getLeakGrowthBytes() {
+        return leakGrowthBytes;
+    }
+
+    /**
+     * Logs usage of the phases since the previous report and starts accounting of the next epoch.
+     */
+    public void report(int epoch) {
+        StringBuilder sb = new StringBuilder(String.format("[%d] Memory: off-heap %.1f MB, physical %.1f MB",
+                epoch, offHeapBytes / MB, physicalBytes / MB));
+        for (Phase phase : Phase.values()) {
+            usage.get(phase).appendTo(sb, phase);
+        }
+        log.info(sb.toString());
+    }
+
+    private synchronized void trackBaseline(long offHeapBytes) {
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gcBean : gcBeans) {
+            gcCount += Math.max(gcBean.getCollectionCount(), 0);
+        }
+        if (gcCount != lastGcCount) {
+            // released arrays are freed only by garbage collection
+            lastGcCount = gcCount;
+            windowBaseline = Math.min(windowBaseline, offHeapBytes);
+        }
+        if (++windowFits < LEAK_WINDOW_FITS) {
+            return;
+        }
+        if (windowBaseline != Long.MAX_VALUE) {
+            baselines.add(windowBaseline);
+            checkLeak();
+        }
+        windowFits = 0;
+        windowBaseline = Long.MAX_VALUE;
+    }
+
+    private void checkLeak() {
+        if (baselines.size() < baselines.capacity()) {
+            return;
+        }
+        for (int i = 1; i < baselines.size(); i++) {
+            if (baselines.get(i) <= baselines.get(i - 1)) {
+                leakGrowthBytes = 0;
+                return;
+            }
+        }
+        long growth = (long) (baselines.last() - baselines.get(0));
+        leakGrowthBytes = growth >= LEAK_MIN_GROWTH_BYTES ? growth : 0;
+        if (leakGrowthBytes > 0) {
+            log.warn(String.format("Off-heap memory after garbage collection grew by %.1f MB over the last %d fits, "
+                            + "arrays may be retained across iterations",
+                    growth / MB, (baselines.size() - 1) * LEAK_WINDOW_FITS));
+        }
+    }
+
+    /**
+     * Off-heap and physical memory usage at a point of time.
+     */
+    public static final class Snapshot {
+        private final long offHeapBytes;
+        private final long physicalBytes;
+
+        private Snapshot(long offHeapBytes, long physicalBytes) {
+            this.offHeapBytes = offHeapBytes;
+            this.physicalBytes = physicalBytes;
+        }
+
+        public long getOffHeapBytes() {
+            return offHeapBytes;
+        }
+
+        public long getPhysicalBytes() {
+            return physicalBytes;
+        }
+    }
+
+    private static final class PhaseUsage {
+        private long count;
+        private long offHeapGrowthSum;
+        private long offHeapGrowthMax = Long.MIN_VALUE;
+        private long physicalGrowthSum;
+        private long offHeapPeak;
+        private long physicalPeak;
+
+        synchronized void add(Snapshot before, Snapshot after) {
+            long offHeapGrowth = after.offHeapBytes - before.offHeapBytes;
+            count++;
+            offHeapGrowthSum += offHeapGrowth;
+            offHeapGrowthMax = Math.max(offHeapGrowthMax, offHeapGrowth);
+            physicalGrowthSum += after.physicalBytes - before.physicalBytes;
+            offHeapPeak = Math.max(offHeapPeak, Math.max(before.offHeapBytes, after.offHeapBytes));
+            physicalPeak = Math.max(physicalPeak, Math.max(before.physicalBytes, after.physicalBytes));
+        }
+
+        synchronized void appendTo(StringBuilder sb, Phase phase) {
+            if (count == 0) {
+                return;
+            }
+            sb.append(String.format("; %s: %d calls, off-heap growth %+.1f MB avg, %+.1f MB max, "
+                            + "physical growth %+.1f MB avg, peak off-heap %.1f MB, physical %.1f MB",
+                    phase.name().toLowerCase(), count, offHeapGrowthSum / MB / count, offHeapGrowthMax / MB,
+                    physicalGrowthSum / MB / count, offHeapPeak / MB, physicalPeak / MB));
+            count = 0;
+            offHeapGrowthSum = 0;
+            offHeapGrowthMax = Long.MIN_VALUE;
+            physicalGrowthSum = 0;
+            offHeapPeak = 0;
+            physicalPeak = 0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.lungen.deeplearning.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.ToDoubleFunction;
+
+import org.lungen.deeplearning.model.ModelPersistence;
+
+/**
+ * MetricsFileExporter.
+ * Rewrites files with training metrics, so that they can be watched and compared across runs
+ * without the UI server:
+ * <ul>
+ *     <li>name.prom - latest summary and per-layer health in Prometheus text format,
+ *     e.g. for node exporter textfile collector</li>
+ *     <li>name.csv - buffered per-iteration time series</li>
+ * </ul>
+ * Files are replaced atomically, readers never observe a partially written file.
+ *
+ */
+public class MetricsFileExporter {
+
+    private static final String PREFIX = "training_";
+
+    private final File promFile;
+    private final File csvFile;
+
+    public MetricsFileExporter(File directory, String name) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create metrics directory: " + directory.getAbsolutePath());
+        }
+        this.promFile = new File(directory, name + ".prom");
+        this.csvFile = new File(directory, name + ".csv");
+    }
+
+    public void export(TrainingMetrics metrics) {
+        write(promFile, prometheus(metrics));
+        write(csvFile, csv(metrics));
+    }
+
+    static String prometheus(TrainingMetrics metrics) {
+        String model = "model=\"" + escape(metrics.getModelName()) + "\"";
+        String labels = "{" + model + "}";
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, labels, "iteration", "Iteration number", metrics.getIteration());
+        gauge(sb, labels, "epoch", "Epoch number", metrics.getEpoch());
+        gauge(sb, labels, "score", "Minibatch score", metrics.getScore());
+        gauge(sb, labels, "millis_per_iteration", "Wall time per iteration, milliseconds", metrics.getMillisPerIteration());
+        gauge(sb, labels, "fit_millis_per_iteration", "Fit time per iteration, milliseconds", metrics.getFitMillisPerIteration());
+        gauge(sb, labels, "iterations_per_second", "Iterations per second", metrics.getIterationsPerSecond());
+        gauge(sb, labels, "examples_per_second", "Examples per second", metrics.getExamplesPerSecond());
+        gauge(sb, labels, "steps_per_second", "Time steps (characters) per second", metrics.getStepsPerSecond());
+        gauge(sb, labels, "epoch_eta_seconds", "Estimated time to the end of epoch, seconds", metrics.getEpochEtaSeconds());
+        gauge(sb, labels, "heap_used_bytes", "JVM heap used, bytes", metrics.getHeapUsedBytes());
+        gauge(sb, labels, "off_heap_bytes", "Off-heap memory allocated by ND4J, bytes", metrics.getOffHeapBytes());
+        gauge(sb, labels, "physical_bytes", "Physical memory (resident set) of the process, bytes",
+                metrics.getPhysicalBytes());
+        counter(sb, labels, "gc_count", "Garbage collections", metrics.getGcCount());
+        counter(sb, labels, "gc_millis", "Garbage collection time, milliseconds", metrics.getGcMillis());
+        gauge(sb, labels, "data_stall_ratio", "Share of the last epoch time spent waiting for minibatches",
+                metrics.getDataStallRatio());
+
+        List<LayerHealth> layers = metrics.getLayerHealth();
+        if (!layers.isEmpty()) {
+            layerGauge(sb, model, layers, "layer_gradient_norm", "Gradient L2 norm per example",
+                    LayerHealth::getGradientNorm);
+            layerGauge(sb, model, layers, "layer_gradient_min_abs", "Minimum absolute gradient per example",
+                    LayerHealth::getGradientMinAbs);
+            layerGauge(sb, model, layers, "layer_gradient_mean_abs", "Mean absolute gradient per example",
+                    LayerHealth::getGradientMeanAbs);
+            layerGauge(sb, model, layers, "layer_gradient_max_abs", "Maximum absolute gradient per example",
+                    LayerHealth::getGradientMaxAbs);
+            layerGauge(sb, model, layers, "layer_activation_mean_abs", "Mean absolute activation",
+                    LayerHealth::getActivationMeanAbs);
+            layerGauge(sb, model, layers, "layer_activation_zero_fraction", "Fraction of zero activations",
+                    LayerHealth::getActivationZeroFraction);
+            layerGauge(sb, model, layers, "layer_activation_saturated_fraction", "Fraction of saturated activations",
+                    LayerHealth::getActivationSaturatedFraction);
+            layerGauge(sb, model, layers, "layer_unhealthy", "1 if gradient is vanishing or exploding, otherwise 0",
+                    health -> health.getStatus() != LayerHealth.Status.OK ? 1 : 0);
+        }
+        return sb.toString();
+    }
+
+    private static void layerGauge(StringBuilder sb, String model, List<LayerHealth> layers,
+                                   String name, String help, ToDoubleFunction<LayerHealth> value) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+        for (LayerHealth health : layers) {
+            sb.append(PREFIX).append(name).append('{').append(model)
+                    .append(",layer=\"").append(escape(health.getLayer())).append("\"} ")
+                    .append(formatScientific(value.applyAsDouble(health))).append('\n');
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void gauge(StringBuilder sb, String labels, String name, String help, double value) {
+        metric(sb, labels, name, help, "gauge", value);
+    }
+
+    private static void counter(StringBuilder sb, String labels, String name, String help, double value) {
+        metric(sb, labels, name + "_total", help, "counter", value);
+    }
+
+    private static void metric(StringBuilder sb, String labels, String name, String help, String type, double value) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        sb.append(PREFIX).append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    static String csv(TrainingMetrics metrics) {
+        TrainingMetrics.Series[] series = TrainingMetrics.Series.values();
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < series.length; s++) {
+            sb.append(s > 0 ? "," : "").append(series[s].getColumn());
+        }
+        sb.append('\n');
+        int rows = metrics.series(series[0]).size();
+        for (int row = 0; row < rows; row++) {
+            for (int s = 0; s < series.length; s++) {
+                sb.append(s > 0 ? "," : "").append(format(metrics.series(series[s]).get(row)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value)
+                : String.format(Locale.ROOT, "%.4f", value);
+    }
+
+    // gradients may be far below the fixed-point precision
+    private static String formatScientific(double value) {
+        return Double.isNaN(value) ? "NaN" : String.format(Locale.ROOT, "%.6e", value);
+    }
+
+    private static void write(File file, String content) {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            Files.write(tempFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            ModelPersistence.moveAtomically(tempFile, file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write metrics: " + file.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.lungen.deeplearning.metrics;
+
+/**
+ * RingBuffer.
+ * Fixed capacity buffer of primitive values, the oldest value is overwritten
+ * when the buffer is full. Adding a value does not allocate.
+ * <p>
+ * Not thread-safe.
+ *
+ */
+public class RingBuffer {
+
+    private final double[] values;
+    private int next;
+    private int size;
+
+    public RingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.values = new double[capacity];
+    }
+
+    public void add(double value) {
+        values[next] = value;
+        next = (next + 1) % values.length;
+        if (size < values.length) {
+            size++;
+        }
+    }
+
+    /**
+     * @param index 0 for the oldest value, size() - 1 for the latest
+     */
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return values[(next - size + index + values.length) % values.length];
+    }
+
+    public double last() {
+        return size > 0 ? get(size - 1) : Double.NaN;
+    }
+
+    /**
+     * @return sum of the latest count values
+     */
+    public double sumLast(int count) {
+        int n = Math.min(count, size);
+        double sum = 0;
+        for (int i = size - n; i < size; i++) {
+            sum += get(i);
+        }
+        return sum;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public void clear() {
+        next = 0;
+        size = 0;
+    }
+}
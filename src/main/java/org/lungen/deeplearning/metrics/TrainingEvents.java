@@ -0,0 +1,156 @@
+package org.lungen.deeplearning.metrics;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+/**
+ * TrainingEvents.
+ * Java Flight Recorder events of training and inference phases: minibatch vectorization, fit,
+ * evaluation, checkpoint save, model load and sampling. Events carry duration, batch size
+ * and sequence length, so that a recording shows them next to GC and allocation events, e.g.
+ * <pre>
+ * java -XX:StartFlightRecording=duration=10m,filename=training.jfr ...
+ * jfr print --categories "Deep Learning" training.jfr
+ * </pre>
+ * When no recording is running, an event costs an allocation the JIT usually eliminates;
+ * fields that are expensive to compute should be set only if {@link Event#shouldCommit()}.
+ * Events are linked into training and inference paths, hence Java 11 is required.
+ *
+ */
+public final class TrainingEvents {
+
+    private static final String CATEGORY = "Deep Learning";
+
+    private TrainingEvents() {
+    }
+
+    /**
+     * Event of a minibatch of shape [batch, features] or [batch, features, steps].
+     */
+    @StackTrace(false)
+    public abstract static class BatchEvent extends Event {
+
+        @Label("Batch Size")
+        public int batchSize;
+
+        @Label("Sequence Length")
+        @Description("Time steps of sequences, 1 for non-sequence data")
+        public int sequenceLength;
+
+        public void setShape(INDArray features) {
+            if (features != null) {
+                batchSize = (int) features.size(0);
+                sequenceLength = features.rank() == 3 ? (int) features.size(2) : 1;
+            }
+        }
+    }
+
+    @Name("org.lungen.deeplearning.Vectorization")
+    @Label("Minibatch Vectorization")
+    @Category({CATEGORY, "Training"})
+    public static class Vectorization extends BatchEvent {
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("org.lungen.deeplearning.Fit")
+    @Label("Fit")
+    @Description("Gradient of a minibatch and, unless gradients are accumulated, updater step")
+    @Category({CATEGORY, "Training"})
+    public static class Fit extends BatchEvent {
+
+        @Label("Parameters Updated")
+        public boolean updated;
+    }
+
+    @Name("org.lungen.deeplearning.Evaluation")
+    @Label("Evaluation")
+    @Category({CATEGORY, "Training"})
+    public static class Evaluation extends BatchEvent {
+
+        @Label("Evaluator")
+        public String evaluator;
+
+        @Label("Batches")
+        public int batches;
+
+        @Label("Examples")
+        public long examples;
+
+        /**
+         * Ends and commits the event of evaluation of the batches, shape is the one of the first batch.
+         */
+        public void commit(String evaluator, List<DataSet> batches) {
+            end();
+            if (shouldCommit()) {
+                this.evaluator = evaluator;
+                this.batches = batches.size();
+                for (DataSet batch : batches) {
+                    examples += batch.numExamples();
+                }
+                if (!batches.isEmpty()) {
+                    setShape(batches.get(0).getFeatures());
+                }
+                commit();
+            }
+        }
+    }
+
+    @Name("org.lungen.deeplearning.CheckpointSave")
+    @Label("Checkpoint Save")
+    @Description("Model with updater state and attachments written to files")
+    @Category({CATEGORY, "Model"})
+    @StackTrace(false)
+    public static class CheckpointSave extends Event {
+
+        @Label("File")
+        public String file;
+
+        @Label("Parameters")
+        public long parameters;
+    }
+
+    @Name("org.lungen.deeplearning.ModelLoad")
+    @Label("Model Load")
+    @Category({CATEGORY, "Model"})
+    @StackTrace(false)
+    public static class ModelLoad extends Event {
+
+        @Label("File")
+        public String file;
+
+        @Label("Model Type")
+        public String modelType;
+
+        @Label("Parameters")
+        public long parameters;
+    }
+
+    @Name("org.lungen.deeplearning.Sampling")
+    @Label("Sampling")
+    @Description("Characters sampled from a generator network, batch size is the number of samples")
+    @Category({CATEGORY, "Inference"})
+    public static class Sampling extends BatchEvent {
+
+        @Label("Initialization Length")
+        public int initializationLength;
+
+        @Label("Temperature")
+        public double temperature;
+
+        @Label("Sampling Strategy")
+        public String strategy;
+    }
+}
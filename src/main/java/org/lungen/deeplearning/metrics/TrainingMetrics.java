@@ -0,0 +1,262 @@
+package org.lungen.deeplearning.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * TrainingMetrics.
+ * Time series of per-iteration training metrics kept in ring buffers of a fixed capacity.
+ * <p>
+ * Values of an iteration are staged with {@link #set(Series, double)} and added to the
+ * buffers by {@link #commit()}, which also updates the summary published through JMX.
+ * Recording does not allocate. Buffers are written and exported by the training thread,
+ * summary getters may be called from any thread.
+ * <p>
+ * Sampled per-layer gradient and activation statistics are kept as the latest {@link LayerHealth}
+ * of each layer.
+ *
+ */
+public class TrainingMetrics implements TrainingMetricsMXBean {
+
+    public static final int DEFAULT_CAPACITY    = 4096;
+    public static final int DEFAULT_RATE_WINDOW = 20;
+
+    public enum Series {
+        TIMESTAMP_MILLIS    ("timestamp_millis",    "Time of the end of iteration, milliseconds since epoch"),
+        ITERATION           ("iteration",           "Iteration number"),
+        EPOCH               ("epoch",               "Epoch number"),
+        ITERATION_MILLIS    ("iteration_millis",    "Wall time since the end of previous iteration, milliseconds"),
+        FIT_MILLIS          ("fit_millis",          "Time from the first forward pass to the end of iteration, milliseconds"),
+        EXAMPLES            ("examples",            "Examples in iteration"),
+        STEPS               ("steps",               "Time steps (characters) in iteration"),
+        SCORE               ("score",               "Minibatch score"),
+        HEAP_USED_BYTES     ("heap_used_bytes",     "JVM heap used, bytes"),
+        OFF_HEAP_BYTES      ("off_heap_bytes",      "Off-heap memory allocated by ND4J, bytes"),
+        PHYSICAL_BYTES      ("physical_bytes",      "Physical memory (resident set) of the process, bytes"),
+        GC_COUNT            ("gc_count",            "Garbage collections since start"),
+        GC_MILLIS           ("gc_millis",           "Garbage collection time since start, milliseconds");
+
+        private final String column;
+        private final String help;
+
+        Series(String column, String help) {
+            this.column = column;
+            this.help = help;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+    }
+
+    private final String modelName;
+    private final int rateWindow;
+    private final RingBuffer[] buffers;
+    private final double[] staged;
+
+    private int lastEpoch = -1;
+    private int iterationsInEpoch;
+    private volatile int iterationsPerEpoch;
+
+    private volatile int iteration;
+    private volatile int epoch;
+    private volatile double score = Double.NaN;
+    private volatile double millisPerIteration = Double.NaN;
+    private volatile double fitMillisPerIteration = Double.NaN;
+    private volatile double examplesPerSecond = Double.NaN;
+    private volatile double stepsPerSecond = Double.NaN;
+    private volatile double epochEtaSeconds = -1;
+    private volatile long heapUsedBytes;
+    private volatile long offHeapBytes;
+    private volatile long physicalBytes;
+    private volatile long gcCount;
+    private volatile long gcMillis;
+    private volatile String unhealthyLayers = "";
+    private volatile double dataStallRatio = Double.NaN;
+
+    private List<LayerHealth> layerHealth = Collections.emptyList();
+
+    public TrainingMetrics(String modelName) {
+        this(modelName, DEFAULT_CAPACITY, DEFAULT_RATE_WINDOW);
+    }
+
+    /**
+     * @param capacity      number of latest iterations kept
+     * @param rateWindow    number of latest iterations rates are averaged over
+     */
+    public TrainingMetrics(String modelName, int capacity, int rateWindow) {
+        this.modelName = modelName;
+        this.rateWindow = rateWindow;
+        this.buffers = new RingBuffer[Series.values().length];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new RingBuffer(capacity);
+        }
+        this.staged = new double[buffers.length];
+    }
+
+    public void set(Series series, double value) {
+        staged[series.ordinal()] = value;
+    }
+
+    /**
+     * Adds staged values of iteration to the series.
+     */
+    public void commit() {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].add(staged[i]);
+        }
+
+        int currentEpoch = (int) staged[Series.EPOCH.ordinal()];
+        if (currentEpoch != lastEpoch) {
+            // length of a completed epoch is the estimate for the next ones
+            if (lastEpoch >= 0 && iterationsPerEpoch <= 0) {
+                iterationsPerEpoch = iterationsInEpoch;
+            }
+            lastEpoch = currentEpoch;
+            iterationsInEpoch = 0;
+        }
+        iterationsInEpoch++;
+
+        double windowMillis = series(Series.ITERATION_MILLIS).sumLast(rateWindow);
+        int window = Math.min(rateWindow, series(Series.ITERATION_MILLIS).size());
+        iteration = (int) staged[Series.ITERATION.ordinal()];
+        epoch = currentEpoch;
+        score = staged[Series.SCORE.ordinal()];
+        millisPerIteration = windowMillis / window;
+        fitMillisPerIteration = series(Series.FIT_MILLIS).sumLast(rateWindow) / window;
+        examplesPerSecond = rate(series(Series.EXAMPLES).sumLast(rateWindow), windowMillis);
+        stepsPerSecond = rate(series(Series.STEPS).sumLast(rateWindow), windowMillis);
+        epochEtaSeconds = iterationsPerEpoch > 0
+                ? Math.max(iterationsPerEpoch - iterationsInEpoch, 0) * millisPerIteration / 1000
+                : -1;
+        heapUsedBytes = (long) staged[Series.HEAP_USED_BYTES.ordinal()];
+        offHeapBytes = (long) staged[Series.OFF_HEAP_BYTES.ordinal()];
+        physicalBytes = (long) staged[Series.PHYSICAL_BYTES.ordinal()];
+        gcCount = (long) staged[Series.GC_COUNT.ordinal()];
+        gcMillis = (long) staged[Series.GC_MILLIS.ordinal()];
+    }
+
+    private static double rate(double count, double millis) {
+        return millis > 0 ? count * 1000 / millis : Double.NaN;
+    }
+
+    public RingBuffer series(Series series) {
+        return buffers[series.ordinal()];
+    }
+
+    /**
+     * @param iterationsPerEpoch known epoch length, otherwise length of the first epoch is used
+     */
+    public void setIterationsPerEpoch(int iterationsPerEpoch) {
+        this.iterationsPerEpoch = iterationsPerEpoch;
+    }
+
+    /**
+     * @param layerHealth latest statistics of layers, checked against thresholds
+     */
+    public void setLayerHealth(List<LayerHealth> layerHealth) {
+        this.layerHealth = layerHealth;
+        this.unhealthyLayers = layerHealth.stream()
+                .filter(health -> health.getStatus() != LayerHealth.Status.OK)
+                .map(health -> health.getLayer() + ":" + health.getStatus())
+                .collect(Collectors.joining(","));
+    }
+
+    public List<LayerHealth> getLayerHealth() {
+        return layerHealth;
+    }
+
+    public void setDataStallRatio(double dataStallRatio) {
+        this.dataStallRatio = dataStallRatio;
+    }
+
+    @Override
+    public String getModelName() {
+        return modelName;
+    }
+
+    @Override
+    public int getIteration() {
+        return iteration;
+    }
+
+    @Override
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public double getMillisPerIteration() {
+        return millisPerIteration;
+    }
+
+    @Override
+    public double getFitMillisPerIteration() {
+        return fitMillisPerIteration;
+    }
+
+    @Override
+    public double getIterationsPerSecond() {
+        return rate(1, millisPerIteration);
+    }
+
+    @Override
+    public double getExamplesPerSecond() {
+        return examplesPerSecond;
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        return stepsPerSecond;
+    }
+
+    @Override
+    public double getEpochEtaSeconds() {
+        return epochEtaSeconds;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    @Override
+    public long getPhysicalBytes() {
+        return physicalBytes;
+    }
+
+    @Override
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    @Override
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    @Override
+    public String getUnhealthyLayers() {
+        return unhealthyLayers;
+    }
+
+    @Override
+    public double getDataStallRatio() {
+        return dataStallRatio;
+    }
+}
@@ -0,0 +1,53 @@
+package org.lungen.deeplearning.metrics;
+
+/**
+ * TrainingMetricsMXBean.
+ * Latest training throughput and resource metrics published through JMX.
+ * Rates are averaged over a window of recent iterations.
+ *
+ */
+public interface TrainingMetricsMXBean {
+
+    String getModelName();
+
+    int getIteration();
+
+    int getEpoch();
+
+    double getScore();
+
+    double getMillisPerIteration();
+
+    double getFitMillisPerIteration();
+
+    double getIterationsPerSecond();
+
+    double getExamplesPerSecond();
+
+    double getStepsPerSecond();
+
+    /**
+     * @return estimated seconds to the end of the current epoch, -1 if the epoch length is not known yet
+     */
+    double getEpochEtaSeconds();
+
+    long getHeapUsedBytes();
+
+    long getOffHeapBytes();
+
+    long getPhysicalBytes();
+
+    long getGcCount();
+
+    long getGcMillis();
+
+    /**
+     * @return layers with vanishing or exploding gradients in the latest sample, as layer:status list
+     */
+    String getUnhealthyLayers();
+
+    /**
+     * @return share of the last epoch's waiting plus fit time spent waiting for minibatches
+     */
+    double getDataStallRatio();
+}
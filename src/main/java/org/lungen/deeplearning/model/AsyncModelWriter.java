@@ -0,0 +1,252 @@
+package org.lungen.deeplearning.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.util.ModelSerializer;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AsyncModelWriter.
+ * Writes models to disk on a background thread.
+ * <p>
+ * On the calling (training) thread only a snapshot is taken: parameters and
+ * updater state are copied into a shadow copy of the model allocated once
+ * and reused for every write. Serialization, compression and file I/O are
+ * done in background. Each file is written under a temporary name and
+ * atomically renamed, attachments first and the model file last.
+ * <p>
+ * Written files are subject to retention policy: the last K and the best K
+ * (lowest score) model files are kept, others are deleted with their attachments.
+ *
+ */
+public class AsyncModelWriter {
+
+    private static final Logger log = LoggerFactory.getLogger("model.writer");
+
+    private final File directory;
+    private final int keepLast;
+    private final int keepBest;
+    private final boolean saveUpdater;
+
+    private final ModelSnapshot snapshot = new ModelSnapshot();
+    private final ExecutorService executor;
+    private Future<?> pending;
+
+    // model files written so far, guarded by itself
+    private final List<Written> written = new ArrayList<>();
+    private long sequence;
+
+    /**
+     * Content written next to the model file.
+     */
+    public interface Attachment {
+
+        void writeTo(File file) throws IOException;
+
+        static Attachment bytes(byte[] bytes) {
+            return file -> Files.write(file.toPath(), bytes);
+        }
+
+        /**
+         * Model that is not modified after it is passed to the writer, e.g. a clone.
+         */
+        static Attachment model(Model model) {
+            return file -> ModelSerializer.writeModel(model, file, false);
+        }
+
+        /**
+         * Array that is not modified after it is passed to the writer, e.g. a copy.
+         */
+        static Attachment array(INDArray array) {
+            return file -> {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                    Nd4j.write(array, out);
+                }
+            };
+        }
+    }
+
+    /**
+     * @param directory     directory for model files, created if missing
+     * @param keepLast      number of most recent model files to keep
+     * @param keepBest      number of model files with lowest score to keep
+     * @param saveUpdater   whether to save updater state with the model
+     */
+    public AsyncModelWriter(File directory, int keepLast, int keepBest, boolean saveUpdater) {
+        this.directory = directory;
+        this.keepLast = keepLast;
+        this.keepBest = keepBest;
+        this.saveUpdater = saveUpdater;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a model file written before, e.g. by previous run,
+     * so that it is subject to retention policy.
+     */
+    public synchronized void track(String fileName, double score, String... attachmentNames) {
+        synchronized (written) {
+            written.removeIf(w -> w.fileName.equals(fileName));
+            written.add(new Written(sequence++, fileName, score, attachmentNames));
+        }
+    }
+
+    public void write(Model model, String fileName, double score) {
+        write(model, fileName, score, new LinkedHashMap<>());
+    }
+
+    /**
+     * Takes snapshot of the model and schedules writing.
+     * If previous write is still in progress, waits for it to complete,
+     * since the snapshot buffers are reused.
+     *
+     * @param attachments   files written next to the model file, file name -> content
+     */
+    public synchronized void write(Model model, String fileName, double score, Map<String, Attachment> attachments) {
+        awaitCompletion();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory: " + directory.getAbsolutePath());
+        }
+        long startNano = System.nanoTime();
+        Model copy = snapshot.update(model, saveUpdater);
+        log.debug("Model snapshot taken in {} ms", (System.nanoTime() - startNano) / 1e+6);
+        long number = sequence++;
+        pending = executor.submit(() -> writeFiles(number, copy, fileName, score, attachments));
+    }
+
+    /**
+     * Waits until scheduled write is completed.
+     */
+    public synchronized void awaitCompletion() {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Model writing failed", e.getCause());
+        }
+        pending = null;
+    }
+
+    /**
+     * Completes scheduled write and stops the writer thread.
+     */
+    public synchronized void close() {
+        awaitCompletion();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFiles(long number, Model model, String fileName, double score, Map<String, Attachment> attachments) {
+        long startNano = System.nanoTime();
+        TrainingEvents.CheckpointSave event = new TrainingEvents.CheckpointSave();
+        event.begin();
+        File modelFile = new File(directory, fileName);
+        try {
+            for (Map.Entry<String, Attachment> attachment : attachments.entrySet()) {
+                File file = new File(directory, attachment.getKey());
+                File temp = ModelPersistence.tempFile(file);
+                attachment.getValue().writeTo(temp);
+                ModelPersistence.moveAtomically(temp, file);
+            }
+            File temp = ModelPersistence.tempFile(modelFile);
+            ModelSerializer.writeModel(model, temp, saveUpdater);
+            ModelPersistence.moveAtomically(temp, modelFile);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write model: " + modelFile.getAbsolutePath(), e);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = modelFile.getPath();
+            event.parameters = model.numParams();
+            event.commit();
+        }
+        log.info("Model saved: {} in {} seconds", modelFile, (System.nanoTime() - startNano) / 1e+9);
+
+        synchronized (written) {
+            // the file replaced the one written before under the same name, which must not be deleted by retention
+            written.removeIf(w -> w.fileName.equals(fileName));
+            written.add(new Written(number, fileName, score, attachments.keySet().toArray(new String[0])));
+            applyRetention();
+        }
+    }
+
+    private void applyRetention() {
+        if (keepLast <= 0 && keepBest <= 0) {
+            return;
+        }
+        Set<Written> keep = new HashSet<>();
+        written.stream()
+                .sorted(Comparator.comparingLong((Written w) -> w.number).reversed())
+                .limit(Math.max(keepLast, 0))
+                .forEach(keep::add);
+        written.stream()
+                .sorted(Comparator.comparingDouble((Written w) -> w.score))
+                .limit(Math.max(keepBest, 0))
+                .forEach(keep::add);
+
+        List<Written> removed = new ArrayList<>(written);
+        removed.removeAll(keep);
+        for (Written w : removed) {
+            // model file first: it marks the set of files as complete
+            delete(new File(directory, w.fileName));
+            for (String attachmentName : w.attachmentNames) {
+                delete(new File(directory, attachmentName));
+            }
+            written.remove(w);
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete old model file: {}", file);
+        }
+    }
+
+    private static final class Written {
+        private final long number;
+        private final String fileName;
+        private final double score;
+        private final String[] attachmentNames;
+
+        private Written(long number, String fileName, double score, String[] attachmentNames) {
+            this.number = number;
+            this.fileName = fileName;
+            this.score = score;
+            this.attachmentNames = attachmentNames;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.lungen.deeplearning.model;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CheckpointManager.
+ * Periodically writes resumable training checkpoints and restores the latest one.
+ * <p>
+ * Each training run writes checkpoints to its own subdirectory run-yyyyMMdd-HHmmss of the checkpoint
+ * directory, so that checkpoints of a new run do not collide with equally numbered checkpoints of previous
+ * runs. A resumed run continues in the subdirectory of the latest run with a complete checkpoint.
+ * <p>
+ * Checkpoint number N consists of files in the run directory:
+ * <ul>
+ *     <li>checkpoint-N.state - serialized {@link TrainingState}</li>
+ *     <li>checkpoint-N-best.bin - flat parameters of the best model so far (optional)</li>
+ *     <li>checkpoint-N.zip - model with updater state</li>
+ * </ul>
+ * Checkpoints are written in background by {@link AsyncModelWriter},
+ * the model file is renamed last, so a checkpoint is complete if its model file exists.
+ * Old checkpoints of the run are removed according to retention policy (keep last K / best K),
+ * best checkpoints are ranked by the score passed on save, e.g. smoothed or validation score.
+ *
+ */
+public class CheckpointManager {
+
+    private static final Logger log = LoggerFactory.getLogger("model.checkpoint");
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX_MODEL = ".zip";
+    private static final String SUFFIX_BEST = "-best.bin";
+    private static final String SUFFIX_STATE = ".state";
+    private static final Pattern MODEL_FILE = Pattern.compile(PREFIX + "(\\d+)\\.zip");
+    private static final String RUN_PREFIX = "run-";
+
+    private final File directory;
+    private final int checkpointEachNumberMinibatches;
+    private final AsyncModelWriter writer;
+
+    /**
+     * @param directory                         directory for checkpoint files, created if missing
+     * @param checkpointEachNumberMinibatches   checkpoint frequency, non-positive value disables checkpoints
+     */
+    public CheckpointManager(File directory, int checkpointEachNumberMinibatches) {
+        this(directory, checkpointEachNumberMinibatches, 1, 0, false);
+    }
+
+    /**
+     * @param directory                         directory for checkpoint files, created if missing
+     * @param checkpointEachNumberMinibatches   checkpoint frequency, non-positive value disables checkpoints
+     * @param keepLast                          number of most recent checkpoints to keep
+     * @param keepBest                          number of checkpoints with lowest score to keep
+     * @param resume                            whether to continue the latest run with a complete checkpoint,
+     *                                          otherwise a new run is started
+     */
+    public CheckpointManager(File directory, int checkpointEachNumberMinibatches, int keepLast, int keepBest,
+                             boolean resume) {
+        File resumedRun = resume ? latestRun(directory) : null;
+        this.directory = resumedRun != null ? resumedRun : newRun(directory);
+        this.checkpointEachNumberMinibatches = checkpointEachNumberMinibatches;
+        this.writer = new AsyncModelWriter(this.directory, Math.max(keepLast, 1), keepBest, true);
+        if (checkpointEachNumberMinibatches > 0 && !this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory: " + this.directory.getAbsolutePath());
+        }
+
+        // earlier checkpoints of the resumed run are subject to retention as well
+        String[] names = resumedRun != null ? resumedRun.list() : null;
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                Matcher matcher = MODEL_FILE.matcher(name);
+                if (matcher.matches()) {
+                    int number = Integer.parseInt(matcher.group(1));
+                    writer.track(name, Double.MAX_VALUE,
+                            file(number, SUFFIX_BEST).getName(), file(number, SUFFIX_STATE).getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return directory of checkpoints of this run
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean isCheckpointDue(int miniBatchNumber) {
+        return checkpointEachNumberMinibatches > 0 && miniBatchNumber % checkpointEachNumberMinibatches == 0;
+    }
+
+    /**
+     * Takes snapshot of the model and training state and writes checkpoint in background.
+     *
+     * @param bestParams flat parameters of the best model so far, copied on the call, may be null
+     * @param score      score ranking the checkpoint for keep-best retention, lower is better, e.g. smoothed
+     *                   training score or validation score rather than the noisy score of the last minibatch.
+     *                   NaN if there is no score yet
+     */
+    public void save(Model model, INDArray bestParams, TrainingState state, double score) {
+        int number = state.getMiniBatchNumber();
+        Map<String, AsyncModelWriter.Attachment> attachments = new LinkedHashMap<>();
+        attachments.put(file(number, SUFFIX_STATE).getName(), AsyncModelWriter.Attachment.bytes(state.toBytes()));
+        if (bestParams != null) {
+            attachments.put(file(number, SUFFIX_BEST).getName(), AsyncModelWriter.Attachment.array(bestParams.dup()));
+        }
+        writer.write(model, file(number, SUFFIX_MODEL).getName(), Double.isNaN(score) ? Double.MAX_VALUE : score,
+                attachments);
+        log.info("Checkpoint scheduled: {} ({})", file(number, SUFFIX_MODEL), state);
+    }
+
+    /**
+     * Completes writing of the last checkpoint.
+     */
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * @return state of the latest complete checkpoint or null if there is none
+     */
+    public TrainingState latestState() {
+        int number = latestNumber(directory);
+        if (number < 0) {
+            return null;
+        }
+        File stateFile = file(number, SUFFIX_STATE);
+        try {
+            TrainingState state = TrainingState.fromBytes(Files.readAllBytes(stateFile.toPath()));
+            log.info("Found checkpoint: {} ({})", file(number, SUFFIX_MODEL), state);
+            return state;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read checkpoint state: " + stateFile.getAbsolutePath(), e);
+        }
+    }
+
+    public MultiLayerNetwork restoreNet(TrainingState state) {
+        File file = file(state.getMiniBatchNumber(), SUFFIX_MODEL);
+        try {
+            return ModelSerializer.restoreMultiLayerNetwork(file, true);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot restore checkpoint: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    public ComputationGraph restoreGraph(TrainingState state) {
+        File file = file(state.getMiniBatchNumber(), SUFFIX_MODEL);
+        try {
+            return ModelSerializer.restoreComputationGraph(file, true);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot restore checkpoint: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return flat parameters of the best model saved with the checkpoint or null if there are none
+     */
+    public INDArray restoreBestParams(TrainingState state) {
+        File file = file(state.getMiniBatchNumber(), SUFFIX_BEST);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return Nd4j.read(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot restore checkpoint: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static int latestNumber(File directory) {
+        String[] names = directory.list();
+        int latest = -1;
+        if (names == null) {
+            return latest;
+        }
+        for (String name : names) {
+            Matcher matcher = MODEL_FILE.matcher(name);
+            if (matcher.matches() && new File(directory, PREFIX + matcher.group(1) + SUFFIX_STATE).isFile()) {
+                latest = Math.max(latest, Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return run directory with a complete checkpoint, which was started last, or null if there is none
+     */
+    private static File latestRun(File directory) {
+        File[] runs = directory.listFiles(file -> file.isDirectory() && file.getName().startsWith(RUN_PREFIX));
+        if (runs == null) {
+            return null;
+        }
+        // names of runs started later are greater
+        Arrays.sort(runs);
+        for (int i = runs.length - 1; i >= 0; i--) {
+            if (latestNumber(runs[i]) >= 0) {
+                return runs[i];
+            }
+        }
+        return null;
+    }
+
+    private static File newRun(File directory) {
+        String name = RUN_PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File run = new File(directory, name);
+        for (int i = 2; run.exists(); i++) {
+            run = new File(directory, name + "-" + i);
+        }
+        return run;
+    }
+
+    private File file(int number, String suffix) {
+        return new File(directory, PREFIX + number + suffix);
+    }
+}
@@ -2,6 +2,9 @@ package org.lungen.deeplearning.model;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
@@ -11,6 +14,7 @@ import org.deeplearning4j.nn.api.Model;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
+import org.lungen.deeplearning.metrics.TrainingEvents;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,10 +44,26 @@ public class ModelPersistence {
         return new File(System.getProperty("user.dir"));
     }
 
+    /**
+     * Relative file names are resolved against the current directory.
+     */
+    private static File resolve(String fileName) {
+        File file = new File(fileName);
+        return file.isAbsolute() ? file : new File(getCurrentDir(), fileName);
+    }
+
     public static void save(String name, Model model) {
+        save(name, model, model.score());
+    }
+
+    /**
+     * @param modelScore score put into the file name, e.g. when the model score
+     *              is not set or not representative
+     */
+    public static void save(String name, Model model, double modelScore) {
         log.info("Saving Model...");
         String date = DATE_FORMAT.format(new Date());
-        String score = NUMBER_FORMAT.format(model.score());
+        String score = NUMBER_FORMAT.format(modelScore);
 
         String modelName = name != null ? name : "unknown";
 
@@ -51,7 +71,9 @@ public class ModelPersistence {
         File file = new File(getCurrentDir(), fileName);
 
         try {
-            ModelSerializer.writeModel(model, file, true);
+            File tempFile = tempFile(file);
+            ModelSerializer.writeModel(model, tempFile, true);
+            moveAtomically(tempFile, file);
             log.info("Model saved: " + file);
         } catch (Exception e) {
             throw new IllegalStateException("Cannot save model: " + file.getAbsolutePath(), e);
@@ -60,11 +82,14 @@ public class ModelPersistence {
 
     public static ComputationGraph loadGraph(String fileName) {
         long startNano = System.nanoTime();
-        File file = new File(getCurrentDir(), fileName);
+        File file = resolve(fileName);
         log.info("Loading Model... " + file.getAbsolutePath());
 
+        TrainingEvents.ModelLoad event = new TrainingEvents.ModelLoad();
+        event.begin();
         try {
             ComputationGraph graph = ModelSerializer.restoreComputationGraph(file);
+            commit(event, file, graph);
             log.info("Model loaded in: " + ((System.nanoTime() - startNano)/NANOS_IN_SECOND) + " seconds");
             return graph;
         } catch (IOException e) {
@@ -74,15 +99,44 @@ public class ModelPersistence {
 
     public static MultiLayerNetwork loadNet(String fileName) {
         long startNano = System.nanoTime();
-        File file = new File(getCurrentDir(), fileName);
+        File file = resolve(fileName);
         log.info("Loading Model... " + file.getAbsolutePath());
 
+        TrainingEvents.ModelLoad event = new TrainingEvents.ModelLoad();
+        event.begin();
         try {
             MultiLayerNetwork model = ModelSerializer.restoreMultiLayerNetwork(file);
+            commit(event, file, model);
             log.info("Model loaded in: " + ((System.nanoTime() - startNano)/NANOS_IN_SECOND) + " seconds");
             return model;
         } catch (IOException e) {
             throw new IllegalStateException("Cannot restore model: " + file.getAbsolutePath(), e);
         }
     }
+
+    private static void commit(TrainingEvents.ModelLoad event, File file, Model model) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.getPath();
+            event.modelType = model.getClass().getSimpleName();
+            event.parameters = model.numParams();
+            event.commit();
+        }
+    }
+
+    static File tempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    /**
+     * Renames temporary file to its target name, so that readers
+     * never observe a partially written file.
+     */
+    public static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
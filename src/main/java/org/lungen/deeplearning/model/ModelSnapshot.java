@@ -0,0 +1,82 @@
+package org.lungen.deeplearning.model;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.updater.graph.ComputationGraphUpdater;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * ModelSnapshot.
+ * Shadow copy of a model that is created once and then refreshed by copying
+ * parameters (and optionally updater state) into its existing buffers.
+ * Refreshing is a plain memory copy, unlike cloning the whole model,
+ * so it is cheap enough to do on the training thread.
+ *
+ */
+public class ModelSnapshot {
+
+    private Model shadow;
+
+    /**
+     * Copies current state of the model into the shadow copy.
+     *
+     * @param model         MultiLayerNetwork or ComputationGraph
+     * @param withUpdater   whether to copy updater state as well
+     * @return shadow copy, same instance on every call
+     */
+    public Model update(Model model, boolean withUpdater) {
+        if (shadow == null) {
+            shadow = copy(model);
+        }
+        shadow.params().assign(model.params());
+        if (withUpdater) {
+            INDArray source = updaterState(model);
+            INDArray target = updaterState(shadow);
+            if (source != null && target != null) {
+                target.assign(source);
+            }
+        }
+        copyCounters(model, shadow);
+        return shadow;
+    }
+
+    public Model getShadow() {
+        return shadow;
+    }
+
+    private static Model copy(Model model) {
+        if (model instanceof MultiLayerNetwork) {
+            return ((MultiLayerNetwork) model).clone();
+        } else if (model instanceof ComputationGraph) {
+            return ((ComputationGraph) model).clone();
+        }
+        throw new IllegalArgumentException("Unsupported model: " + model.getClass().getName());
+    }
+
+    private static INDArray updaterState(Model model) {
+        if (model instanceof MultiLayerNetwork) {
+            Updater updater = ((MultiLayerNetwork) model).getUpdater();
+            return updater != null ? updater.getStateViewArray() : null;
+        } else if (model instanceof ComputationGraph) {
+            ComputationGraphUpdater updater = ((ComputationGraph) model).getUpdater();
+            return updater != null ? updater.getStateViewArray() : null;
+        }
+        return null;
+    }
+
+    private static void copyCounters(Model source, Model target) {
+        if (source instanceof MultiLayerNetwork) {
+            MultiLayerNetwork from = (MultiLayerNetwork) source;
+            MultiLayerNetwork to = (MultiLayerNetwork) target;
+            to.getLayerWiseConfigurations().setIterationCount(from.getLayerWiseConfigurations().getIterationCount());
+            to.getLayerWiseConfigurations().setEpochCount(from.getLayerWiseConfigurations().getEpochCount());
+        } else if (source instanceof ComputationGraph) {
+            ComputationGraph from = (ComputationGraph) source;
+            ComputationGraph to = (ComputationGraph) target;
+            to.getConfiguration().setIterationCount(from.getConfiguration().getIterationCount());
+            to.getConfiguration().setEpochCount(from.getConfiguration().getEpochCount());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.lungen.deeplearning.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * TrainingState.
+ * State of the training loop stored with a checkpoint, i.e. everything
+ * besides the model itself that is needed to continue training exactly
+ * where it stopped: epoch and minibatch counters, iterator position,
+ * random generators and early stop listener state.
+ *
+ */
+public class TrainingState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int epoch;
+    private int miniBatchNumber;
+    private Random samplingRng;
+
+    // iterator: remaining example offsets of the current epoch and shuffling rng
+    private int[] iteratorOffsets;
+    private Random iteratorRng;
+
+    // early stop listener
+    private double bestScore = Double.MAX_VALUE;
+    private double smoothedScore = Double.NaN;
+    private int iterationsWithoutImprovement;
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    public int getMiniBatchNumber() {
+        return miniBatchNumber;
+    }
+
+    public void setMiniBatchNumber(int miniBatchNumber) {
+        this.miniBatchNumber = miniBatchNumber;
+    }
+
+    public Random getSamplingRng() {
+        return samplingRng;
+    }
+
+    public void setSamplingRng(Random samplingRng) {
+        this.samplingRng = samplingRng;
+    }
+
+    public int[] getIteratorOffsets() {
+        return iteratorOffsets;
+    }
+
+    public void setIteratorOffsets(int[] iteratorOffsets) {
+        this.iteratorOffsets = iteratorOffsets;
+    }
+
+    public Random getIteratorRng() {
+        return iteratorRng;
+    }
+
+    public void setIteratorRng(Random iteratorRng) {
+        this.iteratorRng = iteratorRng;
+    }
+
+    public double getBestScore() {
+        return bestScore;
+    }
+
+    public void setBestScore(double bestScore) {
+        this.bestScore = bestScore;
+    }
+
+    public double getSmoothedScore() {
+        return smoothedScore;
+    }
+
+    public void setSmoothedScore(double smoothedScore) {
+        this.smoothedScore = smoothedScore;
+    }
+
+    public int getIterationsWithoutImprovement() {
+        return iterationsWithoutImprovement;
+    }
+
+    public void setIterationsWithoutImprovement(int iterationsWithoutImprovement) {
+        this.iterationsWithoutImprovement = iterationsWithoutImprovement;
+    }
+
+    /**
+     * Serializes the state. Random generators are captured as of the moment
+     * of the call, so the returned bytes are a snapshot even if training continues.
+     */
+    public byte[] toBytes() {
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(this);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot serialize training state", e);
+        }
+    }
+
+    public static TrainingState fromBytes(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (TrainingState) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot deserialize training state", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "epoch " + epoch + ", minibatch " + miniBatchNumber
+                + ", remaining examples in epoch " + (iteratorOffsets != null ? iteratorOffsets.length : 0)
+                + ", best score " + bestScore;
+    }
+}
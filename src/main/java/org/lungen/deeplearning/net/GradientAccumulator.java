@@ -0,0 +1,366 @@
+package org.lungen.deeplearning.net;
+
+import java.util.Collection;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.updater.BaseMultiLayerUpdater;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.optimize.solvers.BaseOptimizer;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GradientAccumulator.
+ * Fits a model with gradients accumulated over several minibatches (micro-batches)
+ * before a single updater step, so that effective batch size is not limited
+ * by activation memory of one minibatch.
+ * <p>
+ * Gradients of the micro-batches are summed and the updater divides the sum
+ * by the total number of examples, which makes the step the same as the one
+ * for a single minibatch of all examples. Listeners are notified once per step.
+ * <p>
+ * Truncated BPTT updates parameters per segment of a sequence, so networks
+ * with truncated BPTT are fitted minibatch by minibatch without accumulation.
+ * <p>
+ * Minibatches that do not fit in memory are split into micro-batches.
+ * <p>
+ * Each fit is recorded as {@link TrainingEvents.Fit} JFR event and accounted by {@link MemoryAccountant}.
+ *
+ */
+public class GradientAccumulator {
+
+    private static final Logger log = LoggerFactory.getLogger("net.accumulator");
+
+    private final Model model;
+    private final int accumulationSteps;
+    private final boolean truncatedBptt;
+    // maximum number of examples in a forward/backward pass, 0 if minibatches are not split
+    private int microBatchSize;
+    private int lastNumExamples;
+
+    // sum of gradients of the micro-batches accumulated so far, allocated once
+    private INDArray gradientSum;
+    private int accumulated;
+    private int accumulatedExamples;
+    private double accumulatedScore;
+
+    /**
+     * @param model                 MultiLayerNetwork or ComputationGraph
+     * @param accumulationSteps     number of minibatches per updater step, 1 disables accumulation
+     */
+    public GradientAccumulator(Model model, int accumulationSteps) {
+        this.model = model;
+        this.truncatedBptt = isTruncatedBptt(model);
+        if (accumulationSteps > 1 && truncatedBptt) {
+            log.warn("Gradient accumulation is not supported with truncated BPTT, minibatches are fitted one by one");
+            this.accumulationSteps = 1;
+        } else {
+            this.accumulationSteps = Math.max(accumulationSteps, 1);
+        }
+    }
+
+    public int getAccumulationSteps() {
+        return accumulationSteps;
+    }
+
+    /**
+     * @return maximum number of examples in a forward/backward pass, 0 if minibatches are not split
+     */
+    public int getMicroBatchSize() {
+        return microBatchSize;
+    }
+
+    /**
+     * Splits the following minibatches into micro-batches of half the current size, e.g. to reduce memory.
+     *
+     * @return false if forward/backward passes are already of a single example
+     */
+    public boolean reduceMicroBatchSize() {
+        int size = microBatchSize > 0 ? microBatchSize : lastNumExamples;
+        if (size <= 1) {
+            return false;
+        }
+        microBatchSize = size / 2;
+        return true;
+    }
+
+    /**
+     * Computes gradient of the minibatch and applies updater step
+     * once gradients of the given number of minibatches are accumulated.
+     * <p>
+     * If memory runs out, the minibatch and following minibatches are split
+     * into micro-batches of half the size. Gradients of micro-batches are accumulated,
+     * so that effective minibatch size stays the same. With truncated BPTT
+     * micro-batches are fitted one by one, i.e. minibatch size is reduced.
+     *
+     * @return true if parameters were updated
+     */
+    public boolean fit(DataSet dataSet) {
+        TrainingEvents.Fit event = new TrainingEvents.Fit();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        boolean updated = fit(dataSet.numExamples(),
+                (from, to) -> slice(dataSet, from, to),
+                part -> {
+                    if (model instanceof MultiLayerNetwork) {
+                        ((MultiLayerNetwork) model).fit(part);
+                    } else {
+                        ((ComputationGraph) model).fit(part);
+                    }
+                },
+                part -> {
+                    if (model instanceof MultiLayerNetwork) {
+                        MultiLayerNetwork net = (MultiLayerNetwork) model;
+                        net.setInput(part.getFeatures());
+                        net.setLabels(part.getLabels());
+                        net.setLayerMaskArrays(part.getFeaturesMaskArray(), part.getLabelsMaskArray());
+                        net.computeGradientAndScore();
+                        net.clearLayerMaskArrays();
+                    } else {
+                        computeGradientAndScore((ComputationGraph) model,
+                                new INDArray[] {part.getFeatures()},
+                                new INDArray[] {part.getLabels()},
+                                part.getFeaturesMaskArray() != null ? new INDArray[] {part.getFeaturesMaskArray()} : null,
+                                part.getLabelsMaskArray() != null ? new INDArray[] {part.getLabelsMaskArray()} : null);
+                    }
+                });
+        MemoryAccountant.get().record(MemoryAccountant.Phase.FIT, before);
+        commit(event, dataSet.getFeatures(), updated);
+        return updated;
+    }
+
+    /**
+     * Same as {@link #fit(DataSet)} for ComputationGraph with several inputs or outputs.
+     */
+    public boolean fit(MultiDataSet dataSet) {
+        ComputationGraph graph = (ComputationGraph) model;
+        TrainingEvents.Fit event = new TrainingEvents.Fit();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        boolean updated = fit((int) dataSet.getFeatures(0).size(0),
+                (from, to) -> slice(dataSet, from, to),
+                graph::fit,
+                part -> computeGradientAndScore(graph, part.getFeatures(), part.getLabels(),
+                        part.getFeaturesMaskArrays(), part.getLabelsMaskArrays()));
+        MemoryAccountant.get().record(MemoryAccountant.Phase.FIT, before);
+        commit(event, dataSet.getFeatures(0), updated);
+        return updated;
+    }
+
+    private static void commit(TrainingEvents.Fit event, INDArray features, boolean updated) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setShape(features);
+            event.updated = updated;
+            event.commit();
+        }
+    }
+
+    private <T> boolean fit(int numExamples, BiFunction<Integer, Integer, T> slice,
+                            Consumer<T> fitDirectly, Consumer<T> computeGradient) {
+        lastNumExamples = numExamples;
+        int from = 0;
+        while (from < numExamples) {
+            int to = microBatchSize > 0 ? Math.min(from + microBatchSize, numExamples) : numExamples;
+            T part = slice.apply(from, to);
+            try {
+                if (isAccumulating()) {
+                    computeGradient.accept(part);
+                    addGradient(to - from);
+                } else {
+                    fitDirectly.accept(part);
+                }
+                from = to;
+            } catch (OutOfMemoryError e) {
+                reduceMicroBatchSize(to - from, e);
+            }
+        }
+        if (!isAccumulating()) {
+            return true;
+        }
+        accumulated++;
+        if (accumulated < accumulationSteps) {
+            return false;
+        }
+        applyUpdate();
+        return true;
+    }
+
+    /**
+     * Applies updater step for the gradients accumulated so far, e.g. at the end of epoch.
+     */
+    public void flush() {
+        if (accumulatedExamples > 0) {
+            applyUpdate();
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void applyUpdate() {
+        int iteration = BaseOptimizer.getIterationCount(model);
+        int epoch = BaseOptimizer.getEpochCount(model);
+        setScore(accumulatedScore / accumulatedExamples);
+
+        INDArray gradient = flattenedGradients();
+        gradient.assign(gradientSum);
+        Collection<TrainingListener> listeners = listeners();
+        try (MemoryWorkspace ws = Nd4j.getMemoryManager().scopeOutOfWorkspaces()) {
+            for (TrainingListener listener : listeners) {
+                listener.onGradientCalculation(model);
+            }
+        }
+        // normalization, division by number of examples, regularization and updater, in place
+        updater().update(model.gradient(), iteration, epoch, accumulatedExamples, LayerWorkspaceMgr.noWorkspaces());
+        model.params().subi(gradient);
+
+        try (MemoryWorkspace ws = Nd4j.getMemoryManager().scopeOutOfWorkspaces()) {
+            for (TrainingListener listener : listeners) {
+                listener.iterationDone(model, iteration, epoch);
+            }
+        }
+        BaseOptimizer.incrementIterationCount(model, 1);
+        BaseOptimizer.applyConstraints(model);
+
+        accumulated = 0;
+        accumulatedExamples = 0;
+        accumulatedScore = 0;
+    }
+
+    private boolean isAccumulating() {
+        return accumulationSteps > 1 || (microBatchSize > 0 && !truncatedBptt);
+    }
+
+    @SuppressWarnings("try")
+    private void addGradient(int numExamples) {
+        INDArray gradient = flattenedGradients();
+        if (gradientSum == null) {
+            try (MemoryWorkspace ws = Nd4j.getMemoryManager().scopeOutOfWorkspaces()) {
+                gradientSum = gradient.dup();
+            }
+        } else if (accumulatedExamples == 0) {
+            gradientSum.assign(gradient);
+        } else {
+            gradientSum.addi(gradient);
+        }
+        accumulatedExamples += numExamples;
+        accumulatedScore += model.score() * numExamples;
+    }
+
+    private void reduceMicroBatchSize(int size, OutOfMemoryError e) {
+        if (size <= 1) {
+            throw e;
+        }
+        microBatchSize = size / 2;
+        log.warn("Out of memory on {} examples, minibatches are split into micro-batches of {} examples",
+                size, microBatchSize);
+        // off-heap buffers of the failed pass are released with their java objects
+        System.gc();
+    }
+
+    private static DataSet slice(DataSet dataSet, int from, int to) {
+        if (from == 0 && to == dataSet.numExamples()) {
+            return dataSet;
+        }
+        return new DataSet(
+                examples(dataSet.getFeatures(), from, to),
+                examples(dataSet.getLabels(), from, to),
+                examples(dataSet.getFeaturesMaskArray(), from, to),
+                examples(dataSet.getLabelsMaskArray(), from, to));
+    }
+
+    private static MultiDataSet slice(MultiDataSet dataSet, int from, int to) {
+        if (from == 0 && to == dataSet.getFeatures(0).size(0)) {
+            return dataSet;
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(
+                examples(dataSet.getFeatures(), from, to),
+                examples(dataSet.getLabels(), from, to),
+                examples(dataSet.getFeaturesMaskArrays(), from, to),
+                examples(dataSet.getLabelsMaskArrays(), from, to));
+    }
+
+    private static INDArray[] examples(INDArray[] arrays, int from, int to) {
+        if (arrays == null) {
+            return null;
+        }
+        INDArray[] result = new INDArray[arrays.length];
+        for (int i = 0; i < arrays.length; i++) {
+            result[i] = examples(arrays[i], from, to);
+        }
+        return result;
+    }
+
+    private static INDArray examples(INDArray array, int from, int to) {
+        if (array == null) {
+            return null;
+        }
+        INDArrayIndex[] indices = new INDArrayIndex[array.rank()];
+        indices[0] = NDArrayIndex.interval(from, to);
+        for (int i = 1; i < indices.length; i++) {
+            indices[i] = NDArrayIndex.all();
+        }
+        return array.get(indices).dup(array.ordering());
+    }
+
+    private static void computeGradientAndScore(ComputationGraph graph, INDArray[] features, INDArray[] labels,
+                                                INDArray[] featuresMasks, INDArray[] labelsMasks) {
+        graph.setInputs(features);
+        graph.setLabels(labels);
+        graph.setLayerMaskArrays(featuresMasks, labelsMasks);
+        graph.computeGradientAndScore();
+        graph.clearLayerMaskArrays();
+    }
+
+    private INDArray flattenedGradients() {
+        if (model instanceof MultiLayerNetwork) {
+            return ((MultiLayerNetwork) model).getFlattenedGradients();
+        }
+        return ((ComputationGraph) model).getFlattenedGradients();
+    }
+
+    private Collection<TrainingListener> listeners() {
+        if (model instanceof MultiLayerNetwork) {
+            return ((MultiLayerNetwork) model).getListeners();
+        }
+        return ((ComputationGraph) model).getListeners();
+    }
+
+    private BaseMultiLayerUpdater<?> updater() {
+        if (model instanceof MultiLayerNetwork) {
+            return (BaseMultiLayerUpdater<?>) ((MultiLayerNetwork) model).getUpdater();
+        }
+        return ((ComputationGraph) model).getUpdater();
+    }
+
+    private void setScore(double score) {
+        if (model instanceof MultiLayerNetwork) {
+            ((MultiLayerNetwork) model).setScore(score);
+        } else {
+            ((ComputationGraph) model).setScore(score);
+        }
+    }
+
+    private static boolean isTruncatedBptt(Model model) {
+        if (model instanceof MultiLayerNetwork) {
+            return ((MultiLayerNetwork) model).getLayerWiseConfigurations().getBackpropType() == BackpropType.TruncatedBPTT;
+        } else if (model instanceof ComputationGraph) {
+            return ((ComputationGraph) model).getConfiguration().getBackpropType() == BackpropType.TruncatedBPTT;
+        }
+        throw new IllegalArgumentException("Unsupported model: " + model.getClass().getName());
+    }
+}
@@ -0,0 +1,350 @@
+package org.lungen.deeplearning.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.api.layers.IOutputLayer;
+import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.graph.vertex.GraphVertex;
+import org.deeplearning4j.nn.graph.vertex.VertexIndices;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.lungen.deeplearning.model.ModelPersistence;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.primitives.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LayerProfiler.
+ * Measures wall time of forward and backward pass of each layer, or vertex of a graph,
+ * on every N-th training minibatch, prints breakdown sorted by total time
+ * and exports it to a CSV file.
+ * <p>
+ * Profiled minibatch is passed through the network layer by layer in training mode
+ * without workspaces, gradients are computed but not applied, so parameters are not changed.
+ * With truncated BPTT one segment of the minibatch is profiled.
+ * Layers keeping state in training mode (e.g. batch normalization) update it.
+ *
+ */
+public class LayerProfiler {
+
+    private static final Logger log = LoggerFactory.getLogger("net.profiler");
+
+    private final Model model;
+    private final int profileEachMinibatches;
+    private final File exportFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private int minibatches;
+    private int profiledMinibatches;
+
+    /**
+     * @param profileEachMinibatches    profiling frequency, non-positive value disables profiling
+     * @param exportFile                CSV file rewritten after each profiled minibatch, may be null
+     */
+    public LayerProfiler(Model model, int profileEachMinibatches, File exportFile) {
+        this.model = model;
+        this.profileEachMinibatches = profileEachMinibatches;
+        this.exportFile = exportFile;
+    }
+
+    /**
+     * Profiles every N-th minibatch passed, should be called before the minibatch is fitted.
+     */
+    public void sample(DataSet dataSet) {
+        if (isDue()) {
+            INDArray featuresMask = dataSet.getFeaturesMaskArray();
+            INDArray labelsMask = dataSet.getLabelsMaskArray();
+            profile(new INDArray[] {dataSet.getFeatures()},
+                    new INDArray[] {dataSet.getLabels()},
+                    featuresMask != null ? new INDArray[] {featuresMask} : null,
+                    labelsMask != null ? new INDArray[] {labelsMask} : null);
+        }
+    }
+
+    /**
+     * Profiles every N-th minibatch passed, should be called before the minibatch is fitted.
+     */
+    public void sample(MultiDataSet multiDataSet) {
+        if (isDue()) {
+            profile(multiDataSet.getFeatures(), multiDataSet.getLabels(),
+                    multiDataSet.getFeaturesMaskArrays(), multiDataSet.getLabelsMaskArrays());
+        }
+    }
+
+    private boolean isDue() {
+        return profileEachMinibatches > 0 && ++minibatches % profileEachMinibatches == 0;
+    }
+
+    private void profile(INDArray[] features, INDArray[] labels, INDArray[] featuresMasks, INDArray[] labelsMasks) {
+        if (model instanceof MultiLayerNetwork) {
+            MultiLayerNetwork net = (MultiLayerNetwork) model;
+            MultiLayerConfiguration conf = net.getLayerWiseConfigurations();
+            int segment = conf.getBackpropType() == BackpropType.TruncatedBPTT ? conf.getTbpttFwdLength() : 0;
+            profile(net, segment(features[0], segment), segment(labels[0], segment),
+                    featuresMasks != null ? segment(featuresMasks[0], segment) : null,
+                    labelsMasks != null ? segment(labelsMasks[0], segment) : null);
+        } else {
+            ComputationGraph graph = (ComputationGraph) model;
+            ComputationGraphConfiguration conf = graph.getConfiguration();
+            int segment = conf.getBackpropType() == BackpropType.TruncatedBPTT ? conf.getTbpttFwdLength() : 0;
+            profile(graph, segments(features, segment), segments(labels, segment),
+                    segments(featuresMasks, segment), segments(labelsMasks, segment));
+        }
+        profiledMinibatches++;
+        log.info("Layer profile, {} minibatches:\n{}", profiledMinibatches, report());
+        if (exportFile != null) {
+            export();
+        }
+    }
+
+    private void profile(MultiLayerNetwork net, INDArray features, INDArray labels,
+                         INDArray featuresMask, INDArray labelsMask) {
+        LayerWorkspaceMgr workspaceMgr = LayerWorkspaceMgr.noWorkspaces();
+        int miniBatchSize = (int) features.size(0);
+        int numLayers = net.getnLayers();
+        String[] names = new String[numLayers];
+        // layers write gradients into views of flattened gradients, allocated on the first fit
+        if (net.getFlattenedGradients() == null) {
+            net.initGradientsView();
+        }
+        net.setLayerMaskArrays(featuresMask, labelsMask);
+        try {
+            INDArray activation = features;
+            for (int i = 0; i < numLayers; i++) {
+                Layer layer = net.getLayer(i);
+                String layerName = layer.conf().getLayer().getLayerName();
+                names[i] = layerName != null ? layerName : "layer-" + i;
+                long start = System.nanoTime();
+                InputPreProcessor preProcessor = net.getLayerWiseConfigurations().getInputPreProcess(i);
+                if (preProcessor != null) {
+                    activation = preProcessor.preProcess(activation, miniBatchSize, workspaceMgr);
+                }
+                activation = layer.activate(activation, true, workspaceMgr);
+                Entry entry = entry(names[i], layer);
+                entry.forwardNanos += System.nanoTime() - start;
+                entry.count++;
+            }
+
+            ((IOutputLayer) net.getOutputLayer()).setLabels(labels);
+            INDArray epsilon = null;
+            for (int i = numLayers - 1; i >= 0; i--) {
+                Layer layer = net.getLayer(i);
+                long start = System.nanoTime();
+                epsilon = layer.backpropGradient(epsilon, workspaceMgr).getSecond();
+                InputPreProcessor preProcessor = net.getLayerWiseConfigurations().getInputPreProcess(i);
+                if (preProcessor != null && epsilon != null) {
+                    epsilon = preProcessor.backprop(epsilon, miniBatchSize, workspaceMgr);
+                }
+                entry(names[i], layer).backwardNanos += System.nanoTime() - start;
+            }
+        } finally {
+            net.clearLayerMaskArrays();
+            net.clear();
+        }
+    }
+
+    private void profile(ComputationGraph graph, INDArray[] features, INDArray[] labels,
+                         INDArray[] featuresMasks, INDArray[] labelsMasks) {
+        LayerWorkspaceMgr workspaceMgr = LayerWorkspaceMgr.noWorkspaces();
+        GraphVertex[] vertices = graph.getVertices();
+        int[] order = graph.topologicalSortOrder();
+        List<String> networkInputs = graph.getConfiguration().getNetworkInputs();
+        if (graph.getFlattenedGradients() == null) {
+            graph.initGradientsView();
+        }
+        // vertices such as DuplicateToTimeSeriesVertex read graph inputs and masks directly
+        graph.setInputs(features);
+        graph.setLayerMaskArrays(featuresMasks, labelsMasks);
+        try {
+            for (int index : order) {
+                GraphVertex vertex = vertices[index];
+                INDArray output;
+                if (vertex.isInputVertex()) {
+                    output = features[networkInputs.indexOf(vertex.getVertexName())];
+                } else {
+                    long start = System.nanoTime();
+                    output = vertex.doForward(true, workspaceMgr);
+                    Entry entry = entry(vertex.getVertexName(), vertex);
+                    entry.forwardNanos += System.nanoTime() - start;
+                    entry.count++;
+                }
+                VertexIndices[] outputs = vertex.getOutputVertices();
+                if (outputs != null) {
+                    for (VertexIndices next : outputs) {
+                        vertices[next.getVertexIndex()].setInput(next.getVertexEdgeNumber(), output, workspaceMgr);
+                    }
+                }
+            }
+
+            for (int i = 0; i < labels.length; i++) {
+                ((IOutputLayer) graph.getOutputLayer(i)).setLabels(labels[i]);
+            }
+            // epsilons of vertices with several outputs are summed
+            Map<Integer, INDArray> epsilons = new HashMap<>();
+            for (int i = order.length - 1; i >= 0; i--) {
+                GraphVertex vertex = vertices[order[i]];
+                if (vertex.isInputVertex()) {
+                    continue;
+                }
+                if (!vertex.isOutputVertex()) {
+                    INDArray epsilon = epsilons.get(vertex.getVertexIndex());
+                    if (epsilon == null) {
+                        continue;
+                    }
+                    vertex.setEpsilon(epsilon);
+                }
+                long start = System.nanoTime();
+                Pair<Gradient, INDArray[]> backward = vertex.doBackward(false, workspaceMgr);
+                entry(vertex.getVertexName(), vertex).backwardNanos += System.nanoTime() - start;
+
+                VertexIndices[] inputs = vertex.getInputVertices();
+                INDArray[] inputEpsilons = backward.getSecond();
+                for (int j = 0; inputs != null && inputEpsilons != null && j < inputs.length; j++) {
+                    if (inputEpsilons[j] != null) {
+                        epsilons.merge(inputs[j].getVertexIndex(), inputEpsilons[j], INDArray::add);
+                    }
+                }
+            }
+        } finally {
+            graph.clearLayerMaskArrays();
+            graph.clear();
+        }
+    }
+
+    private Entry entry(String name, Layer layer) {
+        return entries.computeIfAbsent(name, n -> new Entry(n, layer.getClass().getSimpleName()));
+    }
+
+    private Entry entry(String name, GraphVertex vertex) {
+        return entries.computeIfAbsent(name, n -> new Entry(n, vertex.hasLayer()
+                ? vertex.getLayer().getClass().getSimpleName()
+                : vertex.getClass().getSimpleName()));
+    }
+
+    private static INDArray[] segments(INDArray[] arrays, int length) {
+        if (arrays == null) {
+            return null;
+        }
+        INDArray[] segments = new INDArray[arrays.length];
+        for (int i = 0; i < arrays.length; i++) {
+            segments[i] = segment(arrays[i], length);
+        }
+        return segments;
+    }
+
+    /**
+     * @return the first length time steps of time series or masks, the array itself if it is shorter
+     */
+    private static INDArray segment(INDArray array, int length) {
+        if (array == null || length <= 0) {
+            return array;
+        }
+        if (array.rank() == 3 && array.size(2) > length) {
+            return array.get(NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.interval(0, length));
+        }
+        if (array.rank() == 2 && array.size(1) > length) {
+            return array.get(NDArrayIndex.all(), NDArrayIndex.interval(0, length));
+        }
+        return array;
+    }
+
+    /**
+     * @return entries sorted by total time, descending
+     */
+    public List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((e1, e2) -> Long.compare(e2.getTotalNanos(), e1.getTotalNanos()));
+        return sorted;
+    }
+
+    public String report() {
+        List<Entry> sorted = getEntries();
+        long totalNanos = sorted.stream().mapToLong(Entry::getTotalNanos).sum();
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%-24s %-28s %12s %12s %8s%n",
+                "Layer", "Type", "Forward ms", "Backward ms", "Share"));
+        for (Entry entry : sorted) {
+            sb.append(String.format(Locale.ROOT, "%-24s %-28s %12.2f %12.2f %7.1f%%%n",
+                    entry.getName(), entry.getType(), entry.getForwardMillis(), entry.getBackwardMillis(),
+                    totalNanos > 0 ? 100.0 * entry.getTotalNanos() / totalNanos : 0));
+        }
+        return sb.toString();
+    }
+
+    private void export() {
+        StringBuilder sb = new StringBuilder("layer,type,forward_millis,backward_millis,total_millis,minibatches\n");
+        for (Entry entry : getEntries()) {
+            sb.append(String.format(Locale.ROOT, "%s,%s,%.4f,%.4f,%.4f,%d%n",
+                    entry.getName(), entry.getType(), entry.getForwardMillis(), entry.getBackwardMillis(),
+                    entry.getForwardMillis() + entry.getBackwardMillis(), entry.count));
+        }
+        File tempFile = new File(exportFile.getAbsoluteFile().getParentFile(), exportFile.getName() + ".tmp");
+        try {
+            Files.write(tempFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            ModelPersistence.moveAtomically(tempFile, exportFile.getAbsoluteFile());
+        } catch (IOException e) {
+            log.warn("Cannot export layer profile: " + exportFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Time of a layer (vertex) accumulated over profiled minibatches.
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final String type;
+        private long forwardNanos;
+        private long backwardNanos;
+        private int count;
+
+        private Entry(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        long getTotalNanos() {
+            return forwardNanos + backwardNanos;
+        }
+
+        /**
+         * @return mean forward time per minibatch
+         */
+        public double getForwardMillis() {
+            return count > 0 ? forwardNanos / 1e+6 / count : 0;
+        }
+
+        /**
+         * @return mean backward time per minibatch
+         */
+        public double getBackwardMillis() {
+            return count > 0 ? backwardNanos / 1e+6 / count : 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.lungen.deeplearning.net;
+
+import org.lungen.deeplearning.iterator.DataPipeline;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MemoryBudget.
+ * Keeps off-heap memory allocated by ND4J within a budget during training. Checked after each fit:
+ * above the warning threshold a warning is logged, above the budget memory of the following
+ * minibatches is reduced - first prefetch depth of the data pipeline is halved, then minibatches
+ * are split into micro-batches of half the size, with gradients accumulated, so that effective
+ * minibatch size stays the same. Reductions are at least a number of fits apart, for memory
+ * of released arrays to be freed by garbage collection.
+ * <p>
+ * Memory usage of the phases is logged per epoch, see {@link MemoryAccountant}.
+ *
+ */
+public class MemoryBudget {
+
+    private static final Logger log = LoggerFactory.getLogger("net.memory");
+
+    private static final double MB = 1024 * 1024;
+    private static final int FITS_BETWEEN_REDUCTIONS = 20;
+
+    private final MemoryAccountant accountant = MemoryAccountant.get();
+    private final long budgetBytes;
+    private final long warningBytes;
+    private final DataPipeline<?> pipeline;
+    private final GradientAccumulator accumulator;
+
+    private int fitsSinceReduction = FITS_BETWEEN_REDUCTIONS;
+    private boolean warned;
+    private boolean exhausted;
+
+    /**
+     * @param budgetBytes       off-heap memory budget, non-positive value disables the budget
+     * @param warningFraction   fraction of the budget above which a warning is logged
+     */
+    public MemoryBudget(long budgetBytes, double warningFraction,
+                        DataPipeline<?> pipeline, GradientAccumulator accumulator) {
+        this.budgetBytes = budgetBytes;
+        this.warningBytes = (long) (budgetBytes * warningFraction);
+        this.pipeline = pipeline;
+        this.accumulator = accumulator;
+        if (budgetBytes > 0) {
+            log.info(String.format("Off-heap memory budget %.1f MB, warning above %.1f MB",
+                    budgetBytes / MB, warningBytes / MB));
+        }
+    }
+
+    /**
+     * Checks memory after a fit, reduces memory of the following minibatches if the budget is exceeded.
+     */
+    public void check() {
+        if (budgetBytes <= 0) {
+            return;
+        }
+        fitsSinceReduction++;
+        long offHeapBytes = accountant.getOffHeapBytes();
+        if (offHeapBytes < warningBytes) {
+            warned = false;
+            return;
+        }
+        if (!warned) {
+            log.warn(String.format("Off-heap memory %.1f MB is above %.0f%% of the budget %.1f MB",
+                    offHeapBytes / MB, warningBytes * 100.0 / budgetBytes, budgetBytes / MB));
+            warned = true;
+        }
+        if (offHeapBytes < budgetBytes || exhausted || fitsSinceReduction < FITS_BETWEEN_REDUCTIONS) {
+            return;
+        }
+        fitsSinceReduction = 0;
+        if (pipeline.reducePrefetch()) {
+            log.warn(String.format("Off-heap memory %.1f MB exceeds the budget, prefetch depth reduced to %d",
+                    offHeapBytes / MB, pipeline.getPrefetchDepth()));
+        } else if (accumulator.reduceMicroBatchSize()) {
+            log.warn(String.format("Off-heap memory %.1f MB exceeds the budget, micro-batch size reduced to %d",
+                    offHeapBytes / MB, accumulator.getMicroBatchSize()));
+        } else {
+            log.warn(String.format("Off-heap memory %.1f MB exceeds the budget and cannot be reduced further",
+                    offHeapBytes / MB));
+            exhausted = true;
+        }
+    }
+
+    /**
+     * Logs memory usage of the epoch.
+     */
+    public void epochDone(int epoch) {
+        accountant.report(epoch);
+    }
+}
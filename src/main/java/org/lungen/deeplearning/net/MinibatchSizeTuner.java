@@ -0,0 +1,239 @@
+package org.lungen.deeplearning.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_CHECKPOINT_EACH_MINIBATCHES;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_CHECKPOINT_RESUME;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_EVALUATION_WORKERS;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_METRICS_DIR;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_MINIBATCH_SIZE;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_STATS_MODE;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_VALIDATION_EACH_MINIBATCHES;
+
+/**
+ * MinibatchSizeTuner.
+ * Chooses minibatch size with the highest training throughput (examples per second)
+ * under a cap of off-heap memory.
+ * <p>
+ * Each candidate size is tried on a copy of the network for a few minibatches
+ * built from the same training examples. Off-heap memory is measured as the maximum
+ * of memory allocated by ND4J sampled after each minibatch of the trial, so short peaks
+ * within a fit are not seen. Trials go from smaller to larger sizes and stop at the first
+ * size that runs out of memory or exceeds the cap.
+ *
+ */
+public class MinibatchSizeTuner {
+
+    private static final Logger log = LoggerFactory.getLogger("net.tuner");
+
+    public static final int[] DEFAULT_CANDIDATES            = {8, 16, 32, 64, 128, 256};
+    public static final int DEFAULT_WARMUP_MINIBATCHES      = 2;
+    public static final int DEFAULT_TRIAL_MINIBATCHES       = 5;
+    public static final double DEFAULT_MEMORY_FRACTION      = 0.8;
+
+    public enum Status {
+        OK, OUT_OF_MEMORY, OVER_MEMORY_LIMIT
+    }
+
+    private final NeuralNet net;
+    private int[] candidates = DEFAULT_CANDIDATES;
+    private int warmupMinibatches = DEFAULT_WARMUP_MINIBATCHES;
+    private int trialMinibatches = DEFAULT_TRIAL_MINIBATCHES;
+    private long memoryLimitBytes = (long) (Pointer.maxBytes() * DEFAULT_MEMORY_FRACTION);
+    private final List<Trial> trials = new ArrayList<>();
+
+    public MinibatchSizeTuner(NeuralNet net) {
+        this.net = net;
+    }
+
+    /**
+     * Initializes the network with the given params without checkpoints, metrics export,
+     * stats and validation, runs trials, closes the network and puts the chosen size into params.
+     *
+     * @return chosen minibatch size, configured size if no candidate succeeded
+     */
+    public int tune(Map<String, Object> params) {
+        Map<String, Object> trialParams = new HashMap<>(params);
+        trialParams.put(PARAM_CHECKPOINT_RESUME, false);
+        trialParams.put(PARAM_STATS_MODE, NeuralNetOptions.STATS_MODE_NONE);
+        trialParams.put(PARAM_CHECKPOINT_EACH_MINIBATCHES, 0);
+        trialParams.put(PARAM_VALIDATION_EACH_MINIBATCHES, 0);
+        trialParams.put(PARAM_EVALUATION_WORKERS, 1);
+        trialParams.remove(PARAM_METRICS_DIR);
+        net.init(trialParams);
+        try {
+            runTrials();
+        } finally {
+            net.close();
+        }
+
+        int size = trials.stream()
+                .filter(trial -> trial.getStatus() == Status.OK)
+                .max((t1, t2) -> Double.compare(t1.getExamplesPerSecond(), t2.getExamplesPerSecond()))
+                .map(Trial::getBatchSize)
+                .orElse((Integer) params.get(PARAM_MINIBATCH_SIZE));
+        log.info("Minibatch size: {}", size);
+        params.put(PARAM_MINIBATCH_SIZE, size);
+        return size;
+    }
+
+    private void runTrials() {
+        int maxCandidate = Arrays.stream(candidates).max().orElse(0);
+        List<Object> examples = collectExamples(net.getTrainIterator(), maxCandidate);
+        log.info("Tuning minibatch size: candidates {}, memory limit {}",
+                Arrays.toString(candidates), Pointer.formatBytes(memoryLimitBytes));
+
+        trials.clear();
+        int[] sizes = candidates.clone();
+        Arrays.sort(sizes);
+        for (int size : sizes) {
+            if (size > examples.size()) {
+                log.info("Not enough training examples for minibatch size {}: {}", size, examples.size());
+                break;
+            }
+            Trial trial = runTrial(net.getModel(), merge(examples.subList(0, size)), size);
+            trials.add(trial);
+            log.info("{}", trial);
+            if (trial.getStatus() != Status.OK) {
+                break;
+            }
+        }
+    }
+
+    private Trial runTrial(Model model, Object batch, int size) {
+        // copy has no listeners and own updater state, the network itself is not modified
+        Model replica = model instanceof MultiLayerNetwork
+                ? ((MultiLayerNetwork) model).clone()
+                : ((ComputationGraph) model).clone();
+        // minibatches that do not fit in memory are split by the accumulator, which means out of memory
+        GradientAccumulator accumulator = new GradientAccumulator(replica, 1);
+        System.gc();
+        long maxBytes = Pointer.totalBytes();
+        long startNano = 0;
+        for (int i = 0; i < warmupMinibatches + trialMinibatches; i++) {
+            if (i == warmupMinibatches) {
+                startNano = System.nanoTime();
+            }
+            try {
+                if (batch instanceof DataSet) {
+                    accumulator.fit((DataSet) batch);
+                } else {
+                    accumulator.fit((MultiDataSet) batch);
+                }
+            } catch (OutOfMemoryError e) {
+                return new Trial(size, 0, maxBytes, Status.OUT_OF_MEMORY);
+            }
+            maxBytes = Math.max(maxBytes, Pointer.totalBytes());
+            if (accumulator.getMicroBatchSize() > 0) {
+                return new Trial(size, 0, maxBytes, Status.OUT_OF_MEMORY);
+            }
+        }
+        double seconds = (System.nanoTime() - startNano) / 1e+9;
+        double examplesPerSecond = size * trialMinibatches / seconds;
+        Status status = maxBytes > memoryLimitBytes ? Status.OVER_MEMORY_LIMIT : Status.OK;
+        return new Trial(size, examplesPerSecond, maxBytes, status);
+    }
+
+    private static List<Object> collectExamples(Iterator<?> iterator, int maxExamples) {
+        List<Object> examples = new ArrayList<>();
+        while (examples.size() < maxExamples && iterator.hasNext()) {
+            Object next = iterator.next();
+            List<?> list = next instanceof DataSet ? ((DataSet) next).asList() : ((MultiDataSet) next).asList();
+            examples.addAll(list.subList(0, Math.min(list.size(), maxExamples - examples.size())));
+        }
+        if (iterator instanceof DataSetIterator) {
+            ((DataSetIterator) iterator).reset();
+        } else if (iterator instanceof MultiDataSetIterator) {
+            ((MultiDataSetIterator) iterator).reset();
+        }
+        return examples;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object merge(List<Object> examples) {
+        if (examples.get(0) instanceof DataSet) {
+            return DataSet.merge((List<DataSet>) (List<?>) examples);
+        }
+        return org.nd4j.linalg.dataset.MultiDataSet.merge((List<MultiDataSet>) (List<?>) examples);
+    }
+
+    public List<Trial> getTrials() {
+        return Collections.unmodifiableList(trials);
+    }
+
+    public void setCandidates(int... candidates) {
+        this.candidates = candidates;
+    }
+
+    public void setWarmupMinibatches(int warmupMinibatches) {
+        this.warmupMinibatches = warmupMinibatches;
+    }
+
+    public void setTrialMinibatches(int trialMinibatches) {
+        this.trialMinibatches = trialMinibatches;
+    }
+
+    public void setMemoryLimitBytes(long memoryLimitBytes) {
+        this.memoryLimitBytes = memoryLimitBytes;
+    }
+
+    /**
+     * Result of a trial of a minibatch size.
+     */
+    public static final class Trial {
+
+        private final int batchSize;
+        private final double examplesPerSecond;
+        private final long maxBytes;
+        private final Status status;
+
+        private Trial(int batchSize, double examplesPerSecond, long maxBytes, Status status) {
+            this.batchSize = batchSize;
+            this.examplesPerSecond = examplesPerSecond;
+            this.maxBytes = maxBytes;
+            this.status = status;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public double getExamplesPerSecond() {
+            return examplesPerSecond;
+        }
+
+        /**
+         * @return maximum of off-heap memory sampled after each minibatch of the trial, bytes
+         */
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Minibatch size %d: %.1f examples/sec, max off-heap memory after minibatches %s, %s",
+                    batchSize, examplesPerSecond, Pointer.formatBytes(maxBytes), status);
+        }
+    }
+}
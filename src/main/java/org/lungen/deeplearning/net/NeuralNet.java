@@ -1,7 +1,9 @@
 package org.lungen.deeplearning.net;
 
+import org.deeplearning4j.nn.api.Model;
 import org.lungen.deeplearning.iterator.AutoEncoderCharacterIterator;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -10,6 +12,9 @@ import java.util.Map;
 public interface NeuralNet {
 
     String PARAM_MODEL_NAME                     = "model.name";
+    String PARAM_BASE_MODEL_FILE                = "model.base.file";
+    String PARAM_BASE_MODEL_FREEZE_LAYERS       = "model.base.freeze.layers";
+    String PARAM_BASE_MODEL_RESET_UPDATER       = "model.base.reset.updater";
 
     String PARAM_DATA_FILE                      = "data.file";
     String PARAM_DATA_FILE_TEST                 = "data.file.test";
@@ -21,14 +26,51 @@ public interface NeuralNet {
     String PARAM_MINIBATCH_SIZE                 = "training.minibatch.size";
     String PARAM_LEARNING_RATE                  = "training.learning.rate";
     String PARAM_L2_REGULARIZATION              = "training.regularization.l2";
+    String PARAM_BACKPROP_TYPE                  = "training.backprop.type";
     String PARAM_TRUNCATED_BPTT_SIZE            = "training.backprop.tbptt.size";
+    String PARAM_GRADIENT_ACCUMULATION_STEPS    = "training.gradient.accumulation.steps";
+    String PARAM_DATA_TYPE                      = "training.data.type";
+    String PARAM_WORKSPACE_MODE_TRAINING        = "training.workspace.mode.training";
+    String PARAM_WORKSPACE_MODE_INFERENCE       = "training.workspace.mode.inference";
+    String PARAM_CACHE_MODE                     = "training.cache.mode";
+    String PARAM_DATA_PREFETCH_BATCHES          = "training.data.prefetch";
+    String PARAM_MEMORY_BUDGET_MB               = "training.memory.budget.mb";
+    String PARAM_MEMORY_WARNING_FRACTION        = "training.memory.warning.fraction";
 
     String PARAM_CHECK_EACH_NUMBER_MINIBATCHES  = "training.evaluate.minibatches";
     String PARAM_TEMPERATURE                    = "training.evaluate.temperature";
+    String PARAM_EVALUATION_WORKERS             = "training.evaluate.workers";
 
     String PARAM_NUMBER_ITER_NO_IMPROVE_STOP    = "training.stop.no_improvements.iterations";
     String PARAM_MIN_EPOCHS_STOP                = "training.stop.min_epochs";
     String PARAM_STOP_AFTER_NUMBER_MINIBATCHES  = "training.stop.minibatches";
+    String PARAM_STOP_SCORE_SMOOTHING           = "training.stop.score.smoothing";
+    String PARAM_STOP_MIN_DELTA                 = "training.stop.min_delta";
+
+    String PARAM_VALIDATION_EACH_MINIBATCHES    = "training.validation.minibatches";
+    String PARAM_VALIDATION_NUMBER_EXAMPLES     = "training.validation.examples";
+    String PARAM_VALIDATION_PATIENCE            = "training.validation.patience";
+
+    String PARAM_CHECKPOINT_DIR                 = "training.checkpoint.dir";
+    String PARAM_CHECKPOINT_EACH_MINIBATCHES    = "training.checkpoint.minibatches";
+    String PARAM_CHECKPOINT_RESUME              = "training.checkpoint.resume";
+    String PARAM_CHECKPOINT_KEEP_LAST           = "training.checkpoint.keep.last";
+    String PARAM_CHECKPOINT_KEEP_BEST           = "training.checkpoint.keep.best";
+
+    String PARAM_METRICS_DIR                    = "training.metrics.dir";
+    String PARAM_METRICS_EXPORT_SECONDS         = "training.metrics.export.seconds";
+    String PARAM_HEALTH_EACH_ITERATIONS         = "training.health.iterations";
+    String PARAM_HEALTH_VANISHING_NORM          = "training.health.gradient.vanishing";
+    String PARAM_HEALTH_EXPLODING_NORM          = "training.health.gradient.exploding";
+
+    String PARAM_STATS_MODE                     = "training.stats.mode";
+    String PARAM_STATS_DIR                      = "training.stats.dir";
+    String PARAM_STATS_EACH_ITERATIONS          = "training.stats.iterations";
+    String PARAM_STATS_FILE_UPDATES             = "training.stats.file.updates";
+    String PARAM_STATS_FILE_KEEP                = "training.stats.file.keep";
+
+    String PARAM_PROFILE_EACH_MINIBATCHES       = "training.profile.minibatches";
+    String PARAM_PROFILE_FILE                   = "training.profile.file";
 
 
 
@@ -40,5 +82,15 @@ public interface NeuralNet {
 
     void train(Map<String, Object> params);
 
+    /**
+     * Releases resources created by {@link #init(Map)}, e.g. listeners, evaluator and checkpoint writer threads.
+     * Called at the end of training, or when the network is initialized without being trained.
+     */
+    void close();
+
     double getBestScore();
+
+    Model getModel();
+
+    Iterator<?> getTrainIterator();
 }
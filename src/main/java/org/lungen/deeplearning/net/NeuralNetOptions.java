@@ -0,0 +1,131 @@
+package org.lungen.deeplearning.net;
+
+import java.io.File;
+import java.util.Map;
+
+import org.deeplearning4j.nn.conf.CacheMode;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.lungen.deeplearning.listener.FileStatsListener;
+import org.lungen.deeplearning.listener.StatsReporter;
+import org.lungen.deeplearning.listener.UIStatsListener;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * NeuralNetOptions.
+ * ND4J and network configuration options taken from network parameters.
+ * Global options are applied before the network and its iterators allocate arrays.
+ *
+ */
+public final class NeuralNetOptions {
+
+    private static final Logger log = LoggerFactory.getLogger("net.options");
+
+    public static final String DATA_TYPE_FLOAT  = "float";
+    public static final String DATA_TYPE_DOUBLE = "double";
+    public static final String DATA_TYPE_HALF   = "half";
+
+    public static final String STATS_MODE_UI    = "ui";
+    public static final String STATS_MODE_FILE  = "file";
+    public static final String STATS_MODE_NONE  = "none";
+
+    private NeuralNetOptions() {
+    }
+
+    /**
+     * Sets floating-point type of all arrays: parameters, updater state, activations
+     * and iterator tensors. ND4J data type is global, so parameters are kept
+     * in the same precision as activations.
+     * <p>
+     * Half precision is not supported by every backend (e.g. CPU backend),
+     * in that case float is used.
+     *
+     * @return data type in effect
+     */
+    public static DataBuffer.Type applyDataType(Map<String, Object> params) {
+        String name = (String) params.getOrDefault(NeuralNet.PARAM_DATA_TYPE, DATA_TYPE_FLOAT);
+        DataBuffer.Type type = dataType(name);
+        Nd4j.setDataType(type);
+        if (type == DataBuffer.Type.HALF && !isSupported()) {
+            log.warn("Half precision is not supported by backend {}, float is used",
+                    Nd4j.getBackend().getClass().getSimpleName());
+            type = DataBuffer.Type.FLOAT;
+            Nd4j.setDataType(type);
+        }
+        log.info("Data type: {}", type);
+        return type;
+    }
+
+    /**
+     * Workspace mode for training or inference. With workspaces activations and gradients
+     * are placed into memory reused from iteration to iteration instead of allocated each time.
+     *
+     * @param param {@link NeuralNet#PARAM_WORKSPACE_MODE_TRAINING} or {@link NeuralNet#PARAM_WORKSPACE_MODE_INFERENCE}
+     */
+    public static WorkspaceMode workspaceMode(Map<String, Object> params, String param) {
+        String name = (String) params.getOrDefault(param, WorkspaceMode.ENABLED.name());
+        return WorkspaceMode.valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Cache mode of activations between forward and backward pass, none by default.
+     */
+    public static CacheMode cacheMode(Map<String, Object> params) {
+        String name = (String) params.getOrDefault(NeuralNet.PARAM_CACHE_MODE, CacheMode.NONE.name());
+        return CacheMode.valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Reporter of training stats:
+     * <ul>
+     *     <li>ui - in-memory storage attached to UI server (default)</li>
+     *     <li>file - sampled stats in local files of bounded size and number, no UI server</li>
+     *     <li>none - no stats</li>
+     * </ul>
+     */
+    public static StatsReporter statsReporter(String modelName, Map<String, Object> params) {
+        String mode = (String) params.getOrDefault(NeuralNet.PARAM_STATS_MODE, STATS_MODE_UI);
+        switch (mode.toLowerCase()) {
+            case STATS_MODE_UI:
+                return new UIStatsListener();
+            case STATS_MODE_FILE:
+                String directory    = (String) params.getOrDefault(NeuralNet.PARAM_STATS_DIR, "stats");
+                int reportEach      = (Integer) params.getOrDefault(NeuralNet.PARAM_STATS_EACH_ITERATIONS, 10);
+                int updatesPerFile  = (Integer) params.getOrDefault(NeuralNet.PARAM_STATS_FILE_UPDATES, 5000);
+                int keepFiles       = (Integer) params.getOrDefault(NeuralNet.PARAM_STATS_FILE_KEEP, 4);
+                log.info("Stats: {} each {} iterations", directory, reportEach);
+                return new FileStatsListener(new File(directory), modelName, reportEach, updatesPerFile, keepFiles);
+            case STATS_MODE_NONE:
+                return new StatsReporter.None();
+            default:
+                throw new IllegalArgumentException("Unsupported stats mode: " + mode);
+        }
+    }
+
+    private static DataBuffer.Type dataType(String name) {
+        switch (name.toLowerCase()) {
+            case DATA_TYPE_FLOAT:
+                return DataBuffer.Type.FLOAT;
+            case DATA_TYPE_DOUBLE:
+                return DataBuffer.Type.DOUBLE;
+            case DATA_TYPE_HALF:
+                return DataBuffer.Type.HALF;
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + name);
+        }
+    }
+
+    /**
+     * Backend refuses to allocate buffers of data type it does not support.
+     */
+    private static boolean isSupported() {
+        try {
+            Nd4j.create(1);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+}
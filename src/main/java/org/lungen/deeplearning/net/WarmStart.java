@@ -0,0 +1,157 @@
+package org.lungen.deeplearning.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.graph.vertex.GraphVertex;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.transferlearning.TransferLearning;
+import org.lungen.deeplearning.model.ModelPersistence;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_BASE_MODEL_FILE;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_BASE_MODEL_FREEZE_LAYERS;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_BASE_MODEL_RESET_UPDATER;
+
+/**
+ * WarmStart.
+ * Starts training from parameters of a previously saved model instead of random initialization,
+ * e.g. to fine-tune a network trained on a large corpus on a small one.
+ * <p>
+ * Parameters of the base model are copied into the initialized network, so configuration
+ * of the network (learning rate, regularization, workspaces) is the configured one,
+ * the base model must have the same layers and parameter shapes. Optionally the lowest
+ * layers are frozen and updater state of the base model is kept.
+ *
+ */
+public final class WarmStart {
+
+    private static final Logger log = LoggerFactory.getLogger("net.warmstart");
+
+    private WarmStart() {
+    }
+
+    /**
+     * @param net initialized network
+     * @return the network with parameters of the base model, new network if layers are frozen,
+     *          the same network if no base model is configured
+     */
+    public static MultiLayerNetwork apply(MultiLayerNetwork net, Map<String, Object> params) {
+        String baseModelFile = (String) params.get(PARAM_BASE_MODEL_FILE);
+        if (baseModelFile == null) {
+            return net;
+        }
+        int freezeLayers    = (Integer) params.getOrDefault(PARAM_BASE_MODEL_FREEZE_LAYERS, 0);
+        boolean resetUpdater = (Boolean) params.getOrDefault(PARAM_BASE_MODEL_RESET_UPDATER, true);
+
+        MultiLayerNetwork base = ModelPersistence.loadNet(baseModelFile);
+        copyParams(base.paramTable(), net.paramTable());
+        if (!resetUpdater && keepUpdaterState(freezeLayers,
+                base.getUpdater().getStateViewArray(), net.getUpdater().getStateViewArray())) {
+            // bias correction of updaters such as Adam depends on iteration count
+            net.setIterationCount(base.getIterationCount());
+            net.setEpochCount(base.getEpochCount());
+        }
+        log.info("Warm start from {}: {} parameters", baseModelFile, net.numParams());
+        if (freezeLayers <= 0) {
+            return net;
+        }
+        checkFreezeLayers(freezeLayers, net.getnLayers());
+        log.info("Freezing {} lowest layers", freezeLayers);
+        return new TransferLearning.Builder(net)
+                .setFeatureExtractor(freezeLayers - 1)
+                .build();
+    }
+
+    /**
+     * @param graph initialized network
+     * @return the network with parameters of the base model, new network if layers are frozen,
+     *          the same network if no base model is configured
+     */
+    public static ComputationGraph apply(ComputationGraph graph, Map<String, Object> params) {
+        String baseModelFile = (String) params.get(PARAM_BASE_MODEL_FILE);
+        if (baseModelFile == null) {
+            return graph;
+        }
+        int freezeLayers    = (Integer) params.getOrDefault(PARAM_BASE_MODEL_FREEZE_LAYERS, 0);
+        boolean resetUpdater = (Boolean) params.getOrDefault(PARAM_BASE_MODEL_RESET_UPDATER, true);
+
+        ComputationGraph base = ModelPersistence.loadGraph(baseModelFile);
+        copyParams(base.paramTable(), graph.paramTable());
+        if (!resetUpdater && keepUpdaterState(freezeLayers,
+                base.getUpdater().getStateViewArray(), graph.getUpdater().getStateViewArray())) {
+            // bias correction of updaters such as Adam depends on iteration count
+            graph.getConfiguration().setIterationCount(base.getConfiguration().getIterationCount());
+            graph.getConfiguration().setEpochCount(base.getConfiguration().getEpochCount());
+        }
+        log.info("Warm start from {}: {} parameters", baseModelFile, graph.numParams());
+        if (freezeLayers <= 0) {
+            return graph;
+        }
+        checkFreezeLayers(freezeLayers, graph.getNumLayers());
+        // lowest layers in topological order, their inputs are frozen as well
+        List<String> frozen = new ArrayList<>();
+        for (int index : graph.topologicalSortOrder()) {
+            GraphVertex vertex = graph.getVertices()[index];
+            if (vertex.hasLayer() && frozen.size() < freezeLayers) {
+                frozen.add(vertex.getVertexName());
+            }
+        }
+        log.info("Freezing layers: {}", frozen);
+        return new TransferLearning.GraphBuilder(graph)
+                .setFeatureExtractor(frozen.toArray(new String[0]))
+                .build();
+    }
+
+    private static void copyParams(Map<String, INDArray> source, Map<String, INDArray> target) {
+        if (!source.keySet().equals(target.keySet())) {
+            throw new IllegalArgumentException("Base model parameters " + source.keySet()
+                    + " do not match network parameters " + target.keySet());
+        }
+        for (Map.Entry<String, INDArray> entry : target.entrySet()) {
+            INDArray sourceParam = source.get(entry.getKey());
+            INDArray targetParam = entry.getValue();
+            if (!Arrays.equals(sourceParam.shape(), targetParam.shape())) {
+                throw new IllegalArgumentException("Base model parameter " + entry.getKey() + " has shape "
+                        + Arrays.toString(sourceParam.shape()) + ", network expects "
+                        + Arrays.toString(targetParam.shape()));
+            }
+            // parameter table holds views of flattened parameters
+            targetParam.assign(sourceParam);
+        }
+    }
+
+    /**
+     * Updater state is copied if the base model was saved with updater of the same kind.
+     * Network with frozen layers is rebuilt with new updater, its state is not kept.
+     */
+    private static boolean keepUpdaterState(int freezeLayers, INDArray source, INDArray target) {
+        if (freezeLayers > 0) {
+            log.warn("Updater state of base model is not kept for network with frozen layers");
+            return false;
+        }
+        if (target == null) {
+            return false;
+        }
+        if (source == null || source.length() != target.length()) {
+            log.warn("Updater state of base model is missing or does not match the configured updater, "
+                    + "updater state is reset");
+            return false;
+        }
+        target.assign(source);
+        return true;
+    }
+
+    private static void checkFreezeLayers(int freezeLayers, int numLayers) {
+        // output layer is always trained
+        if (freezeLayers >= numLayers) {
+            throw new IllegalArgumentException("Cannot freeze " + freezeLayers
+                    + " layers of network with " + numLayers + " layers");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.lungen.deeplearning.net;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.lungen.deeplearning.net.classifier.StringClassifierNet;
+import org.lungen.deeplearning.net.generator.CharacterSequenceGeneratorNet;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_STATS_MODE;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_WORKSPACE_MODE_INFERENCE;
+import static org.lungen.deeplearning.net.NeuralNet.PARAM_WORKSPACE_MODE_TRAINING;
+
+/**
+ * WorkspaceModeBenchmark.
+ * Compares allocations per training iteration of a network with and without workspaces.
+ * <p>
+ * Off-heap memory outside of workspaces is released only after garbage collection
+ * of its arrays, so growth of allocated off-heap memory over an iteration without
+ * garbage collection is memory allocated by the iteration. Workspace memory
+ * is allocated once and reused. The same minibatch is fitted repeatedly,
+ * so iterator allocations are not counted.
+ *
+ */
+public class WorkspaceModeBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger("net.benchmark");
+
+    private static final int WARMUP_ITERATIONS  = 5;
+    private static final int ITERATIONS         = 20;
+
+    private WorkspaceModeBenchmark() {
+    }
+
+    private static void run(NeuralNet net, WorkspaceMode mode) {
+        Map<String, Object> params = net.defaultParams();
+        params.put(PARAM_WORKSPACE_MODE_TRAINING, mode.name());
+        params.put(PARAM_WORKSPACE_MODE_INFERENCE, mode.name());
+        params.put(PARAM_STATS_MODE, NeuralNetOptions.STATS_MODE_NONE);
+        net.init(params);
+
+        // copy has no listeners, which allocate on their own
+        Model model = net.getModel() instanceof MultiLayerNetwork
+                ? ((MultiLayerNetwork) net.getModel()).clone()
+                : ((ComputationGraph) net.getModel()).clone();
+        GradientAccumulator accumulator = new GradientAccumulator(model, 1);
+        Object minibatch = net.getTrainIterator().next();
+
+        long offHeapBytes = 0;
+        int measured = 0;
+        long peakOffHeapBytes = 0;
+        long gcCount = 0;
+        long startNano = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) {
+                System.gc();
+                gcCount = gcCount();
+                startNano = System.nanoTime();
+            }
+            long gcBefore = gcCount();
+            long bytesBefore = Pointer.totalBytes();
+            if (minibatch instanceof DataSet) {
+                accumulator.fit((DataSet) minibatch);
+            } else {
+                accumulator.fit((MultiDataSet) minibatch);
+            }
+            long bytesAfter = Pointer.totalBytes();
+            peakOffHeapBytes = Math.max(peakOffHeapBytes, bytesAfter);
+            // without garbage collection during the iteration only memory of arrays collected before is released
+            if (i >= WARMUP_ITERATIONS && gcCount() == gcBefore) {
+                offHeapBytes += Math.max(bytesAfter - bytesBefore, 0);
+                measured++;
+            }
+        }
+        double millis = (System.nanoTime() - startNano) / 1e+6 / ITERATIONS;
+        gcCount = gcCount() - gcCount;
+
+        log.info(String.format("%s, workspaces %s: %.1f ms/iteration, %s off-heap allocated/iteration "
+                        + "(%d of %d iterations measured), %d garbage collections, peak off-heap memory %s",
+                net.getClass().getSimpleName(), mode, millis,
+                measured > 0 ? Pointer.formatBytes(offHeapBytes / measured) : "n/a", measured, ITERATIONS,
+                gcCount, Pointer.formatBytes(peakOffHeapBytes)));
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                .sum();
+    }
+
+    public static void main(String[] args) {
+        for (WorkspaceMode mode : new WorkspaceMode[] {WorkspaceMode.NONE, WorkspaceMode.ENABLED}) {
+            run(new CharacterSequenceGeneratorNet(), mode);
+            run(new StringClassifierNet(), mode);
+        }
+    }
+}
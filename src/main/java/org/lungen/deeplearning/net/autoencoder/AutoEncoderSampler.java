@@ -5,6 +5,9 @@ import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.graph.vertex.GraphVertex;
 import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
 import org.lungen.deeplearning.iterator.AutoEncoderCharacterIterator;
+import org.lungen.deeplearning.sampling.Probabilities;
+import org.lungen.deeplearning.sampling.SamplingStrategy;
+import org.lungen.deeplearning.sampling.TemperatureSampling;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.factory.Nd4j;
@@ -16,10 +19,16 @@ public class AutoEncoderSampler {
 
     private ComputationGraph net;
     private AutoEncoderCharacterIterator iterator;
+    private SamplingStrategy strategy;
 
     public AutoEncoderSampler(ComputationGraph net, AutoEncoderCharacterIterator iterator) {
+        this(net, iterator, new TemperatureSampling(1.0));
+    }
+
+    public AutoEncoderSampler(ComputationGraph net, AutoEncoderCharacterIterator iterator, SamplingStrategy strategy) {
         this.net = net;
         this.iterator = iterator;
+        this.strategy = strategy;
     }
 
     public void output(MultiDataSet batchDS) {
@@ -54,30 +63,16 @@ public class AutoEncoderSampler {
         GraphVertex mergeVertex = net.getVertex("merge");
         INDArray thoughtVector = mergeVertex.getInputs()[1];
         LayerWorkspaceMgr mgr = LayerWorkspaceMgr.noWorkspaces();
+        float[] probabilities = new float[dictSize];
 
         for (int row = 0; row < sequenceSize; ++row) {
             mergeVertex.setInputs(decode, thoughtVector);
             INDArray merged = mergeVertex.doForward(false, mgr);
             INDArray activateDec = decoder.rnnTimeStep(merged, mgr);
             INDArray out = output.activate(activateDec, false, mgr);
-            double d = rnd.nextDouble();
-            double sum = 0.0;
-            int idx = -1;
-            for (int s = 0; s < out.size(1); s++) {
-                sum += out.getDouble(0, s, 0);
-                if (d <= sum) {
-                    idx = s;
-                    char c = iterator.convertIndexToCharacter(idx);
-                    System.out.print(c);
-//                    if (printUnknowns || s != 0) {
-//                        System.out.print(revDict.get((double) s) + " ");
-//                    }
-                    break;
-                }
-            }
-//            if (idx == 1) {
-//                break;
-//            }
+            INDArray distribution = Probabilities.copy(out.reshape(1, out.size(1)), probabilities);
+            int idx = strategy.sample(probabilities, 0, distribution.stride(1), dictSize, rnd);
+            System.out.print(iterator.convertIndexToCharacter(idx));
             double[] newDecodeArr = new double[dictSize];
             newDecodeArr[idx] = 1;
             decode = Nd4j.create(newDecodeArr, new int[] { 1, dictSize, 1 });
@@ -1,9 +1,11 @@
 package org.lungen.deeplearning.net.autoencoder;
 
 import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
 import org.deeplearning4j.nn.conf.GradientNormalization;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.conf.graph.MergeVertex;
 import org.deeplearning4j.nn.conf.graph.rnn.LastTimeStepVertex;
 import org.deeplearning4j.nn.conf.inputs.InputType;
@@ -13,12 +15,20 @@ import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.lungen.deeplearning.iterator.DataPipeline;
 import org.lungen.deeplearning.iterator.MultivariateIterator;
 import org.lungen.deeplearning.listener.EarlyStopListener;
+import org.lungen.deeplearning.listener.GradientHealthListener;
+import org.lungen.deeplearning.listener.MetricsListener;
 import org.lungen.deeplearning.listener.ScorePrintListener;
-import org.lungen.deeplearning.listener.UIStatsListener;
+import org.lungen.deeplearning.listener.StatsReporter;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.net.GradientAccumulator;
+import org.lungen.deeplearning.net.LayerProfiler;
+import org.lungen.deeplearning.net.MemoryBudget;
 import org.lungen.deeplearning.net.NeuralNet;
+import org.lungen.deeplearning.net.NeuralNetOptions;
+import org.lungen.deeplearning.net.WarmStart;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.learning.config.Adam;
@@ -40,12 +50,14 @@ public class MultivariatePredictorNet implements NeuralNet {
     private EarlyStopListener earlyStopListener;
     private ScorePrintListener scorePrintListener;
     private MultivariateIterator iterator;
-    private UIStatsListener statsListener;
+    private StatsReporter statsListener;
+    private MetricsListener metricsListener;
     private String modelName;
 
     @Override
     public void init(Map<String, Object> params) {
 
+        NeuralNetOptions.applyDataType(params);
         this.iterator = iterator(params);
         int numFeaturesRecurrent    = iterator.getNumSequenceFeatures();
         int numFeaturesNonRecurrent = iterator.getNumNonSequenceFeatures();
@@ -56,8 +68,21 @@ public class MultivariatePredictorNet implements NeuralNet {
         int tbpttSize               = (Integer) params.get(PARAM_TRUNCATED_BPTT_SIZE);
         int numIterEarlyStop        = (Integer) params.get(PARAM_NUMBER_ITER_NO_IMPROVE_STOP);
         int minEpochsEarlyStop      = (Integer) params.getOrDefault(PARAM_MIN_EPOCHS_STOP, 0);
+        double stopSmoothing        = (Double) params.getOrDefault(PARAM_STOP_SCORE_SMOOTHING, EarlyStopListener.DEFAULT_SMOOTHING);
+        double stopMinDelta         = (Double) params.getOrDefault(PARAM_STOP_MIN_DELTA, EarlyStopListener.DEFAULT_MIN_DELTA);
+        String metricsDir           = (String) params.get(PARAM_METRICS_DIR);
+        int metricsExportEach       = (Integer) params.getOrDefault(PARAM_METRICS_EXPORT_SECONDS, 10);
+        int healthEach              = (Integer) params.getOrDefault(PARAM_HEALTH_EACH_ITERATIONS, 0);
+        double vanishingNorm        = (Double) params.getOrDefault(PARAM_HEALTH_VANISHING_NORM, 1e-7);
+        double explodingNorm        = (Double) params.getOrDefault(PARAM_HEALTH_EXPLODING_NORM, 1e+2);
+        WorkspaceMode trainingWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_TRAINING);
+        WorkspaceMode inferenceWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_INFERENCE);
+        CacheMode cacheMode         = NeuralNetOptions.cacheMode(params);
 
         final NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder()
+                .trainingWorkspaceMode(trainingWorkspace)
+                .inferenceWorkspaceMode(inferenceWorkspace)
+                .cacheMode(cacheMode)
 //                .updater(new RmsProp(learningRate))
                 .seed(7)
                 .weightInit(WeightInit.XAVIER)
@@ -113,11 +138,17 @@ public class MultivariatePredictorNet implements NeuralNet {
                 .setOutputs("output");
 
         net = new ComputationGraph(graphBuilder.build());
-        earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop);
+        earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop,
+                stopSmoothing, stopMinDelta);
         scorePrintListener = new ScorePrintListener(1);
-        statsListener = new UIStatsListener();
-        net.setListeners(scorePrintListener, earlyStopListener, statsListener);
+        statsListener = NeuralNetOptions.statsReporter(modelName, params);
+        metricsListener = new MetricsListener(modelName,
+                metricsDir != null ? new File(metricsDir) : null, metricsExportEach);
+        GradientHealthListener healthListener = new GradientHealthListener(metricsListener.getMetrics(),
+                healthEach, vanishingNorm, explodingNorm);
         net.init();
+        net = WarmStart.apply(net, params);
+        net.setListeners(scorePrintListener, earlyStopListener, statsListener, metricsListener, healthListener);
     }
 
     @Override
@@ -125,19 +156,34 @@ public class MultivariatePredictorNet implements NeuralNet {
         int numEpochs                       = (Integer) params.get(PARAM_NUMBER_EPOCHS);
         int checkAfterNMinibatches          = (Integer) params.get(PARAM_CHECK_EACH_NUMBER_MINIBATCHES);
         int stopAfterNMinibatches           = (Integer) params.get(PARAM_STOP_AFTER_NUMBER_MINIBATCHES);
+        int accumulationSteps               = (Integer) params.getOrDefault(PARAM_GRADIENT_ACCUMULATION_STEPS, 1);
+        int profileEach                     = (Integer) params.getOrDefault(PARAM_PROFILE_EACH_MINIBATCHES, 0);
+        String profileFile                  = (String) params.getOrDefault(PARAM_PROFILE_FILE, modelName + "-profile.csv");
+        int prefetchBatches                 = (Integer) params.getOrDefault(PARAM_DATA_PREFETCH_BATCHES, 0);
+        int memoryBudgetMb                  = (Integer) params.getOrDefault(PARAM_MEMORY_BUDGET_MB, 0);
+        double memoryWarning                = (Double) params.getOrDefault(PARAM_MEMORY_WARNING_FRACTION, 0.9);
 
         // Do training, and then generate and print samples from network
+        GradientAccumulator accumulator = new GradientAccumulator(net, accumulationSteps);
+        LayerProfiler profiler = new LayerProfiler(net, profileEach, new File(profileFile));
+        DataPipeline<MultiDataSet> pipeline = DataPipeline.of(iterator, prefetchBatches, metricsListener.getMetrics());
+        MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetMb * 1024L * 1024L, memoryWarning, pipeline, accumulator);
         int miniBatchNumber = 0;
         boolean stop = false;
         for (int i = 0; i < numEpochs; i++) {
             scorePrintListener.setEpoch(i);
             earlyStopListener.setEpoch(i);
+            metricsListener.setEpoch(i);
 
             log.info("[{}] Epoch started", i);
 
-            while (iterator.hasNext()) {
-                MultiDataSet ds = iterator.next();
-                net.fit(ds);
+            while (pipeline.hasNext()) {
+                MultiDataSet ds = pipeline.next();
+                profiler.sample(ds);
+                pipeline.fitStarted();
+                accumulator.fit(ds);
+                pipeline.fitDone();
+                memoryBudget.check();
                 if (++miniBatchNumber % checkAfterNMinibatches == 0) {
                     log.info("--------------------\n");
                     log.info("Completed " + miniBatchNumber + " minibatches");
@@ -156,25 +202,47 @@ public class MultivariatePredictorNet implements NeuralNet {
                 }
 
             }
+            pipeline.epochDone(i);
+            memoryBudget.epochDone(i);
             if (stop) {
                 break;
             }
+            accumulator.flush();
             // Reset iterator for another epoch
-            iterator.reset();
+            pipeline.reset();
             log.info("[{}] Epoch completed", i);
         }
 
-        statsListener.close();
+        // gradients of the last minibatches, e.g. when training stopped early
+        accumulator.flush();
+        pipeline.close();
+        close();
         log.info("Training complete!");
 
         ModelPersistence.save(modelName, net);
     }
 
+    @Override
+    public void close() {
+        statsListener.close();
+        metricsListener.close();
+    }
+
     @Override
     public double getBestScore() {
         return 0;
     }
 
+    @Override
+    public ComputationGraph getModel() {
+        return net;
+    }
+
+    @Override
+    public MultivariateIterator getTrainIterator() {
+        return iterator;
+    }
+
     @Override
     public MultivariateIterator iterator(Map<String, Object> params) {
         String file         = (String) params.get(PARAM_DATA_FILE);
@@ -1,6 +1,7 @@
 package org.lungen.deeplearning.net.classifier;
 
 import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.lungen.deeplearning.evaluation.ValidationSet;
 import org.lungen.deeplearning.iterator.CharacterSequenceClassifierIterator;
 import org.lungen.deeplearning.model.ModelPersistence;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -38,7 +39,7 @@ public class CharacterSequenceClassifierInteractive {
         };
         INDArray[] arrays = iterator.wordsToInputArray(words);
         INDArray[] output = net.output(false, new INDArray[]{arrays[0]}, new INDArray[]{arrays[1]});
-        Integer[] result = iterator.outputArrayToLabels(output[0]);
+        Integer[] result = iterator.outputArrayToLabels(ValidationSet.lastStep(output[0], arrays[1]));
 
         IntStream.range(0, words.length).forEach(i -> {
             System.out.println(words[i] + ": " + result[i]);
@@ -1,10 +1,11 @@
 package org.lungen.deeplearning.net.classifier;
 
-import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
 import org.deeplearning4j.nn.conf.GradientNormalization;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.conf.graph.rnn.LastTimeStepVertex;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.LSTM;
@@ -12,12 +13,26 @@ import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.lungen.deeplearning.evaluation.AsyncEvaluator;
+import org.lungen.deeplearning.evaluation.CachedEvaluationSet;
+import org.lungen.deeplearning.evaluation.ParallelEvaluator;
+import org.lungen.deeplearning.evaluation.ValidationResult;
+import org.lungen.deeplearning.evaluation.ValidationSet;
 import org.lungen.deeplearning.iterator.CharacterSequenceClassifierIterator;
+import org.lungen.deeplearning.iterator.DataPipeline;
+import org.lungen.deeplearning.iterator.TargetReplicationPreProcessor;
 import org.lungen.deeplearning.listener.EarlyStopListener;
+import org.lungen.deeplearning.listener.GradientHealthListener;
+import org.lungen.deeplearning.listener.MetricsListener;
 import org.lungen.deeplearning.listener.ScorePrintListener;
-import org.lungen.deeplearning.listener.UIStatsListener;
+import org.lungen.deeplearning.listener.StatsReporter;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.net.GradientAccumulator;
+import org.lungen.deeplearning.net.LayerProfiler;
+import org.lungen.deeplearning.net.MemoryBudget;
 import org.lungen.deeplearning.net.NeuralNet;
+import org.lungen.deeplearning.net.NeuralNetOptions;
+import org.lungen.deeplearning.net.WarmStart;
 import org.lungen.deeplearning.net.autoencoder.MultivariatePredictorNet;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.dataset.DataSet;
@@ -44,12 +59,19 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
     private ScorePrintListener scorePrintListener;
     private CharacterSequenceClassifierIterator iteratorTrain;
     protected CharacterSequenceClassifierIterator iteratorTest;
-    private UIStatsListener statsListener;
+    private StatsReporter statsListener;
+    private MetricsListener metricsListener;
+    private ValidationSet validationSet;
+    private AsyncEvaluator testEvaluator;
+    private CachedEvaluationSet testSet;
+    private ParallelEvaluator parallelEvaluator;
+    private int validationEachMinibatches;
     private String modelName;
 
     @Override
     public void init(Map<String, Object> params) {
 
+        NeuralNetOptions.applyDataType(params);
         iterator(params);
         int numFeaturesRecurrent = iteratorTrain.getNumSequenceFeatures();
 
@@ -58,9 +80,33 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
         double l2Regularization = (Double) params.get(PARAM_L2_REGULARIZATION);
         int numIterEarlyStop    = (Integer) params.get(PARAM_NUMBER_ITER_NO_IMPROVE_STOP);
         int minEpochsEarlyStop  = (Integer) params.getOrDefault(PARAM_MIN_EPOCHS_STOP, 0);
+        double stopSmoothing    = (Double) params.getOrDefault(PARAM_STOP_SCORE_SMOOTHING, EarlyStopListener.DEFAULT_SMOOTHING);
+        double stopMinDelta     = (Double) params.getOrDefault(PARAM_STOP_MIN_DELTA, EarlyStopListener.DEFAULT_MIN_DELTA);
+        WorkspaceMode trainingWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_TRAINING);
+        WorkspaceMode inferenceWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_INFERENCE);
+        CacheMode cacheMode     = NeuralNetOptions.cacheMode(params);
+        int validationEach      = (Integer) params.getOrDefault(PARAM_VALIDATION_EACH_MINIBATCHES, 0);
+        int validationExamples  = (Integer) params.getOrDefault(PARAM_VALIDATION_NUMBER_EXAMPLES, 0);
+        int validationPatience  = (Integer) params.getOrDefault(PARAM_VALIDATION_PATIENCE, 5);
         int numLabelClasses     = (Integer) params.get(PARAM_NUMBER_OUTPUT_CLASSES);
+        int evaluationBatchSize = (Integer) params.get(PARAM_MINIBATCH_SIZE);
+        int evaluationWorkers   = (Integer) params.getOrDefault(PARAM_EVALUATION_WORKERS,
+                ParallelEvaluator.defaultWorkers());
+        BackpropType backpropType = BackpropType.valueOf(
+                (String) params.getOrDefault(PARAM_BACKPROP_TYPE, BackpropType.Standard.name()));
+        int tbpttSize           = (Integer) params.get(PARAM_TRUNCATED_BPTT_SIZE);
+        String metricsDir       = (String) params.get(PARAM_METRICS_DIR);
+        int metricsExportEach   = (Integer) params.getOrDefault(PARAM_METRICS_EXPORT_SECONDS, 10);
+        int healthEach          = (Integer) params.getOrDefault(PARAM_HEALTH_EACH_ITERATIONS, 0);
+        double vanishingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_VANISHING_NORM, 1e-7);
+        double explodingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_EXPLODING_NORM, 1e+2);
+        // truncated BPTT needs per-step output, label of a sequence is replicated to each step
+        boolean perStepOutput   = backpropType == BackpropType.TruncatedBPTT;
 
         final NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder()
+                .trainingWorkspaceMode(trainingWorkspace)
+                .inferenceWorkspaceMode(inferenceWorkspace)
+                .cacheMode(cacheMode)
 //                .updater(new RmsProp(learningRate))
                 .seed(7)
                 .weightInit(WeightInit.XAVIER)
@@ -70,11 +116,10 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
 
         final int hiddenRecurrentSize = 250;
 
-        // int tbpttSize = iteratorTrain.getCharSequenceMaxLength();
         final ComputationGraphConfiguration.GraphBuilder graphBuilder = builder.graphBuilder()
-                .backpropType(BackpropType.Standard)
-//                .tBPTTForwardLength(tbpttSize)
-//                .tBPTTBackwardLength(tbpttSize)
+                .backpropType(backpropType)
+                .tBPTTForwardLength(tbpttSize)
+                .tBPTTBackwardLength(tbpttSize)
                 .addInputs("recurrentInput")
                 .setInputTypes(InputType.recurrent(numFeaturesRecurrent))
                 .addLayer("lstm-1",
@@ -88,30 +133,56 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
                                 .nIn(hiddenRecurrentSize)
                                 .nOut(hiddenRecurrentSize)
                                 .activation(Activation.TANH)
-                                .build(), "lstm-1")
-                .addVertex("thoughtVector",
-                        new LastTimeStepVertex("recurrentInput"), "lstm-2")
-//                .layer("output",
-//                        new RnnOutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
-//                                .activation(Activation.SOFTMAX)
-//                                .nIn(hiddenRecurrentSize)
-//                                .nOut(numLabelClasses)
-//                                .build(), "thoughtVector")
-                .layer("output",
-                        new OutputLayer.Builder()
-                                .activation(Activation.SOFTMAX)
-                                .lossFunction(LossFunctions.LossFunction.MCXENT)
-                                .nIn(hiddenRecurrentSize)
-                                .nOut(numLabelClasses)
-                                .build(), "thoughtVector")
-                .setOutputs("output");
+                                .build(), "lstm-1");
+        if (perStepOutput) {
+            graphBuilder.layer("output",
+                    new RnnOutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                            .activation(Activation.SOFTMAX)
+                            .nIn(hiddenRecurrentSize)
+                            .nOut(numLabelClasses)
+                            .build(), "lstm-2");
+        } else {
+            graphBuilder
+                    .addVertex("thoughtVector",
+                            new LastTimeStepVertex("recurrentInput"), "lstm-2")
+                    .layer("output",
+                            new OutputLayer.Builder()
+                                    .activation(Activation.SOFTMAX)
+                                    .lossFunction(LossFunctions.LossFunction.MCXENT)
+                                    .nIn(hiddenRecurrentSize)
+                                    .nOut(numLabelClasses)
+                                    .build(), "thoughtVector");
+        }
+        graphBuilder.setOutputs("output");
 
         net = new ComputationGraph(graphBuilder.build());
-        earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop);
+        if (perStepOutput) {
+            iteratorTrain.setPreProcessor(new TargetReplicationPreProcessor());
+        }
+        earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop,
+                stopSmoothing, stopMinDelta);
+        if (validationEach > 0 && validationExamples > 0) {
+            // fixed subset held out of the training data, validated on schedule, drives early stopping
+            this.validationEachMinibatches = validationEach;
+            this.validationSet = new ValidationSet(iteratorTrain.holdOut(validationExamples));
+            earlyStopListener.setValidationPatience(validationPatience);
+        }
+        testEvaluator = new AsyncEvaluator();
+        testSet = CachedEvaluationSet.fromIterator(iteratorTest, Integer.MAX_VALUE, evaluationBatchSize);
+        if (evaluationWorkers > ParallelEvaluator.defaultWorkers()) {
+            // test set is evaluated in background, concurrently with training
+            log.warn("{} evaluation workers oversubscribe the cores used by training", evaluationWorkers);
+        }
+        parallelEvaluator = new ParallelEvaluator(evaluationWorkers);
         scorePrintListener = new ScorePrintListener(1);
-        statsListener = new UIStatsListener();
-        net.setListeners(scorePrintListener, earlyStopListener, statsListener);
+        statsListener = NeuralNetOptions.statsReporter(modelName, params);
+        metricsListener = new MetricsListener(modelName,
+                metricsDir != null ? new File(metricsDir) : null, metricsExportEach);
+        GradientHealthListener healthListener = new GradientHealthListener(metricsListener.getMetrics(),
+                healthEach, vanishingNorm, explodingNorm);
         net.init();
+        net = WarmStart.apply(net, params);
+        net.setListeners(scorePrintListener, earlyStopListener, statsListener, metricsListener, healthListener);
     }
 
     @Override
@@ -119,25 +190,49 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
         int numEpochs = (Integer) params.get(PARAM_NUMBER_EPOCHS);
         int checkAfterNMinibatches = (Integer) params.get(PARAM_CHECK_EACH_NUMBER_MINIBATCHES);
         int stopAfterNMinibatches = (Integer) params.get(PARAM_STOP_AFTER_NUMBER_MINIBATCHES);
+        int accumulationSteps = (Integer) params.getOrDefault(PARAM_GRADIENT_ACCUMULATION_STEPS, 1);
+        int profileEach       = (Integer) params.getOrDefault(PARAM_PROFILE_EACH_MINIBATCHES, 0);
+        String profileFile    = (String) params.getOrDefault(PARAM_PROFILE_FILE, modelName + "-profile.csv");
+        int prefetchBatches   = (Integer) params.getOrDefault(PARAM_DATA_PREFETCH_BATCHES, 0);
+        int memoryBudgetMb    = (Integer) params.getOrDefault(PARAM_MEMORY_BUDGET_MB, 0);
+        double memoryWarning  = (Double) params.getOrDefault(PARAM_MEMORY_WARNING_FRACTION, 0.9);
 
         // Do training, and then generate and print samples from network
+        GradientAccumulator accumulator = new GradientAccumulator(net, accumulationSteps);
+        LayerProfiler profiler = new LayerProfiler(net, profileEach, new File(profileFile));
+        DataPipeline<DataSet> pipeline = DataPipeline.of(iteratorTrain, prefetchBatches, metricsListener.getMetrics());
+        MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetMb * 1024L * 1024L, memoryWarning, pipeline, accumulator);
         int miniBatchNumber = 0;
         boolean stop = false;
         for (int i = 0; i < numEpochs; i++) {
             scorePrintListener.setEpoch(i);
             earlyStopListener.setEpoch(i);
+            metricsListener.setEpoch(i);
 
             log.info("[{}] Epoch started", i);
             String str = "Test set evaluation at epoch %d: Accuracy = %.2f, F1 = %.2f";
 
-            while (iteratorTrain.hasNext()) {
-                DataSet ds = iteratorTrain.next();
-                net.fit(ds);
+            while (pipeline.hasNext()) {
+                DataSet ds = pipeline.next();
+                profiler.sample(ds);
+                pipeline.fitStarted();
+                accumulator.fit(ds);
+                pipeline.fitDone();
+                memoryBudget.check();
 
                 if (++miniBatchNumber % checkAfterNMinibatches == 0) {
-                    // evaluate
-                    Evaluation evaluation = net.evaluate(iteratorTest);
-                    log.info("[{}][{}] Test set evaluation. Accuracy: {}, F1: {}", i, miniBatchNumber, evaluation.accuracy(), evaluation.f1());
+                    // evaluate in background on a snapshot, skipped if previous evaluation is not completed
+                    int epoch = i;
+                    int evaluatedMiniBatchNumber = miniBatchNumber;
+                    testEvaluator.evaluate(net,
+                            replica -> parallelEvaluator.evaluate(replica, testSet.getBatches()),
+                            evaluation -> log.info("[{}][{}] Test set evaluation. Accuracy: {}, F1: {}",
+                                    epoch, evaluatedMiniBatchNumber, evaluation.accuracy(), evaluation.f1()));
+                }
+                if (validationSet != null && miniBatchNumber % validationEachMinibatches == 0) {
+                    ValidationResult validation = validationSet.evaluate(net);
+                    log.info("[{}][{}] Validation: {}", i, miniBatchNumber, validation);
+                    earlyStopListener.validationDone(net, validation.getLoss());
                 }
                 if (stopAfterNMinibatches > 0 && miniBatchNumber >= stopAfterNMinibatches) {
                     stop = true;
@@ -150,26 +245,49 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
                 }
 
             }
+            pipeline.epochDone(i);
+            memoryBudget.epochDone(i);
             if (stop) {
                 break;
             }
+            accumulator.flush();
             // Reset iterator for another epoch
-            iteratorTrain.reset();
-            iteratorTest.reset();
+            pipeline.reset();
             log.info("[{}] Epoch completed", i);
         }
 
-        statsListener.close();
+        // gradients of the last minibatches, e.g. when training stopped early
+        accumulator.flush();
+        pipeline.close();
+        close();
         log.info("Training complete!");
 
         ModelPersistence.save(modelName, net);
     }
 
+    @Override
+    public void close() {
+        statsListener.close();
+        metricsListener.close();
+        testEvaluator.close();
+        parallelEvaluator.close();
+    }
+
     @Override
     public double getBestScore() {
         return 0;
     }
 
+    @Override
+    public ComputationGraph getModel() {
+        return net;
+    }
+
+    @Override
+    public CharacterSequenceClassifierIterator getTrainIterator() {
+        return iteratorTrain;
+    }
+
     @Override
     public CharacterSequenceClassifierIterator iterator(Map<String, Object> params) {
         String fileTrain        = (String) params.get(PARAM_DATA_FILE);
@@ -198,11 +316,15 @@ public class CharacterSequenceClassifierNet implements NeuralNet {
         params.put(PARAM_SEQUENCE_LENGTH, 1000);
         params.put(PARAM_LEARNING_RATE, 1e-3);
         params.put(PARAM_L2_REGULARIZATION, 1e-3);
+        params.put(PARAM_BACKPROP_TYPE, BackpropType.Standard.name());
         params.put(PARAM_TRUNCATED_BPTT_SIZE, 50);
         params.put(PARAM_CHECK_EACH_NUMBER_MINIBATCHES, 20);
         params.put(PARAM_STOP_AFTER_NUMBER_MINIBATCHES, -1);
         params.put(PARAM_NUMBER_EPOCHS, 1);
         params.put(PARAM_NUMBER_ITER_NO_IMPROVE_STOP, 20000);
+        params.put(PARAM_VALIDATION_EACH_MINIBATCHES, 100);
+        params.put(PARAM_VALIDATION_NUMBER_EXAMPLES, 320);
+        params.put(PARAM_VALIDATION_PATIENCE, 5);
         return params;
     }
 
@@ -8,21 +8,35 @@ import org.datavec.api.records.reader.SequenceRecordReader;
 import org.datavec.api.records.reader.impl.csv.CSVSequenceRecordReader;
 import org.datavec.api.split.NumberedFileInputSplit;
 import org.deeplearning4j.datasets.datavec.SequenceRecordReaderDataSetIterator;
-import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.GradientNormalization;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.lungen.deeplearning.evaluation.AsyncEvaluator;
+import org.lungen.deeplearning.evaluation.CachedEvaluationSet;
+import org.lungen.deeplearning.evaluation.ValidationResult;
+import org.lungen.deeplearning.evaluation.ValidationSet;
+import org.lungen.deeplearning.iterator.DataPipeline;
 import org.lungen.deeplearning.listener.EarlyStopListener;
+import org.lungen.deeplearning.listener.GradientHealthListener;
+import org.lungen.deeplearning.listener.MetricsListener;
 import org.lungen.deeplearning.listener.ScorePrintListener;
-import org.lungen.deeplearning.listener.UIStatsListener;
+import org.lungen.deeplearning.listener.StatsReporter;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.net.GradientAccumulator;
+import org.lungen.deeplearning.net.LayerProfiler;
+import org.lungen.deeplearning.net.MemoryBudget;
 import org.lungen.deeplearning.net.NeuralNet;
+import org.lungen.deeplearning.net.NeuralNetOptions;
+import org.lungen.deeplearning.net.WarmStart;
 import org.lungen.deeplearning.net.generator.CharacterSequenceGeneratorNet;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
@@ -49,13 +63,20 @@ public class SequenceClassifierNet implements NeuralNet {
     private MultiLayerNetwork net;
     private ScorePrintListener scorePrintListener;
     private EarlyStopListener earlyStopListener;
-    private UIStatsListener statsListener;
+    private StatsReporter statsListener;
+    private MetricsListener metricsListener;
+    private ValidationSet validationSet;
+    private AsyncEvaluator testEvaluator;
+    private CachedEvaluationSet testSet;
+    private int validationEachMinibatches;
     private DataSetIterator iteratorTrain;
     private DataSetIterator iteratorTest;
+    private DataSetIterator iteratorValidation;
 
     @Override
     public void init(Map<String, Object> params) {
 
+        NeuralNetOptions.applyDataType(params);
         Pair<DataSetIterator, DataSetIterator> pair = iterator(params);
         this.iteratorTrain = pair.getFirst();
         this.iteratorTest = pair.getSecond();
@@ -66,12 +87,28 @@ public class SequenceClassifierNet implements NeuralNet {
         int tbpttSize           = (Integer) params.get(PARAM_TRUNCATED_BPTT_SIZE);
         int numIterEarlyStop    = (Integer) params.get(PARAM_NUMBER_ITER_NO_IMPROVE_STOP);
         int minEpochsEarlyStop  = (Integer) params.getOrDefault(PARAM_MIN_EPOCHS_STOP, 0);
+        double stopSmoothing    = (Double) params.getOrDefault(PARAM_STOP_SCORE_SMOOTHING, EarlyStopListener.DEFAULT_SMOOTHING);
+        double stopMinDelta     = (Double) params.getOrDefault(PARAM_STOP_MIN_DELTA, EarlyStopListener.DEFAULT_MIN_DELTA);
+        WorkspaceMode trainingWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_TRAINING);
+        WorkspaceMode inferenceWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_INFERENCE);
+        CacheMode cacheMode     = NeuralNetOptions.cacheMode(params);
+        int validationEach      = (Integer) params.getOrDefault(PARAM_VALIDATION_EACH_MINIBATCHES, 0);
+        int validationExamples  = (Integer) params.getOrDefault(PARAM_VALIDATION_NUMBER_EXAMPLES, 0);
+        int validationPatience  = (Integer) params.getOrDefault(PARAM_VALIDATION_PATIENCE, 5);
         int numLabelClasses     = (Integer) params.get(PARAM_NUMBER_OUTPUT_CLASSES);
+        String metricsDir       = (String) params.get(PARAM_METRICS_DIR);
+        int metricsExportEach   = (Integer) params.getOrDefault(PARAM_METRICS_EXPORT_SECONDS, 10);
+        int healthEach          = (Integer) params.getOrDefault(PARAM_HEALTH_EACH_ITERATIONS, 0);
+        double vanishingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_VANISHING_NORM, 1e-7);
+        double explodingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_EXPLODING_NORM, 1e+2);
 
         int lstmLayerSize = 200;
 
         // ----- Configure the network -----
         MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .trainingWorkspaceMode(trainingWorkspace)
+                .inferenceWorkspaceMode(inferenceWorkspace)
+                .cacheMode(cacheMode)
                 .seed(123)    //Random number generator seed for improved repeatability. Optional.
                 .weightInit(WeightInit.XAVIER)
                 .updater(new Nesterovs(0.005))
@@ -86,59 +123,121 @@ public class SequenceClassifierNet implements NeuralNet {
         this.modelName = modelName;
         this.net = new MultiLayerNetwork(conf);
         this.net.init();
+        this.net = WarmStart.apply(net, params);
+        this.testEvaluator = new AsyncEvaluator();
+        this.testSet = CachedEvaluationSet.fromIterator(iteratorTest, Integer.MAX_VALUE, iteratorTest.batch());
         this.scorePrintListener = new ScorePrintListener(10);
-        this.statsListener = new UIStatsListener();
-        this.earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop);
-        this.net.setListeners(scorePrintListener, statsListener, earlyStopListener);
+        this.statsListener = NeuralNetOptions.statsReporter(modelName, params);
+        this.metricsListener = new MetricsListener(modelName,
+                metricsDir != null ? new File(metricsDir) : null, metricsExportEach);
+        GradientHealthListener healthListener = new GradientHealthListener(metricsListener.getMetrics(),
+                healthEach, vanishingNorm, explodingNorm);
+        this.earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop,
+                stopSmoothing, stopMinDelta);
+        if (validationEach > 0 && validationExamples > 0) {
+            // fixed subset held out of the training files, validated on schedule, drives early stopping
+            this.validationEachMinibatches = validationEach;
+            this.validationSet = ValidationSet.fromIterator(iteratorValidation, validationExamples);
+            earlyStopListener.setValidationPatience(validationPatience);
+        }
+        this.net.setListeners(scorePrintListener, statsListener, earlyStopListener, metricsListener, healthListener);
     }
 
     @Override
     public void train(Map<String, Object> params) {
 
         int numEpochs               = (Integer) params.get(PARAM_NUMBER_EPOCHS);
+        int accumulationSteps       = (Integer) params.getOrDefault(PARAM_GRADIENT_ACCUMULATION_STEPS, 1);
+        int profileEach             = (Integer) params.getOrDefault(PARAM_PROFILE_EACH_MINIBATCHES, 0);
+        String profileFile          = (String) params.getOrDefault(PARAM_PROFILE_FILE, modelName + "-profile.csv");
+        int prefetchBatches         = (Integer) params.getOrDefault(PARAM_DATA_PREFETCH_BATCHES, 0);
+        int memoryBudgetMb          = (Integer) params.getOrDefault(PARAM_MEMORY_BUDGET_MB, 0);
+        double memoryWarning        = (Double) params.getOrDefault(PARAM_MEMORY_WARNING_FRACTION, 0.9);
 
         // ----- Train the network, evaluating the test set performance at each epoch -----
         String str = "Test set evaluation at epoch %d: Accuracy = %.2f, F1 = %.2f";
+        GradientAccumulator accumulator = new GradientAccumulator(net, accumulationSteps);
+        LayerProfiler profiler = new LayerProfiler(net, profileEach, new File(profileFile));
+        DataPipeline<DataSet> pipeline = DataPipeline.of(iteratorTrain, prefetchBatches, metricsListener.getMetrics());
+        MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetMb * 1024L * 1024L, memoryWarning, pipeline, accumulator);
+        int miniBatchNumber = 0;
         for (int i = 0; i < numEpochs; i++) {
             scorePrintListener.setEpoch(i);
             earlyStopListener.setEpoch(i);
+            metricsListener.setEpoch(i);
 
             // actual training
-            net.fit(iteratorTrain);
+            while (pipeline.hasNext()) {
+                DataSet ds = pipeline.next();
+                profiler.sample(ds);
+                pipeline.fitStarted();
+                accumulator.fit(ds);
+                pipeline.fitDone();
+                memoryBudget.check();
+                if (validationSet != null && ++miniBatchNumber % validationEachMinibatches == 0) {
+                    ValidationResult validation = validationSet.evaluate(net);
+                    log.info("[{}][{}] Validation: {}", i, miniBatchNumber, validation);
+                    earlyStopListener.validationDone(net, validation.getLoss());
+                }
+                if (earlyStopListener.isStopRecommended()) {
+                    break;
+                }
+            }
+            pipeline.epochDone(i);
+            memoryBudget.epochDone(i);
 
-            //Evaluate on the test set:
-            Evaluation evaluation = net.evaluate(iteratorTest);
-            log.info(String.format(str, i, evaluation.accuracy(), evaluation.f1()));
+            //Evaluate on the test set in background, skipped if previous evaluation is not completed
+            int epoch = i;
+            testEvaluator.evaluate(net, testSet::evaluate, evaluation ->
+                    log.info(String.format(str, epoch, evaluation.accuracy(), evaluation.f1())));
 
             if (earlyStopListener.isStopRecommended()) {
                 break;
             }
 
-            iteratorTrain.reset();
-            iteratorTest.reset();
+            accumulator.flush();
+            pipeline.reset();
         }
 
-        statsListener.close();
+        // gradients of the last minibatches, e.g. when training stopped early
+        accumulator.flush();
+        pipeline.close();
+        close();
         log.info("Training complete");
 
         ModelPersistence.save(modelName, net);
     }
 
+    @Override
+    public void close() {
+        statsListener.close();
+        metricsListener.close();
+        testEvaluator.close();
+    }
+
     @Override
     public Pair<DataSetIterator, DataSetIterator> iterator(Map<String, Object> params) {
         String file         = (String) params.get(PARAM_DATA_FILE);
         int miniBatchSize   = (Integer) params.get(PARAM_MINIBATCH_SIZE);
         int sequenceLength  = (Integer) params.get(PARAM_SEQUENCE_LENGTH);
+        int validationEach  = (Integer) params.getOrDefault(PARAM_VALIDATION_EACH_MINIBATCHES, 0);
+        // last training files are held out for validation, so that the test set stays unseen by model selection
+        int validationFiles = validationEach > 0 ? (Integer) params.getOrDefault(PARAM_VALIDATION_NUMBER_EXAMPLES, 0) : 0;
+        if (validationFiles < 0 || validationFiles >= 450) {
+            throw new IllegalArgumentException("Invalid number of validation examples: " + validationFiles
+                    + " (must be >=0 and <450)");
+        }
+        int lastTrainFile = 449 - validationFiles;
 
         try {
             // ----- Load the training data -----
             //Note that we have 450 training files for features: train/features/0.csv through train/features/449.csv
             SequenceRecordReader trainFeatures = new CSVSequenceRecordReader();
             trainFeatures.initialize(new NumberedFileInputSplit(
-                    featuresDirTrain.getAbsolutePath() + "/%d.csv", 0, 449));
+                    featuresDirTrain.getAbsolutePath() + "/%d.csv", 0, lastTrainFile));
             SequenceRecordReader trainLabels = new CSVSequenceRecordReader();
             trainLabels.initialize(new NumberedFileInputSplit(
-                    labelsDirTrain.getAbsolutePath() + "/%d.csv", 0, 449));
+                    labelsDirTrain.getAbsolutePath() + "/%d.csv", 0, lastTrainFile));
 
             int numLabelClasses = (Integer) params.get(PARAM_NUMBER_OUTPUT_CLASSES);
 
@@ -166,6 +265,19 @@ public class SequenceClassifierNet implements NeuralNet {
                     false, SequenceRecordReaderDataSetIterator.AlignmentMode.ALIGN_END);
 
             testData.setPreProcessor(normalizer);   //Note that we are using the exact same normalization process as the training data
+
+            // ----- Load the validation data -----
+            if (validationFiles > 0) {
+                SequenceRecordReader validationFeatures = new CSVSequenceRecordReader();
+                validationFeatures.initialize(new NumberedFileInputSplit(
+                        featuresDirTrain.getAbsolutePath() + "/%d.csv", lastTrainFile + 1, 449));
+                SequenceRecordReader validationLabels = new CSVSequenceRecordReader();
+                validationLabels.initialize(new NumberedFileInputSplit(
+                        labelsDirTrain.getAbsolutePath() + "/%d.csv", lastTrainFile + 1, 449));
+                iteratorValidation = new SequenceRecordReaderDataSetIterator(validationFeatures, validationLabels,
+                        miniBatchSize, numLabelClasses, false, SequenceRecordReaderDataSetIterator.AlignmentMode.ALIGN_END);
+                iteratorValidation.setPreProcessor(normalizer);
+            }
             return new Pair<DataSetIterator, DataSetIterator>(trainData, testData);
 
         } catch (Exception e) {
@@ -178,6 +290,16 @@ public class SequenceClassifierNet implements NeuralNet {
         return earlyStopListener.getBestScore();
     }
 
+    @Override
+    public MultiLayerNetwork getModel() {
+        return net;
+    }
+
+    @Override
+    public DataSetIterator getTrainIterator() {
+        return iteratorTrain;
+    }
+
     @Override
     public Map<String, Object> defaultParams() {
         Map<String, Object> params = new HashMap<>();
@@ -187,6 +309,9 @@ public class SequenceClassifierNet implements NeuralNet {
         params.put(PARAM_CHECK_EACH_NUMBER_MINIBATCHES, 10);
         params.put(PARAM_NUMBER_EPOCHS, 40);
         params.put(PARAM_NUMBER_ITER_NO_IMPROVE_STOP, 20000);
+        params.put(PARAM_VALIDATION_EACH_MINIBATCHES, 10);
+        params.put(PARAM_VALIDATION_NUMBER_EXAMPLES, 50);
+        params.put(PARAM_VALIDATION_PATIENCE, 5);
         return params;
     }
 
@@ -1,17 +1,34 @@
 package org.lungen.deeplearning.net.classifier;
 
+import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.*;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.lungen.deeplearning.evaluation.CachedEvaluationSet;
+import org.lungen.deeplearning.evaluation.ParallelEvaluator;
+import org.lungen.deeplearning.evaluation.ValidationResult;
+import org.lungen.deeplearning.evaluation.ValidationSet;
+import org.lungen.deeplearning.iterator.DataPipeline;
 import org.lungen.deeplearning.iterator.StringClassifierIterator;
+import org.lungen.deeplearning.iterator.TargetReplicationPreProcessor;
 import org.lungen.deeplearning.listener.EarlyStopListener;
+import org.lungen.deeplearning.listener.GradientHealthListener;
+import org.lungen.deeplearning.listener.MetricsListener;
 import org.lungen.deeplearning.listener.ScorePrintListener;
-import org.lungen.deeplearning.listener.UIStatsListener;
+import org.lungen.deeplearning.listener.StatsReporter;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.net.GradientAccumulator;
+import org.lungen.deeplearning.net.LayerProfiler;
+import org.lungen.deeplearning.net.MemoryBudget;
 import org.lungen.deeplearning.net.NeuralNet;
+import org.lungen.deeplearning.net.NeuralNetOptions;
+import org.lungen.deeplearning.net.WarmStart;
+import org.nd4j.evaluation.classification.Evaluation;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
@@ -44,12 +61,19 @@ public class StringClassifierNet implements NeuralNet {
     private ScorePrintListener scorePrintListener;
     private StringClassifierIterator iteratorTrain;
     private StringClassifierIterator iteratorTest;
-    private UIStatsListener statsListener;
+    private StatsReporter statsListener;
+    private MetricsListener metricsListener;
+    private ValidationSet validationSet;
+    private CachedEvaluationSet testSet;
+    private CachedEvaluationSet fullTestSet;
+    private ParallelEvaluator parallelEvaluator;
+    private int validationEachMinibatches;
     private String modelName;
 
     @Override
     public void init(Map<String, Object> params) {
 
+        NeuralNetOptions.applyDataType(params);
         iterator(params);
         int numFeaturesRecurrent = iteratorTrain.getNumSequenceFeatures();
 
@@ -58,9 +82,31 @@ public class StringClassifierNet implements NeuralNet {
         double l2Regularization = (Double) params.get(PARAM_L2_REGULARIZATION);
         int numIterEarlyStop    = (Integer) params.get(PARAM_NUMBER_ITER_NO_IMPROVE_STOP);
         int minEpochsEarlyStop  = (Integer) params.getOrDefault(PARAM_MIN_EPOCHS_STOP, 0);
-//        int tbpttSize = (Integer) params.get(PARAM_TRUNCATED_BPTT_SIZE);
+        double stopSmoothing    = (Double) params.getOrDefault(PARAM_STOP_SCORE_SMOOTHING, EarlyStopListener.DEFAULT_SMOOTHING);
+        double stopMinDelta     = (Double) params.getOrDefault(PARAM_STOP_MIN_DELTA, EarlyStopListener.DEFAULT_MIN_DELTA);
+        WorkspaceMode trainingWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_TRAINING);
+        WorkspaceMode inferenceWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_INFERENCE);
+        CacheMode cacheMode     = NeuralNetOptions.cacheMode(params);
+        int evaluationWorkers   = (Integer) params.getOrDefault(PARAM_EVALUATION_WORKERS,
+                ParallelEvaluator.defaultWorkers());
+        int validationEach      = (Integer) params.getOrDefault(PARAM_VALIDATION_EACH_MINIBATCHES, 0);
+        int validationExamples  = (Integer) params.getOrDefault(PARAM_VALIDATION_NUMBER_EXAMPLES, 0);
+        int validationPatience  = (Integer) params.getOrDefault(PARAM_VALIDATION_PATIENCE, 5);
+        BackpropType backpropType = BackpropType.valueOf(
+                (String) params.getOrDefault(PARAM_BACKPROP_TYPE, BackpropType.Standard.name()));
+        int tbpttSize           = (Integer) params.get(PARAM_TRUNCATED_BPTT_SIZE);
+        String metricsDir       = (String) params.get(PARAM_METRICS_DIR);
+        int metricsExportEach   = (Integer) params.getOrDefault(PARAM_METRICS_EXPORT_SECONDS, 10);
+        int healthEach          = (Integer) params.getOrDefault(PARAM_HEALTH_EACH_ITERATIONS, 0);
+        double vanishingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_VANISHING_NORM, 1e-7);
+        double explodingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_EXPLODING_NORM, 1e+2);
+        // truncated BPTT needs per-step output, label of a sequence is replicated to each step
+        boolean perStepOutput   = backpropType == BackpropType.TruncatedBPTT;
 
         final NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder()
+                .trainingWorkspaceMode(trainingWorkspace)
+                .inferenceWorkspaceMode(inferenceWorkspace)
+                .cacheMode(cacheMode)
                 .seed(7)
                 .weightInit(WeightInit.XAVIER)
                 .l2(l2Regularization)
@@ -75,9 +121,9 @@ public class StringClassifierNet implements NeuralNet {
         final int hiddenDenseSize = 250;
 
         final ComputationGraphConfiguration.GraphBuilder graphBuilder = builder.graphBuilder()
-//                .backpropType(BackpropType.TruncatedBPTT)
-//                .tBPTTForwardLength(tbpttSize)
-//                .tBPTTBackwardLength(tbpttSize)
+                .backpropType(backpropType)
+                .tBPTTForwardLength(tbpttSize)
+                .tBPTTBackwardLength(tbpttSize)
                 .addInputs("recurrentInput")
                 .setInputTypes(InputType.recurrent(numFeaturesRecurrent))
                 .addLayer("lstm-1",
@@ -97,16 +143,20 @@ public class StringClassifierNet implements NeuralNet {
                                 .nIn(hiddenRecurrentSize)
                                 .nOut(hiddenRecurrentSize)
                                 .activation(Activation.TANH)
-                                .build(), "lstm-2")
+                                .build(), "lstm-2");
 //                .addVertex("thoughtVector",
 //                        new LastTimeStepVertex("recurrentInput"),
 //                        "lstm-3")
-                .addLayer("thoughtVector",
-                        new GlobalPoolingLayer.Builder()
-                                .poolingType(PoolingType.AVG)
-                                .poolingDimensions(2) // recurrent dimension
-                                .collapseDimensions(true)
-                                .build(), "lstm-3")
+        if (!perStepOutput) {
+            graphBuilder.addLayer("thoughtVector",
+                    new GlobalPoolingLayer.Builder()
+                            .poolingType(PoolingType.AVG)
+                            .poolingDimensions(2) // recurrent dimension
+                            .collapseDimensions(true)
+                            .build(), "lstm-3");
+        }
+        // with per-step output dense layers are applied to each step
+        graphBuilder
 //                .addLayer("norm-1",
 //                        new BatchNormalization.Builder()
 //                                .nIn(hiddenRecurrentSize)
@@ -117,7 +167,7 @@ public class StringClassifierNet implements NeuralNet {
                                 .activation(Activation.LEAKYRELU)
                                 .nIn(hiddenRecurrentSize)
                                 .nOut(hiddenDenseSize)
-                                .build(), "thoughtVector")
+                                .build(), perStepOutput ? "lstm-3" : "thoughtVector")
 //                .addLayer("norm-2",
 //                        new BatchNormalization.Builder()
 //                                .nIn(hiddenDenseSize)
@@ -135,7 +185,7 @@ public class StringClassifierNet implements NeuralNet {
 //                                .nOut(hiddenDenseSize)
 //                                .build(), "dense-2")
                 .addLayer("output",
-                        new OutputLayer.Builder()
+                        (perStepOutput ? new RnnOutputLayer.Builder() : new OutputLayer.Builder())
                                 .activation(Activation.SOFTMAX)
                                 .lossFunction(LossFunctions.LossFunction.MCXENT)
                                 .nIn(hiddenDenseSize)
@@ -144,11 +194,29 @@ public class StringClassifierNet implements NeuralNet {
                 .setOutputs("output");
 
         net = new ComputationGraph(graphBuilder.build());
-        earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop);
+        if (perStepOutput) {
+            iteratorTrain.setPreProcessor(new TargetReplicationPreProcessor());
+        }
+        earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop,
+                stopSmoothing, stopMinDelta);
+        if (validationEach > 0 && validationExamples > 0) {
+            // fixed subset held out of the training data, validated on schedule, drives early stopping
+            this.validationEachMinibatches = validationEach;
+            this.validationSet = new ValidationSet(iteratorTrain.holdOut(validationExamples));
+            earlyStopListener.setValidationPatience(validationPatience);
+        }
+        testSet = CachedEvaluationSet.fromIterator(iteratorTest, 100, iteratorTest.batch());
+        fullTestSet = CachedEvaluationSet.fromIterator(iteratorTest, Integer.MAX_VALUE, iteratorTest.batch());
+        parallelEvaluator = new ParallelEvaluator(evaluationWorkers);
         scorePrintListener = new ScorePrintListener(1);
-        statsListener = new UIStatsListener();
-        net.setListeners(scorePrintListener, earlyStopListener, statsListener);
+        statsListener = NeuralNetOptions.statsReporter(modelName, params);
+        metricsListener = new MetricsListener(modelName,
+                metricsDir != null ? new File(metricsDir) : null, metricsExportEach);
+        GradientHealthListener healthListener = new GradientHealthListener(metricsListener.getMetrics(),
+                healthEach, vanishingNorm, explodingNorm);
         net.init();
+        net = WarmStart.apply(net, params);
+        net.setListeners(scorePrintListener, earlyStopListener, statsListener, metricsListener, healthListener);
     }
 
     @Override
@@ -156,19 +224,34 @@ public class StringClassifierNet implements NeuralNet {
         int numEpochs = (Integer) params.get(PARAM_NUMBER_EPOCHS);
         int checkAfterNMinibatches = (Integer) params.get(PARAM_CHECK_EACH_NUMBER_MINIBATCHES);
         int stopAfterNMinibatches = (Integer) params.get(PARAM_STOP_AFTER_NUMBER_MINIBATCHES);
+        int accumulationSteps = (Integer) params.getOrDefault(PARAM_GRADIENT_ACCUMULATION_STEPS, 1);
+        int profileEach       = (Integer) params.getOrDefault(PARAM_PROFILE_EACH_MINIBATCHES, 0);
+        String profileFile    = (String) params.getOrDefault(PARAM_PROFILE_FILE, modelName + "-profile.csv");
+        int prefetchBatches   = (Integer) params.getOrDefault(PARAM_DATA_PREFETCH_BATCHES, 0);
+        int memoryBudgetMb    = (Integer) params.getOrDefault(PARAM_MEMORY_BUDGET_MB, 0);
+        double memoryWarning  = (Double) params.getOrDefault(PARAM_MEMORY_WARNING_FRACTION, 0.9);
 
         // Do training, and then generate and print samples from network
+        GradientAccumulator accumulator = new GradientAccumulator(net, accumulationSteps);
+        LayerProfiler profiler = new LayerProfiler(net, profileEach, new File(profileFile));
+        DataPipeline<DataSet> pipeline = DataPipeline.of(iteratorTrain, prefetchBatches, metricsListener.getMetrics());
+        MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetMb * 1024L * 1024L, memoryWarning, pipeline, accumulator);
         int miniBatchNumber = 0;
         boolean stop = false;
         for (int i = 0; i < numEpochs; i++) {
             scorePrintListener.setEpoch(i);
             earlyStopListener.setEpoch(i);
+            metricsListener.setEpoch(i);
 
             log.info("[{}] Epoch started", i);
 
-            while (iteratorTrain.hasNext()) {
-                DataSet ds = iteratorTrain.next();
-                net.fit(ds);
+            while (pipeline.hasNext()) {
+                DataSet ds = pipeline.next();
+                profiler.sample(ds);
+                pipeline.fitStarted();
+                accumulator.fit(ds);
+                pipeline.fitDone();
+                memoryBudget.check();
 
                 if (++miniBatchNumber % checkAfterNMinibatches == 0) {
 
@@ -177,9 +260,12 @@ public class StringClassifierNet implements NeuralNet {
 //                    Evaluation evaluation = net.evaluate(iteratorTest);
 //                    log.info("[{}][{}] Test set evaluation. Accuracy: {}, F1: {}", i, miniBatchNumber, evaluation.accuracy(), evaluation.f1());
 
-                    iteratorTest.reset();
-                    DataSet testSet = iteratorTest.next(100);
-                    testOutputAndScore(testSet);
+                    testOutputAndScore();
+                }
+                if (validationSet != null && miniBatchNumber % validationEachMinibatches == 0) {
+                    ValidationResult validation = validationSet.evaluate(net);
+                    log.info("[{}][{}] Validation: {}", i, miniBatchNumber, validation);
+                    earlyStopListener.validationDone(net, validation.getLoss());
                 }
                 if (stopAfterNMinibatches > 0 && miniBatchNumber >= stopAfterNMinibatches) {
                     stop = true;
@@ -192,39 +278,55 @@ public class StringClassifierNet implements NeuralNet {
                 }
 
             }
+            pipeline.epochDone(i);
+            memoryBudget.epochDone(i);
             if (stop) {
                 break;
             }
+            accumulator.flush();
             // Reset iterator for another epoch
-            iteratorTrain.reset();
+            pipeline.reset();
             log.info("[{}] Epoch completed", i);
+
+            Evaluation evaluation = parallelEvaluator.evaluate(net, fullTestSet.getBatches());
+            log.info("[{}] Test set evaluation. Accuracy: {}, F1: {}", i, evaluation.accuracy(), evaluation.f1());
         }
 
-        statsListener.close();
+        // gradients of the last minibatches, e.g. when training stopped early
+        accumulator.flush();
+        pipeline.close();
+        close();
         log.info("Training complete!");
 
         ModelPersistence.save(modelName, net);
     }
 
-    private void testOutputAndScore(DataSet testSet) {
+    @Override
+    public void close() {
+        statsListener.close();
+        metricsListener.close();
+        parallelEvaluator.close();
+    }
+
+    private void testOutputAndScore() {
         net.rnnClearPreviousState();
-        INDArray output = net.output(false,
-                new INDArray[] {testSet.getFeatures()},
-                new INDArray[] {testSet.getFeaturesMaskArray()})[0];
-        INDArray labels = testSet.getLabels();
         StringBuilder evalMsg = new StringBuilder("--- Evaluation ---\n");
         int sumCorrect = 0;
-        for (int i = 0; i < output.size(0); i++) {
-            INDArray resultArray = output.get(NDArrayIndex.point(i), NDArrayIndex.all());
-            List<Double> resultList = Arrays.stream(resultArray.toDoubleVector()).boxed().collect(Collectors.toList());
-            int result = resultArray.argMax(1).getInt(0);
-            int expected = labels.get(NDArrayIndex.point(i), NDArrayIndex.all()).argMax(1).getInt(0);
-            evalMsg.append(resultList).append(", ").append(result).append(" : ").append(expected).append('\n');
-            if (result == expected) {
-                sumCorrect++;
+        for (DataSet testBatch : testSet.getBatches()) {
+            INDArray output = ValidationSet.output(net, testBatch);
+            INDArray labels = testBatch.getLabels();
+            for (int i = 0; i < output.size(0); i++) {
+                INDArray resultArray = output.get(NDArrayIndex.point(i), NDArrayIndex.all());
+                List<Double> resultList = Arrays.stream(resultArray.toDoubleVector()).boxed().collect(Collectors.toList());
+                int result = resultArray.argMax(1).getInt(0);
+                int expected = labels.get(NDArrayIndex.point(i), NDArrayIndex.all()).argMax(1).getInt(0);
+                evalMsg.append(resultList).append(", ").append(result).append(" : ").append(expected).append('\n');
+                if (result == expected) {
+                    sumCorrect++;
+                }
             }
         }
-        double score = sumCorrect / (double) output.size(0);
+        double score = sumCorrect / (double) testSet.getNumExamples();
         evalMsg.append("-----------------\n");
         evalMsg.append("Score: ").append(score).append('\n');
         evalMsg.append("-----------------\n");
@@ -235,18 +337,6 @@ public class StringClassifierNet implements NeuralNet {
 //        evalMsg.append("-----------------");
         log.info(evalMsg.toString());
 
-        StringBuilder gradSummary = new StringBuilder("--- Gradients ---\n");
-        net.gradient().gradientForVariable().forEach((var, grad) -> {
-            Number min = grad.aminNumber();
-            Number max = grad.amaxNumber();
-            Number mean = grad.ameanNumber();
-            int order = (int) Math.log10(min.doubleValue());
-            gradSummary.append(var).append(": ").append(min).append(",").append(mean).append(",").append(max).append(", order: ").append(order).append('\n');
-        });
-        gradSummary.append("-----------------");
-        log.info(gradSummary.toString());
-
-
 //        Evaluation eval = new Evaluation(6);
 //        eval.eval(labels, output);
         net.rnnClearPreviousState();
@@ -258,6 +348,16 @@ public class StringClassifierNet implements NeuralNet {
         return earlyStopListener.getBestScore();
     }
 
+    @Override
+    public ComputationGraph getModel() {
+        return net;
+    }
+
+    @Override
+    public StringClassifierIterator getTrainIterator() {
+        return iteratorTrain;
+    }
+
     @Override
     public StringClassifierIterator iterator(Map<String, Object> params) {
         String fileTrain        = (String) params.get(PARAM_DATA_FILE);
@@ -284,11 +384,16 @@ public class StringClassifierNet implements NeuralNet {
         params.put(PARAM_MINIBATCH_SIZE, 32);
         params.put(PARAM_LEARNING_RATE, 1e-4);
         params.put(PARAM_L2_REGULARIZATION, 1e-6);
+        params.put(PARAM_BACKPROP_TYPE, BackpropType.Standard.name());
         params.put(PARAM_TRUNCATED_BPTT_SIZE, 100);
         params.put(PARAM_CHECK_EACH_NUMBER_MINIBATCHES, 10);
+        params.put(PARAM_HEALTH_EACH_ITERATIONS, 10);
         params.put(PARAM_STOP_AFTER_NUMBER_MINIBATCHES, -1);
         params.put(PARAM_NUMBER_EPOCHS, 5);
         params.put(PARAM_NUMBER_ITER_NO_IMPROVE_STOP, 2500);
+        params.put(PARAM_VALIDATION_EACH_MINIBATCHES, 50);
+        params.put(PARAM_VALIDATION_NUMBER_EXAMPLES, 200);
+        params.put(PARAM_VALIDATION_PATIENCE, 5);
         return params;
     }
 
@@ -0,0 +1,237 @@
+package org.lungen.deeplearning.net.generator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.lungen.deeplearning.iterator.CharacterIterator;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.lungen.deeplearning.sampling.Probabilities;
+import org.lungen.deeplearning.sampling.SamplingStrategy;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * CharacterBatchGenerator.
+ * Generates continuations of several different prompts in a single batch, so that a call costs
+ * one rnnTimeStep per character for all prompts instead of a separate sampling call per prompt.
+ * <p>
+ * Prompts of different lengths are left-aligned: the part as long as the shortest prompt is fed in
+ * a single pass, then each time step feeds either the next prompt character of a row or the character
+ * sampled for the row, so that rows with shorter prompts start generating while longer prompts are
+ * still fed. State of each row is the same as if its prompt was fed alone, no masking is needed.
+ * <p>
+ * All rows are generated in lockstep, each one until its maximum number of characters or its stop
+ * condition. Finished rows are removed from the batch together with their RNN state.
+ * RNN state is kept in the network, which must not be used for other rnnTimeStep calls meanwhile.
+ *
+ */
+public class CharacterBatchGenerator {
+
+    private CharacterBatchGenerator() {
+    }
+
+    /**
+     * Same as {@link #generate(MultiLayerNetwork, CharacterIterator, String[], int[], BiPredicate,
+     * SamplingStrategy, Random)}, the same maximum number of characters for all prompts and no stop condition.
+     */
+    public static String[] generate(MultiLayerNetwork net, CharacterIterator iter, String[] prompts,
+                                    int maxCharacters, SamplingStrategy strategy, Random rng) {
+        int[] max = new int[prompts.length];
+        Arrays.fill(max, maxCharacters);
+        return generate(net, iter, prompts, max, null, strategy, rng);
+    }
+
+    /**
+     * @param net           MultiLayerNetwork with one or more GravesLSTM/RNN layers and a softmax output layer
+     * @param prompts       prompts, a null or empty prompt is replaced by a random character
+     * @param maxCharacters maximum numbers of characters generated for the prompts
+     * @param stop          stop condition tested with the index of a prompt and characters generated for it
+     *                      after each character, may be null
+     * @param strategy      chooses characters from the output distribution, used by this call only
+     * @return prompts followed by characters generated for them, in the order of prompts
+     */
+    public static String[] generate(MultiLayerNetwork net, CharacterIterator iter, String[] prompts,
+                                    int[] maxCharacters, BiPredicate<Integer, CharSequence> stop,
+                                    SamplingStrategy strategy, Random rng) {
+        if (maxCharacters.length != prompts.length) {
+            throw new IllegalArgumentException("Maximum numbers of characters " + maxCharacters.length
+                    + " do not match prompts " + prompts.length);
+        }
+        int numPrompts = prompts.length;
+        if (numPrompts == 0) {
+            return new String[0];
+        }
+
+        TrainingEvents.Sampling event = new TrainingEvents.Sampling();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+
+        String[] texts = new String[numPrompts];
+        StringBuilder[] generated = new StringBuilder[numPrompts];
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 0;
+        for (int r = 0; r < numPrompts; r++) {
+            texts[r] = prompts[r] == null || prompts[r].isEmpty()
+                    ? String.valueOf(iter.getRandomCharacter()) : prompts[r];
+            generated[r] = new StringBuilder();
+            minLength = Math.min(minLength, texts[r].length());
+            maxLength = Math.max(maxLength, texts[r].length());
+        }
+
+        net.rnnClearPreviousState();
+        INDArray output = feed(net, iter, texts, minLength);
+
+        // prompts of rows of the batch and the next characters of the prompts to feed
+        int[] rows = new int[numPrompts];
+        int[] positions = new int[numPrompts];
+        int active = numPrompts;
+        for (int r = 0; r < numPrompts; r++) {
+            rows[r] = r;
+            positions[r] = minLength;
+        }
+
+        int inputColumns = iter.inputColumns();
+        int classes = iter.totalOutcomes();
+        INDArray input = null;
+        DataBuffer inputData = null;
+        int[] previous = new int[numPrompts];
+        int[] next = new int[numPrompts];
+        float[] probabilities = new float[numPrompts * classes];
+        boolean[] finished = new boolean[numPrompts];
+        boolean[] done = new boolean[numPrompts];
+        int steps = 0;
+        while (active > 0) {
+            output = Probabilities.copy(output, probabilities);
+            int sampleStride = output.stride(0);
+            int classStride = output.stride(1);
+            int finishedRows = 0;
+            for (int i = 0; i < active; i++) {
+                int r = rows[i];
+                if (done[r] || isFinished(r, positions[r], texts[r], maxCharacters[r], generated[r], null)) {
+                    // finished before, e.g. no characters to generate, or kept in the batch until compaction
+                    finished[i] = true;
+                    finishedRows++;
+                    continue;
+                }
+                if (positions[r] < texts[r].length()) {
+                    next[i] = iter.convertCharacterToIndex(texts[r].charAt(positions[r]++));
+                } else {
+                    next[i] = strategy.sample(probabilities, i * sampleStride, classStride, classes, rng);
+                    generated[r].append(iter.convertIndexToCharacter(next[i]));
+                }
+                done[r] = isFinished(r, positions[r], texts[r], maxCharacters[r], generated[r], stop);
+                finished[i] = done[r];
+                if (finished[i]) {
+                    finishedRows++;
+                }
+            }
+            if (finishedRows == active) {
+                break;
+            }
+            // state of finished rows is dropped, once enough of them is collected to pay off the copy
+            if (finishedRows > 0 && finishedRows * 4 >= active) {
+                active = compact(net, rows, next, finished, active);
+                input = null;
+            }
+            if (input == null) {
+                input = Nd4j.zeros(new int[] {active, inputColumns}, 'c');
+                inputData = input.data();
+                Arrays.fill(previous, -1);
+            }
+            for (int i = 0; i < active; i++) {
+                if (previous[i] >= 0) {
+                    inputData.put(i * inputColumns + previous[i], 0.0);
+                }
+                inputData.put(i * inputColumns + next[i], 1.0);
+                previous[i] = next[i];
+            }
+            output = net.rnnTimeStep(input);
+            steps++;
+        }
+
+        String[] out = new String[numPrompts];
+        for (int r = 0; r < numPrompts; r++) {
+            out[r] = texts[r] + generated[r];
+        }
+
+        MemoryAccountant.get().record(MemoryAccountant.Phase.SAMPLING, before);
+        event.end();
+        if (event.shouldCommit()) {
+            event.batchSize = numPrompts;
+            event.sequenceLength = steps;
+            event.initializationLength = maxLength;
+            event.temperature = strategy.getTemperature();
+            event.strategy = strategy.toString();
+            event.commit();
+        }
+        return out;
+    }
+
+    private static boolean isFinished(int row, int position, String text, int maxCharacters,
+                                      StringBuilder generated, BiPredicate<Integer, CharSequence> stop) {
+        if (position < text.length()) {
+            return false;
+        }
+        return generated.length() >= maxCharacters
+                || generated.length() > 0 && stop != null && stop.test(row, generated);
+    }
+
+    /**
+     * Feeds the given number of the first characters of all texts in a single pass.
+     *
+     * @return output of the last time step, of shape [texts, classes]
+     */
+    private static INDArray feed(MultiLayerNetwork net, CharacterIterator iter, String[] texts, int length) {
+        INDArray input = Nd4j.zeros(texts.length, iter.inputColumns(), length);
+        for (int r = 0; r < texts.length; r++) {
+            for (int i = 0; i < length; i++) {
+                input.putScalar(new int[] {r, iter.convertCharacterToIndex(texts[r].charAt(i)), i}, 1.0f);
+            }
+        }
+        INDArray output = net.rnnTimeStep(input);
+        return output.get(NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.point(length - 1));
+    }
+
+    /**
+     * Removes finished rows from the batch and from RNN state of the network, keeping the order of the rest.
+     *
+     * @return number of rows left
+     */
+    private static int compact(MultiLayerNetwork net, int[] rows, int[] next, boolean[] finished, int active) {
+        int[] kept = new int[active - countFinished(finished, active)];
+        int left = 0;
+        for (int i = 0; i < active; i++) {
+            if (!finished[i]) {
+                kept[left] = i;
+                rows[left] = rows[i];
+                next[left++] = next[i];
+            }
+        }
+        for (RecurrentLayer layer : PrefixStateCache.recurrentLayers(net)) {
+            Map<String, INDArray> state = new HashMap<>();
+            for (Map.Entry<String, INDArray> array : layer.rnnGetPreviousState().entrySet()) {
+                state.put(array.getKey(), array.getValue().getRows(kept));
+            }
+            layer.rnnSetPreviousState(state);
+        }
+        return left;
+    }
+
+    private static int countFinished(boolean[] finished, int active) {
+        int count = 0;
+        for (int i = 0; i < active; i++) {
+            if (finished[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
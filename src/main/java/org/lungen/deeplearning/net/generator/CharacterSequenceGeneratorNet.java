@@ -2,24 +2,40 @@ package org.lungen.deeplearning.net.generator;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 
 import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
 import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.lungen.deeplearning.evaluation.ValidationResult;
+import org.lungen.deeplearning.evaluation.ValidationSet;
 import org.lungen.deeplearning.iterator.CharacterIterator;
 import org.lungen.deeplearning.iterator.CharactersSets;
+import org.lungen.deeplearning.iterator.DataPipeline;
 import org.lungen.deeplearning.listener.EarlyStopListener;
+import org.lungen.deeplearning.listener.GradientHealthListener;
+import org.lungen.deeplearning.listener.MetricsListener;
 import org.lungen.deeplearning.listener.ScorePrintListener;
-import org.lungen.deeplearning.listener.UIStatsListener;
+import org.lungen.deeplearning.listener.StatsReporter;
+import org.lungen.deeplearning.model.CheckpointManager;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.model.TrainingState;
+import org.lungen.deeplearning.net.GradientAccumulator;
+import org.lungen.deeplearning.net.LayerProfiler;
+import org.lungen.deeplearning.net.MemoryBudget;
+import org.lungen.deeplearning.net.MinibatchSizeTuner;
 import org.lungen.deeplearning.net.NeuralNet;
+import org.lungen.deeplearning.net.NeuralNetOptions;
+import org.lungen.deeplearning.net.WarmStart;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.learning.config.Adam;
@@ -39,12 +55,18 @@ public class CharacterSequenceGeneratorNet implements NeuralNet {
     private MultiLayerNetwork net;
     private ScorePrintListener scorePrintListener;
     private EarlyStopListener earlyStopListener;
-    private UIStatsListener statsListener;
+    private StatsReporter statsListener;
+    private MetricsListener metricsListener;
+    private ValidationSet validationSet;
+    private int validationEachMinibatches;
     private CharacterIterator iterator;
+    private CheckpointManager checkpointManager;
+    private TrainingState resumeState;
 
     @Override
     public void init(Map<String, Object> params) {
 
+        NeuralNetOptions.applyDataType(params);
         iterator = iterator(params);
 
         String modelName        = (String) params.get(PARAM_MODEL_NAME);
@@ -54,11 +76,32 @@ public class CharacterSequenceGeneratorNet implements NeuralNet {
         int numInputFeatures    = iterator.inputColumns();
         int numIterEarlyStop    = (Integer) params.get(PARAM_NUMBER_ITER_NO_IMPROVE_STOP);
         int minEpochsEarlyStop  = (Integer) params.getOrDefault(PARAM_MIN_EPOCHS_STOP, 0);
+        double stopSmoothing    = (Double) params.getOrDefault(PARAM_STOP_SCORE_SMOOTHING, EarlyStopListener.DEFAULT_SMOOTHING);
+        double stopMinDelta     = (Double) params.getOrDefault(PARAM_STOP_MIN_DELTA, EarlyStopListener.DEFAULT_MIN_DELTA);
+        WorkspaceMode trainingWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_TRAINING);
+        WorkspaceMode inferenceWorkspace = NeuralNetOptions.workspaceMode(params, PARAM_WORKSPACE_MODE_INFERENCE);
+        CacheMode cacheMode     = NeuralNetOptions.cacheMode(params);
+        int validationEach      = (Integer) params.getOrDefault(PARAM_VALIDATION_EACH_MINIBATCHES, 0);
+        int validationExamples  = (Integer) params.getOrDefault(PARAM_VALIDATION_NUMBER_EXAMPLES, 0);
+        int validationPatience  = (Integer) params.getOrDefault(PARAM_VALIDATION_PATIENCE, 5);
+        String checkpointDir    = (String) params.getOrDefault(PARAM_CHECKPOINT_DIR, "checkpoints/" + modelName);
+        int checkpointEach      = (Integer) params.getOrDefault(PARAM_CHECKPOINT_EACH_MINIBATCHES, 0);
+        boolean resume          = (Boolean) params.getOrDefault(PARAM_CHECKPOINT_RESUME, false);
+        int checkpointKeepLast  = (Integer) params.getOrDefault(PARAM_CHECKPOINT_KEEP_LAST, 1);
+        int checkpointKeepBest  = (Integer) params.getOrDefault(PARAM_CHECKPOINT_KEEP_BEST, 0);
+        String metricsDir       = (String) params.get(PARAM_METRICS_DIR);
+        int metricsExportEach   = (Integer) params.getOrDefault(PARAM_METRICS_EXPORT_SECONDS, 10);
+        int healthEach          = (Integer) params.getOrDefault(PARAM_HEALTH_EACH_ITERATIONS, 0);
+        double vanishingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_VANISHING_NORM, 1e-7);
+        double explodingNorm    = (Double) params.getOrDefault(PARAM_HEALTH_EXPLODING_NORM, 1e+2);
 
         int lstmLayerSize = 200;
 
         //Set up network configuration:
         MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .trainingWorkspaceMode(trainingWorkspace)
+                .inferenceWorkspaceMode(inferenceWorkspace)
+                .cacheMode(cacheMode)
                 .seed(12345)
                 .l2(l2Regularization)
                 .weightInit(WeightInit.XAVIER)
@@ -74,12 +117,40 @@ public class CharacterSequenceGeneratorNet implements NeuralNet {
                 .build();
 
         this.modelName = modelName;
-        this.net = new MultiLayerNetwork(conf);
-        this.net.init();
+        this.checkpointManager = new CheckpointManager(new File(checkpointDir), checkpointEach,
+                checkpointKeepLast, checkpointKeepBest, resume);
+        this.resumeState = resume ? checkpointManager.latestState() : null;
+        if (resumeState != null) {
+            // continue from the latest checkpoint: model with updater state and iterator position
+            this.net = checkpointManager.restoreNet(resumeState);
+            this.iterator.restoreState(resumeState.getIteratorOffsets(), resumeState.getIteratorRng());
+            log.info("Resuming training from checkpoint: {}", resumeState);
+        } else {
+            this.net = new MultiLayerNetwork(conf);
+            this.net.init();
+            this.net = WarmStart.apply(net, params);
+        }
         this.scorePrintListener = new ScorePrintListener(10);
-        this.statsListener = new UIStatsListener();
-        this.earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop);
-        this.net.setListeners(scorePrintListener, statsListener, earlyStopListener);
+        this.statsListener = NeuralNetOptions.statsReporter(modelName, params);
+        this.metricsListener = new MetricsListener(modelName,
+                metricsDir != null ? new File(metricsDir) : null, metricsExportEach);
+        GradientHealthListener healthListener = new GradientHealthListener(metricsListener.getMetrics(),
+                healthEach, vanishingNorm, explodingNorm);
+        this.earlyStopListener = new EarlyStopListener(modelName, numIterEarlyStop, minEpochsEarlyStop,
+                stopSmoothing, stopMinDelta);
+        if (validationEach > 0 && validationExamples > 0) {
+            // fixed held-out subset validated on schedule drives early stopping
+            this.validationEachMinibatches = validationEach;
+            this.validationSet = new ValidationSet(iterator.holdOut(validationExamples));
+            earlyStopListener.setValidationPatience(validationPatience);
+        }
+        if (resumeState != null) {
+            earlyStopListener.restoreState(resumeState.getBestScore(),
+                    resumeState.getSmoothedScore(),
+                    resumeState.getIterationsWithoutImprovement(),
+                    checkpointManager.restoreBestParams(resumeState));
+        }
+        this.net.setListeners(scorePrintListener, statsListener, earlyStopListener, metricsListener, healthListener);
     }
 
     @Override
@@ -88,43 +159,105 @@ public class CharacterSequenceGeneratorNet implements NeuralNet {
         int numEpochs               = (Integer) params.get(PARAM_NUMBER_EPOCHS);
         int checkAfterNMinibatches  = (Integer) params.get(PARAM_CHECK_EACH_NUMBER_MINIBATCHES);
         double temperature          = (Double) params.get(PARAM_TEMPERATURE);
+        int accumulationSteps       = (Integer) params.getOrDefault(PARAM_GRADIENT_ACCUMULATION_STEPS, 1);
+        int profileEach             = (Integer) params.getOrDefault(PARAM_PROFILE_EACH_MINIBATCHES, 0);
+        String profileFile          = (String) params.getOrDefault(PARAM_PROFILE_FILE, modelName + "-profile.csv");
+        int prefetchBatches         = (Integer) params.getOrDefault(PARAM_DATA_PREFETCH_BATCHES, 0);
+        int memoryBudgetMb          = (Integer) params.getOrDefault(PARAM_MEMORY_BUDGET_MB, 0);
+        double memoryWarning        = (Double) params.getOrDefault(PARAM_MEMORY_WARNING_FRACTION, 0.9);
+        int checkpointEach          = (Integer) params.getOrDefault(PARAM_CHECKPOINT_EACH_MINIBATCHES, 0);
+        if (prefetchBatches > 0 && checkpointEach > 0) {
+            // iterator position saved in checkpoints must not run ahead of the trained minibatches
+            log.warn("Prefetching is disabled, as checkpoints are enabled");
+            prefetchBatches = 0;
+        }
 
         // Do training, and then generate and print samples from network
         Random rng = new Random(7);
         int nCharactersToSample = 1000;
         int nSamplesToGenerate = 1;
 
+        GradientAccumulator accumulator = new GradientAccumulator(net, accumulationSteps);
+        LayerProfiler profiler = new LayerProfiler(net, profileEach, new File(profileFile));
+        DataPipeline<DataSet> pipeline = DataPipeline.of(iterator, prefetchBatches, metricsListener.getMetrics());
+        MemoryBudget memoryBudget = new MemoryBudget(memoryBudgetMb * 1024L * 1024L, memoryWarning, pipeline, accumulator);
         int miniBatchNumber = 0;
+        int startEpoch = 0;
+        if (resumeState != null) {
+            rng = resumeState.getSamplingRng();
+            miniBatchNumber = resumeState.getMiniBatchNumber();
+            startEpoch = resumeState.getEpoch();
+        }
         boolean stop = false;
-        for (int i = 0; i < numEpochs; i++) {
+        for (int i = startEpoch; i < numEpochs; i++) {
             scorePrintListener.setEpoch(i);
             earlyStopListener.setEpoch(i);
+            metricsListener.setEpoch(i);
 
-            while (iterator.hasNext()) {
-                DataSet ds = iterator.next();
-                net.fit(ds);
+            while (pipeline.hasNext()) {
+                DataSet ds = pipeline.next();
+                profiler.sample(ds);
+                pipeline.fitStarted();
+                accumulator.fit(ds);
+                pipeline.fitDone();
+                memoryBudget.check();
                 if (++miniBatchNumber % checkAfterNMinibatches == 0) {
                     CharacterSequenceGeneratorSampler.sampleToConsole(net, iterator,
                             miniBatchNumber, nCharactersToSample, nSamplesToGenerate, temperature, rng);
                 }
+                if (validationSet != null && miniBatchNumber % validationEachMinibatches == 0) {
+                    ValidationResult validation = validationSet.evaluate(net);
+                    log.info("[{}][{}] Validation: {}", i, miniBatchNumber, validation);
+                    earlyStopListener.validationDone(net, validation.getBitsPerCharacter());
+                }
+                if (checkpointManager.isCheckpointDue(miniBatchNumber)) {
+                    saveCheckpoint(i, miniBatchNumber, rng);
+                }
                 if (earlyStopListener.isStopRecommended()) {
                     stop = true;
                     break;
                 }
             }
+            pipeline.epochDone(i);
+            memoryBudget.epochDone(i);
             if (stop) {
                 break;
             }
 
+            accumulator.flush();
             // Reset iterator for another epoch
-            iterator.reset();
+            pipeline.reset();
         }
-        statsListener.close();
+        // gradients of the last minibatches, e.g. when training stopped early
+        accumulator.flush();
+        pipeline.close();
+        close();
         log.info("Training complete");
 
         ModelPersistence.save(modelName, net);
     }
 
+    @Override
+    public void close() {
+        statsListener.close();
+        metricsListener.close();
+        checkpointManager.close();
+    }
+
+    private void saveCheckpoint(int epoch, int miniBatchNumber, Random rng) {
+        TrainingState state = new TrainingState();
+        state.setEpoch(epoch);
+        state.setMiniBatchNumber(miniBatchNumber);
+        state.setSamplingRng(rng);
+        state.setIteratorOffsets(iterator.getExampleStartOffsets());
+        state.setIteratorRng(iterator.getRng());
+        state.setBestScore(earlyStopListener.getBestScore());
+        state.setSmoothedScore(earlyStopListener.getSmoothedScore());
+        state.setIterationsWithoutImprovement(earlyStopListener.getIterationsWithoutImprovement());
+        // ranked by smoothed training score or the latest validation score, not by the last minibatch score
+        checkpointManager.save(net, earlyStopListener.getBestParams(), state, earlyStopListener.getSmoothedScore());
+    }
+
     @Override
     public CharacterIterator iterator(Map<String, Object> params) {
         String file         = (String) params.get(PARAM_DATA_FILE);
@@ -144,6 +277,16 @@ public class CharacterSequenceGeneratorNet implements NeuralNet {
         return earlyStopListener.getBestScore();
     }
 
+    @Override
+    public MultiLayerNetwork getModel() {
+        return net;
+    }
+
+    @Override
+    public CharacterIterator getTrainIterator() {
+        return iterator;
+    }
+
     @Override
     public Map<String, Object> defaultParams() {
         Map<String, Object> params = new HashMap<>();
@@ -157,12 +300,25 @@ public class CharacterSequenceGeneratorNet implements NeuralNet {
         params.put(PARAM_CHECK_EACH_NUMBER_MINIBATCHES, 10);
         params.put(PARAM_NUMBER_EPOCHS, 3);
         params.put(PARAM_NUMBER_ITER_NO_IMPROVE_STOP, 20000);
+        params.put(PARAM_VALIDATION_EACH_MINIBATCHES, 100);
+        params.put(PARAM_VALIDATION_NUMBER_EXAMPLES, 64);
+        params.put(PARAM_VALIDATION_PATIENCE, 5);
+        params.put(PARAM_CHECKPOINT_EACH_MINIBATCHES, 500);
+        params.put(PARAM_CHECKPOINT_RESUME, false);
+        params.put(PARAM_CHECKPOINT_KEEP_LAST, 2);
+        params.put(PARAM_CHECKPOINT_KEEP_BEST, 1);
         return params;
     }
 
     public static void main(String[] args ) {
         CharacterSequenceGeneratorNet net = new CharacterSequenceGeneratorNet();
         Map<String, Object> params = net.defaultParams();
+        // "resume" continues from the latest checkpoint of the previous run
+        params.put(PARAM_CHECKPOINT_RESUME, Arrays.asList(args).contains("resume"));
+        // "tune" chooses minibatch size by throughput before training
+        if (Arrays.asList(args).contains("tune")) {
+            new MinibatchSizeTuner(net).tune(params);
+        }
         net.init(params);
         net.train(params);
     }
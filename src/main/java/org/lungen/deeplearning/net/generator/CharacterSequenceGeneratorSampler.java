@@ -1,22 +1,26 @@
 package org.lungen.deeplearning.net.generator;
 
-import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
-import java.util.stream.IntStream;
 
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.lungen.deeplearning.iterator.CharacterIterator;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
 import org.lungen.deeplearning.model.ModelPersistence;
+import org.lungen.deeplearning.sampling.Probabilities;
+import org.lungen.deeplearning.sampling.SamplingStrategy;
+import org.lungen.deeplearning.sampling.TemperatureSampling;
+import org.nd4j.linalg.api.buffer.DataBuffer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 
 /**
  * Created by user on 19.12.2017.
  */
 public class CharacterSequenceGeneratorSampler {
 
-    private static final double TINY = Double.MIN_VALUE;
     private static final double ONE = 1.0;
 
     private CharacterSequenceGeneratorSampler() {
@@ -37,25 +41,47 @@ public class CharacterSequenceGeneratorSampler {
             CharacterIterator iter, Random rng,
             int charactersToSample, int numSamples, double temperature) {
 
-        if (temperature < 0.0 || temperature > 1.0) {
-            throw new IllegalArgumentException("Temperature must be in range (0.0, 1.0]");
-        }
+        return sample(initialization, net, iter, rng, charactersToSample, numSamples, temperature, null);
+    }
+
+    /**
+     * Same as {@link #sample(String, MultiLayerNetwork, CharacterIterator, Random, int, int, double)},
+     * the network is primed with the initialization restoring RNN state of its longest cached prefix.
+     *
+     * @param cache cache of RNN states of the network after initializations, may be null
+     */
+    public static String[] sample(
+            String initialization, MultiLayerNetwork net,
+            CharacterIterator iter, Random rng,
+            int charactersToSample, int numSamples, double temperature,
+            PrefixStateCache cache) {
+
+        return sample(initialization, net, iter, rng, charactersToSample, numSamples,
+                new TemperatureSampling(temperature), cache);
+    }
+
+    /**
+     * Same as {@link #sample(String, MultiLayerNetwork, CharacterIterator, Random, int, int, double, PrefixStateCache)},
+     * characters are chosen from the output distribution by the given strategy, e.g. top-k or greedy.
+     *
+     * @param strategy sampling strategy, used by this call only, it is not thread-safe
+     * @param cache    cache of RNN states of the network after initializations, may be null
+     */
+    public static String[] sample(
+            String initialization, MultiLayerNetwork net,
+            CharacterIterator iter, Random rng,
+            int charactersToSample, int numSamples, SamplingStrategy strategy,
+            PrefixStateCache cache) {
+
+        TrainingEvents.Sampling event = new TrainingEvents.Sampling();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
 
         //Set up initialization. If no initialization: use a random character
         if (initialization == null) {
             initialization = String.valueOf(iter.getRandomCharacter());
         }
 
-        //Create input for initialization
-        INDArray initializationInput = Nd4j.zeros(numSamples, iter.inputColumns(), initialization.length());
-        char[] init = initialization.toCharArray();
-        for (int i = 0; i < init.length; i++) {
-            int idx = iter.convertCharacterToIndex(init[i]);
-            for (int j = 0; j < numSamples; j++) {
-                initializationInput.putScalar(new int[]{j, idx, i}, 1.0f);
-            }
-        }
-
         StringBuilder[] sb = new StringBuilder[numSamples];
         for (int i = 0; i < numSamples; i++) {
             sb[i] = new StringBuilder(initialization);
@@ -63,24 +89,33 @@ public class CharacterSequenceGeneratorSampler {
 
         //Sample from network (and feed samples back into input) one character at a time (for all samples)
         //Sampling is done in parallel here
-        net.rnnClearPreviousState();
-        INDArray output = net.rnnTimeStep(initializationInput);
-        output = output.tensorAlongDimension((int) output.size(2) - 1, 1, 0);    //Gets the last time step output
-
+        INDArray output = prime(net, iter, initialization, numSamples, cache);    //Gets the last time step output
+
+        // buffers reused by all steps: one-hot input, where only the previous character of a sample is cleared,
+        // and probabilities of all samples, copied from the output at once
+        INDArray nextInput = Nd4j.zeros(new int[] {numSamples, iter.inputColumns()}, 'c');
+        DataBuffer nextInputData = nextInput.data();
+        int[] previous = new int[numSamples];
+        int[] sampled = new int[numSamples];
+        float[] probabilities = new float[numSamples * iter.totalOutcomes()];
         for (int i = 0; i < charactersToSample; i++) {
-            //Set up next input (single time step) by sampling from previous output
-            INDArray nextInput = Nd4j.zeros(numSamples, iter.inputColumns());
+            output = Probabilities.copy(output, probabilities);
+            int sampleStride = output.stride(0);
+            int classStride = output.stride(1);
             //Output is a probability distribution. Sample from this for each example we want to generate, and add it to the new input
+            if (i == 0) {
+                // all samples continue the same initialization, the first characters are drawn from the same distribution
+                strategy.sample(probabilities, 0, classStride, iter.totalOutcomes(), rng, sampled);
+            }
             for (int s = 0; s < numSamples; s++) {
-                double[] outputProbDistribution = new double[iter.totalOutcomes()];
-                for (int j = 0; j < outputProbDistribution.length; j++) {
-                    outputProbDistribution[j] = output.getDouble(s, j);
-                }
-                int sampledCharacterIdx = temperature == ONE ?
-                        sampleFromDistribution(outputProbDistribution, rng) :
-                        sampleFromDistributionTemperature(outputProbDistribution, rng, temperature);
+                int sampledCharacterIdx = i == 0 ? sampled[s] : strategy.sample(probabilities, s * sampleStride,
+                        classStride, iter.totalOutcomes(), rng);
 
-                nextInput.putScalar(new int[]{s, sampledCharacterIdx}, 1.0f);        //Prepare next time step input
+                if (i > 0) {
+                    nextInputData.put(s * iter.inputColumns() + previous[s], 0.0);
+                }
+                nextInputData.put(s * iter.inputColumns() + sampledCharacterIdx, 1.0);    //Prepare next time step input
+                previous[s] = sampledCharacterIdx;
                 sb[s].append(iter.convertIndexToCharacter(sampledCharacterIdx));    //Add sampled character to StringBuilder (human readable output)
             }
 
@@ -91,6 +126,17 @@ public class CharacterSequenceGeneratorSampler {
         for (int i = 0; i < numSamples; i++) {
             out[i] = sb[i].toString();
         }
+
+        MemoryAccountant.get().record(MemoryAccountant.Phase.SAMPLING, before);
+        event.end();
+        if (event.shouldCommit()) {
+            event.batchSize = numSamples;
+            event.sequenceLength = charactersToSample;
+            event.initializationLength = initialization.length();
+            event.temperature = strategy.getTemperature();
+            event.strategy = strategy.toString();
+            event.commit();
+        }
         return out;
     }
 
@@ -102,37 +148,37 @@ public class CharacterSequenceGeneratorSampler {
         return sample(initialization, net, iter, rng, charactersToSample, numSamples, ONE);
     }
 
-    private static int sampleFromDistributionTemperature(double[] distribution, Random rng, double temperature) {
-        final double[] probs = new double[distribution.length];
-        IntStream.range(0, distribution.length).forEach(i -> probs[i] = Math.exp(Math.log(distribution[i] + TINY) / temperature));
-        double sum = Arrays.stream(probs).sum();
-        IntStream.range(0, distribution.length).forEach(i -> probs[i] /= sum);
-        return sampleFromDistribution(probs, rng);
+    /**
+     * Clears RNN state of the network, or restores the state of the longest prefix cached,
+     * and feeds the initialization.
+     *
+     * @return output of the last time step, of shape [numSamples, classes]
+     */
+    static INDArray prime(MultiLayerNetwork net, CharacterIterator iter, String initialization, int numSamples,
+                          PrefixStateCache cache) {
+        if (cache != null) {
+            return cache.prime(net, iter, initialization, numSamples);
+        }
+        net.rnnClearPreviousState();
+        return feed(net, iter, initialization, 0, numSamples);
     }
 
     /**
-     * Given a probability distribution over discrete classes, sample from the distribution
-     * and return the generated class index.
+     * Feeds characters of the text starting from the given index to the network, continuing its RNN state.
      *
-     * @param distribution Probability distribution over classes. Must sum to 1.0
+     * @return output of the last time step, of shape [numSamples, classes]
      */
-    private static int sampleFromDistribution(double[] distribution, Random rng) {
-        double d = 0.0;
-        double sum = 0.0;
-        for (int t = 0; t < 10; t++) {
-            d = rng.nextDouble();
-            sum = 0.0;
-            for (int i = 0; i < distribution.length; i++) {
-                sum += distribution[i];
-                if (d <= sum) {
-                    return i;
-                }
+    static INDArray feed(MultiLayerNetwork net, CharacterIterator iter, String text, int from, int numSamples) {
+        //Create input for initialization
+        INDArray input = Nd4j.zeros(numSamples, iter.inputColumns(), text.length() - from);
+        for (int i = from; i < text.length(); i++) {
+            int idx = iter.convertCharacterToIndex(text.charAt(i));
+            for (int j = 0; j < numSamples; j++) {
+                input.putScalar(new int[]{j, idx, i - from}, 1.0f);
             }
-            // If we haven't found the right index yet, maybe the sum is slightly
-            // lower than 1 due to rounding error, so try again.
         }
-        // Should be extremely unlikely to happen if distribution is a valid probability distribution
-        throw new IllegalArgumentException("Distribution is invalid? d=" + d + ", sum=" + sum);
+        INDArray output = net.rnnTimeStep(input);
+        return output.get(NDArrayIndex.all(), NDArrayIndex.all(), NDArrayIndex.point(output.size(2) - 1));
     }
 
     public static void sampleToConsole(MultiLayerNetwork net,
@@ -171,18 +217,16 @@ public class CharacterSequenceGeneratorSampler {
         String fileName = args[0];// "net-java-code-20181130-100817-score-34.47.zip";
         MultiLayerNetwork net = ModelPersistence.loadNet(fileName);
 
-        String init = "package com.";
+        // network state is kept between chunks, the text is not fed again
+        CharacterStreamGenerator generator = new CharacterStreamGenerator(net, iterator, 0.7, new Random(7));
+        String init = generator.prime("package com.");
         System.out.print(init);
         System.out.flush();
         while (true) {
-            String sample = sample(init, net, iterator, new Random(7),
-                    1000, 1, 0.7)[0];
-            for (char c : sample.substring(init.length()).toCharArray()) {
+            generator.generate(1000, c -> {
                 System.out.print(c);
                 System.out.flush();
-                Thread.sleep(100);
-            }
-            init = sample;
+            });
         }
 
     }
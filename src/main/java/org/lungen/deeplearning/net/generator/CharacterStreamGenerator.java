@@ -0,0 +1,127 @@
+package org.lungen.deeplearning.net.generator;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.lungen.deeplearning.iterator.CharacterIterator;
+import org.lungen.deeplearning.metrics.MemoryAccountant;
+import org.lungen.deeplearning.metrics.TrainingEvents;
+import org.lungen.deeplearning.sampling.Probabilities;
+import org.lungen.deeplearning.sampling.SamplingStrategy;
+import org.lungen.deeplearning.sampling.TemperatureSampling;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * CharacterStreamGenerator.
+ * Generates unbounded text from a generator network character by character. The network is primed
+ * with the initialization once, then each character is sampled from the output of the previous
+ * time step and fed back, so that RNN state is kept between characters and chunks of generation,
+ * and every character costs a single time step regardless of the length of the text generated so far.
+ * <p>
+ * The state is kept in the network, so the network must not be used for other rnnTimeStep calls
+ * while generating, e.g. by {@link CharacterSequenceGeneratorSampler}. Not thread-safe.
+ *
+ */
+public class CharacterStreamGenerator {
+
+    private final MultiLayerNetwork net;
+    private final CharacterIterator iter;
+    private final SamplingStrategy strategy;
+    private final Random rng;
+    private final PrefixStateCache cache;
+
+    // one-hot input of a single time step and probabilities of the next character, reused by all steps
+    private final INDArray input;
+    private final DataBuffer inputData;
+    private final float[] probabilities;
+    private int previous = -1;
+    private INDArray output;
+
+    /**
+     * @param net MultiLayerNetwork with one or more GravesLSTM/RNN layers and a softmax output layer
+     */
+    public CharacterStreamGenerator(MultiLayerNetwork net, CharacterIterator iter, double temperature, Random rng) {
+        this(net, iter, temperature, rng, null);
+    }
+
+    /**
+     * @param cache cache of RNN states of the network after initializations, may be null
+     */
+    public CharacterStreamGenerator(MultiLayerNetwork net, CharacterIterator iter, double temperature, Random rng,
+                                    PrefixStateCache cache) {
+        this(net, iter, new TemperatureSampling(temperature), rng, cache);
+    }
+
+    /**
+     * @param strategy  chooses characters from the output distribution, used by this generator only
+     * @param cache     cache of RNN states of the network after initializations, may be null
+     */
+    public CharacterStreamGenerator(MultiLayerNetwork net, CharacterIterator iter, SamplingStrategy strategy,
+                                    Random rng, PrefixStateCache cache) {
+        this.net = net;
+        this.iter = iter;
+        this.strategy = strategy;
+        this.rng = rng;
+        this.cache = cache;
+        this.input = Nd4j.zeros(new int[] {1, iter.inputColumns()}, 'c');
+        this.inputData = input.data();
+        this.probabilities = new float[iter.totalOutcomes()];
+    }
+
+    /**
+     * Clears RNN state, or restores the state of the longest cached prefix, and feeds the initialization,
+     * which the generated text continues.
+     *
+     * @param initialization String, may be null. If null, a random character is the initialization
+     * @return the initialization
+     */
+    public String prime(String initialization) {
+        if (initialization == null || initialization.isEmpty()) {
+            initialization = String.valueOf(iter.getRandomCharacter());
+        }
+        output = CharacterSequenceGeneratorSampler.prime(net, iter, initialization, 1, cache);
+        return initialization;
+    }
+
+    /**
+     * Samples the next character and feeds it to the network.
+     */
+    public char next() {
+        if (output == null) {
+            throw new IllegalStateException("Generator is not primed");
+        }
+        INDArray block = Probabilities.copy(output, probabilities);
+        int idx = strategy.sample(probabilities, 0, block.stride(1), iter.totalOutcomes(), rng);
+        if (previous >= 0) {
+            inputData.put(previous, 0.0);
+        }
+        inputData.put(idx, 1.0);
+        previous = idx;
+        output = net.rnnTimeStep(input);
+        return iter.convertIndexToCharacter(idx);
+    }
+
+    /**
+     * Generates the given number of characters, each one is passed to the consumer as soon as it is sampled.
+     */
+    public void generate(int characters, Consumer<Character> consumer) {
+        TrainingEvents.Sampling event = new TrainingEvents.Sampling();
+        event.begin();
+        MemoryAccountant.Snapshot before = MemoryAccountant.get().snapshot();
+        for (int i = 0; i < characters; i++) {
+            consumer.accept(next());
+        }
+        MemoryAccountant.get().record(MemoryAccountant.Phase.SAMPLING, before);
+        event.end();
+        if (event.shouldCommit()) {
+            event.batchSize = 1;
+            event.sequenceLength = characters;
+            event.temperature = strategy.getTemperature();
+            event.strategy = strategy.toString();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.lungen.deeplearning.net.generator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.layers.wrapper.BaseWrapperLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.lungen.deeplearning.iterator.CharacterIterator;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PrefixStateCache.
+ * Cache of RNN states of a generator network after priming texts, e.g. common beginnings of generated
+ * text such as license headers. A text is primed by restoring the state of its longest cached prefix
+ * found in a trie of primed texts and feeding only the rest of the text, instead of feeding the whole
+ * text from a cleared state. State of each primed text is cached with the output of its last time step,
+ * so that a text primed before is not fed at all. If the text branches off a cached text at a point
+ * without cached state, e.g. a shared header followed by different code, the state at the branching
+ * point is cached as well, so that further texts with the shared part are fed from the branching point.
+ * <p>
+ * States are of a single row and are repeated for the number of samples generated in parallel.
+ * Least recently used texts are evicted when cached arrays exceed the given size.
+ * <p>
+ * Cached states are valid for the network parameters they were computed with, the cache must be
+ * cleared when parameters change.
+ *
+ */
+public class PrefixStateCache {
+
+    private static final Logger log = LoggerFactory.getLogger("generator.cache");
+
+    private final long maxBytes;
+    private final Node root = new Node();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long charactersFed;
+    private long charactersSaved;
+
+    /**
+     * @param maxBytes maximum size of cached arrays, bytes
+     */
+    public PrefixStateCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Sets RNN state of the network to the state after the text, feeding the part of the text
+     * after its longest cached prefix, and caches the state.
+     *
+     * @param text          initialization, not empty
+     * @param numSamples    number of samples generated in parallel, rows of the state
+     * @return output of the last time step of the text, of shape [numSamples, classes]
+     */
+    public INDArray prime(MultiLayerNetwork net, CharacterIterator iter, String text, int numSamples) {
+        List<RecurrentLayer> layers = recurrentLayers(net);
+        Match match = match(text);
+        Entry prefix = match.prefix;
+        int from = 0;
+        INDArray output = null;
+        if (prefix == null) {
+            net.rnnClearPreviousState();
+        } else {
+            for (int i = 0; i < layers.size(); i++) {
+                layers.get(i).rnnSetPreviousState(repeat(prefix.states.get(i), numSamples));
+            }
+            from = prefix.length;
+            output = repeat(prefix.output, numSamples);
+        }
+        synchronized (this) {
+            charactersFed += text.length() - from;
+            charactersSaved += from;
+        }
+        log.debug("Priming {} characters, {} restored from cache", text.length(), from);
+        if (match.branch > from && match.branch < text.length()) {
+            output = CharacterSequenceGeneratorSampler.feed(net, iter, text.substring(0, match.branch), from, numSamples);
+            put(text.substring(0, match.branch), entry(match.branch, layers, output));
+            from = match.branch;
+        }
+        if (from == text.length()) {
+            return output;
+        }
+        output = CharacterSequenceGeneratorSampler.feed(net, iter, text, from, numSamples);
+        put(text, entry(text.length(), layers, output));
+        return output;
+    }
+
+    /**
+     * Finds the longest cached prefix of the text and the point where the text branches off cached texts.
+     */
+    private synchronized Match match(String text) {
+        Node node = root;
+        Entry prefix = null;
+        int branch = 0;
+        for (int i = 0; i < text.length(); i++) {
+            node = node.children.get(text.charAt(i));
+            if (node == null) {
+                break;
+            }
+            branch = i + 1;
+            if (node.entry != null) {
+                prefix = node.entry;
+            }
+        }
+        if (prefix != null) {
+            // marks the entry as recently used
+            entries.get(text.substring(0, prefix.length));
+            hits++;
+        } else {
+            misses++;
+        }
+        return new Match(prefix, branch);
+    }
+
+    private static Entry entry(int length, List<RecurrentLayer> layers, INDArray output) {
+        // rows are the same, the first one is cached
+        List<Map<String, INDArray>> states = new ArrayList<>(layers.size());
+        for (RecurrentLayer layer : layers) {
+            Map<String, INDArray> state = new HashMap<>();
+            for (Map.Entry<String, INDArray> array : layer.rnnGetPreviousState().entrySet()) {
+                state.put(array.getKey(), array.getValue().getRow(0).dup());
+            }
+            states.add(state);
+        }
+        return new Entry(length, states, output.getRow(0).dup());
+    }
+
+    private synchronized void put(String text, Entry entry) {
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        Node node = root;
+        for (int i = 0; i < text.length(); i++) {
+            node = node.children.computeIfAbsent(text.charAt(i), c -> new Node());
+        }
+        if (node.entry != null) {
+            bytes -= node.entry.bytes;
+        }
+        node.entry = entry;
+        entries.put(text, entry);
+        bytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            remove(evicted.getKey());
+            bytes -= evicted.getValue().bytes;
+        }
+    }
+
+    private void remove(String text) {
+        List<Node> path = new ArrayList<>(text.length() + 1);
+        Node node = root;
+        path.add(node);
+        for (int i = 0; i < text.length(); i++) {
+            node = node.children.get(text.charAt(i));
+            path.add(node);
+        }
+        node.entry = null;
+        // nodes left without entries below them are pruned
+        for (int i = text.length(); i > 0; i--) {
+            Node child = path.get(i);
+            if (child.entry != null || !child.children.isEmpty()) {
+                break;
+            }
+            path.get(i - 1).children.remove(text.charAt(i - 1));
+        }
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of characters fed to the network when priming texts
+     */
+    public synchronized long getCharactersFed() {
+        return charactersFed;
+    }
+
+    /**
+     * @return number of characters of primed texts restored from cached states instead of feeding them
+     */
+    public synchronized long getCharactersSaved() {
+        return charactersSaved;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d texts, %.1f KB, %d hits, %d misses, %d characters fed, %d saved",
+                entries.size(), bytes / 1024.0, hits, misses, charactersFed, charactersSaved);
+    }
+
+    static List<RecurrentLayer> recurrentLayers(MultiLayerNetwork net) {
+        List<RecurrentLayer> layers = new ArrayList<>();
+        for (Layer layer : net.getLayers()) {
+            while (layer instanceof BaseWrapperLayer) {
+                layer = ((BaseWrapperLayer) layer).getUnderlying();
+            }
+            if (layer instanceof RecurrentLayer) {
+                layers.add((RecurrentLayer) layer);
+            }
+        }
+        return layers;
+    }
+
+    private static Map<String, INDArray> repeat(Map<String, INDArray> state, int rows) {
+        Map<String, INDArray> repeated = new HashMap<>();
+        for (Map.Entry<String, INDArray> array : state.entrySet()) {
+            repeated.put(array.getKey(), repeat(array.getValue(), rows));
+        }
+        return repeated;
+    }
+
+    private static INDArray repeat(INDArray row, int rows) {
+        return Nd4j.zeros(rows, row.length()).addiRowVector(row);
+    }
+
+    private static long bytes(INDArray array) {
+        return array.length() * array.data().getElementSize();
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private Entry entry;
+    }
+
+    private static final class Match {
+        private final Entry prefix;
+        // length of the longest common prefix with cached texts
+        private final int branch;
+
+        Match(Entry prefix, int branch) {
+            this.prefix = prefix;
+            this.branch = branch;
+        }
+    }
+
+    private static final class Entry {
+        private final int length;
+        private final List<Map<String, INDArray>> states;
+        private final INDArray output;
+        private final long bytes;
+
+        Entry(int length, List<Map<String, INDArray>> states, INDArray output) {
+            this.length = length;
+            this.states = states;
+            this.output = output;
+            long size = bytes(output) + 2L * length;
+            for (Map<String, INDArray> state : states) {
+                for (INDArray array : state.values()) {
+                    size += bytes(array);
+                }
+            }
+            this.bytes = size;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+/**
+ * AliasTable.
+ * Walker's alias table of a discrete distribution, built with Vose's method in O(classes) time,
+ * draws a class in O(1) time with a single column choice and a single coin flip. Pays off when many
+ * classes are drawn from the same distribution, a single draw is cheaper from cumulative weights.
+ * <p>
+ * The table is rebuilt in place for each distribution, so that its arrays are reused.
+ *
+ */
+public class AliasTable {
+
+    private double[] probability;
+    private int[] alias;
+    private int[] small;
+    private int[] large;
+    private int classes;
+
+    /**
+     * Builds the table of the given weights, which need not sum to 1.0.
+     */
+    public void build(double[] weights, int classes) {
+        double total = 0.0;
+        for (int i = 0; i < classes; i++) {
+            total += weights[i];
+        }
+        if (!(total > 0.0) || Double.isInfinite(total)) {
+            throw new IllegalArgumentException("Distribution is invalid? sum=" + total);
+        }
+        this.classes = classes;
+        probability = Probabilities.ensureCapacity(probability, classes);
+        alias = Probabilities.ensureCapacity(alias, classes);
+        small = Probabilities.ensureCapacity(small, classes);
+        large = Probabilities.ensureCapacity(large, classes);
+
+        int smallSize = 0;
+        int largeSize = 0;
+        for (int i = 0; i < classes; i++) {
+            probability[i] = weights[i] * classes / total;
+            if (probability[i] < 1.0) {
+                small[smallSize++] = i;
+            } else {
+                large[largeSize++] = i;
+            }
+        }
+        while (smallSize > 0 && largeSize > 0) {
+            int less = small[--smallSize];
+            int more = large[--largeSize];
+            alias[less] = more;
+            probability[more] = probability[more] + probability[less] - 1.0;
+            if (probability[more] < 1.0) {
+                small[smallSize++] = more;
+            } else {
+                large[largeSize++] = more;
+            }
+        }
+        // left due to rounding errors
+        while (largeSize > 0) {
+            probability[large[--largeSize]] = 1.0;
+        }
+        while (smallSize > 0) {
+            probability[small[--smallSize]] = 1.0;
+        }
+    }
+
+    public int sample(Random rng) {
+        int column = rng.nextInt(classes);
+        return rng.nextDouble() < probability[column] ? column : alias[column];
+    }
+}
@@ -0,0 +1,44 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * GreedySampling.
+ * Always chooses the most probable class, the first one of equally probable classes.
+ *
+ */
+public class GreedySampling implements SamplingStrategy {
+
+    /**
+     * @return 0.0, greedy sampling is the limit of temperature sampling as temperature approaches zero
+     */
+    @Override
+    public double getTemperature() {
+        return 0.0;
+    }
+
+    @Override
+    public int sample(float[] probabilities, int from, int stride, int classes, Random rng) {
+        int best = 0;
+        float max = probabilities[from];
+        for (int i = 1; i < classes; i++) {
+            float p = probabilities[from + i * stride];
+            if (p > max) {
+                max = p;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void sample(float[] probabilities, int from, int stride, int classes, Random rng, int[] samples) {
+        Arrays.fill(samples, sample(probabilities, from, stride, classes, rng));
+    }
+
+    @Override
+    public String toString() {
+        return "greedy";
+    }
+}
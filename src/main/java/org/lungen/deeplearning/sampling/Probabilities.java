@@ -0,0 +1,111 @@
+package org.lungen.deeplearning.sampling;
+
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Probabilities.
+ * Operations on probability distributions kept in primitive arrays, shared by sampling strategies.
+ *
+ */
+public final class Probabilities {
+
+    private Probabilities() {
+    }
+
+    /**
+     * Copies output of shape [samples, classes] to the array with a single bulk copy,
+     * in the order of elements in the output buffer. Output, which is not a dense block, is copied first.
+     *
+     * @return output array, strides of which give positions of elements in the copy
+     */
+    public static INDArray copy(INDArray output, float[] probabilities) {
+        long samples = output.size(0);
+        long classes = output.size(1);
+        boolean dense = output.stride(1) == 1 && (output.stride(0) == classes || samples == 1)
+                || output.stride(0) == 1 && (output.stride(1) == samples || classes == 1);
+        if (!dense) {
+            output = output.dup('c');
+        }
+        int length = (int) output.length();
+        // buffer of a view starts at the view offset
+        DataBuffer data = output.data();
+        if (data.dataType() == DataBuffer.Type.FLOAT) {
+            data.asNioFloat().get(probabilities, 0, length);
+        } else if (data.dataType() == DataBuffer.Type.DOUBLE) {
+            DoubleBuffer buffer = data.asNioDouble();
+            int position = buffer.position();
+            for (int i = 0; i < length; i++) {
+                probabilities[i] = (float) buffer.get(position + i);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                probabilities[i] = data.getFloat(i);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Weight of a class in the distribution scaled by temperature, i.e. probability raised to the power
+     * of 1/temperature. Integer powers, e.g. for temperature 0.5, are computed by multiplication.
+     */
+    static double scale(float probability, double exponent, int integerExponent) {
+        if (integerExponent == 1) {
+            return probability;
+        }
+        if (integerExponent > 1) {
+            double weight = probability;
+            for (int i = 1; i < integerExponent; i++) {
+                weight *= probability;
+            }
+            return weight;
+        }
+        return Math.pow(probability, exponent);
+    }
+
+    /**
+     * @return 1/temperature if it is a small integer, otherwise 0
+     */
+    static int integerExponent(double temperature) {
+        double exponent = 1.0 / temperature;
+        return exponent == Math.rint(exponent) && exponent <= 8 ? (int) exponent : 0;
+    }
+
+    /**
+     * Samples an index from cumulative weights, classes of zero weight are never chosen.
+     *
+     * @param cumulative    non-decreasing cumulative weights of the classes
+     * @param count         number of classes
+     */
+    static int sampleCumulative(double[] cumulative, int count, Random rng) {
+        double total = cumulative[count - 1];
+        if (!(total > 0.0) || Double.isInfinite(total)) {
+            throw new IllegalArgumentException("Distribution is invalid? sum=" + total);
+        }
+        // first class with cumulative weight above d
+        double d = rng.nextDouble() * total;
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] > d) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    static double[] ensureCapacity(double[] buffer, int length) {
+        return buffer != null && buffer.length >= length ? buffer : new double[length];
+    }
+
+    static int[] ensureCapacity(int[] buffer, int length) {
+        return buffer != null && buffer.length >= length ? buffer : new int[length];
+    }
+}
@@ -0,0 +1,38 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+/**
+ * SamplingStrategy.
+ * Chooses the next class, e.g. character, from a probability distribution over classes output by a network.
+ * Distribution is given as a range of a primitive array, probabilities of several samples are usually copied
+ * from the network output at once, see {@link Probabilities#copy}. Probabilities need not sum to 1.0.
+ * <p>
+ * Strategies keep buffers reused between calls, so they are not thread-safe.
+ *
+ */
+public interface SamplingStrategy {
+
+    /**
+     * @param probabilities array with probability distributions, not modified
+     * @param from          index of probability of the first class
+     * @param stride        distance between probabilities of consecutive classes
+     * @param classes       number of classes
+     * @return index of the class sampled
+     */
+    int sample(float[] probabilities, int from, int stride, int classes, Random rng);
+
+    /**
+     * @return temperature, which the distribution is scaled by before sampling
+     */
+    double getTemperature();
+
+    /**
+     * Samples a class for each element of the samples array from the same distribution.
+     */
+    default void sample(float[] probabilities, int from, int stride, int classes, Random rng, int[] samples) {
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = sample(probabilities, from, stride, classes, rng);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+/**
+ * TemperatureSampling.
+ * Samples from the whole distribution scaled by temperature: probabilities are raised to the power
+ * of 1/temperature, so that lower temperature makes probable classes more probable. Temperature 1.0
+ * samples from the distribution as is.
+ * <p>
+ * A single class is drawn by binary search in cumulative weights, many classes from the same
+ * distribution are drawn from an alias table.
+ *
+ */
+public class TemperatureSampling implements SamplingStrategy {
+
+    // minimum number of draws from the same distribution, for which the alias table is built
+    private static final int ALIAS_MIN_DRAWS = 8;
+
+    private final double temperature;
+    private final double exponent;
+    private final int integerExponent;
+
+    private double[] weights;
+    private AliasTable aliasTable;
+
+    /**
+     * @param temperature in range (0.0, 1.0]
+     */
+    public TemperatureSampling(double temperature) {
+        if (temperature <= 0.0 || temperature > 1.0) {
+            throw new IllegalArgumentException("Temperature must be in range (0.0, 1.0]");
+        }
+        this.temperature = temperature;
+        this.exponent = 1.0 / temperature;
+        this.integerExponent = Probabilities.integerExponent(temperature);
+    }
+
+    @Override
+    public double getTemperature() {
+        return temperature;
+    }
+
+    @Override
+    public int sample(float[] probabilities, int from, int stride, int classes, Random rng) {
+        cumulative(probabilities, from, stride, classes);
+        return Probabilities.sampleCumulative(weights, classes, rng);
+    }
+
+    @Override
+    public void sample(float[] probabilities, int from, int stride, int classes, Random rng, int[] samples) {
+        if (samples.length < ALIAS_MIN_DRAWS) {
+            cumulative(probabilities, from, stride, classes);
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = Probabilities.sampleCumulative(weights, classes, rng);
+            }
+            return;
+        }
+        weights = Probabilities.ensureCapacity(weights, classes);
+        for (int i = 0; i < classes; i++) {
+            weights[i] = Probabilities.scale(probabilities[from + i * stride], exponent, integerExponent);
+        }
+        if (aliasTable == null) {
+            aliasTable = new AliasTable();
+        }
+        aliasTable.build(weights, classes);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = aliasTable.sample(rng);
+        }
+    }
+
+    private void cumulative(float[] probabilities, int from, int stride, int classes) {
+        weights = Probabilities.ensureCapacity(weights, classes);
+        double total = 0.0;
+        for (int i = 0; i < classes; i++) {
+            total += Probabilities.scale(probabilities[from + i * stride], exponent, integerExponent);
+            weights[i] = total;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "temperature " + temperature;
+    }
+}
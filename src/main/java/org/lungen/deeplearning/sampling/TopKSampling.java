@@ -0,0 +1,108 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+/**
+ * TopKSampling.
+ * Samples from the k most probable classes scaled by temperature, see {@link TemperatureSampling}.
+ * The classes are selected by partial selection (quickselect) in O(classes) time on average, without
+ * sorting the distribution, and only the selected probabilities are scaled by temperature.
+ *
+ */
+public class TopKSampling implements SamplingStrategy {
+
+    private final int k;
+    private final double temperature;
+    private final double exponent;
+    private final int integerExponent;
+
+    private int[] indices;
+    private double[] weights;
+
+    /**
+     * @param k             number of the most probable classes sampled from, positive
+     * @param temperature   in range (0.0, 1.0]
+     */
+    public TopKSampling(int k, double temperature) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("Number of classes must be positive: " + k);
+        }
+        if (temperature <= 0.0 || temperature > 1.0) {
+            throw new IllegalArgumentException("Temperature must be in range (0.0, 1.0]");
+        }
+        this.k = k;
+        this.temperature = temperature;
+        this.exponent = 1.0 / temperature;
+        this.integerExponent = Probabilities.integerExponent(temperature);
+    }
+
+    @Override
+    public double getTemperature() {
+        return temperature;
+    }
+
+    @Override
+    public int sample(float[] probabilities, int from, int stride, int classes, Random rng) {
+        int count = Math.min(k, classes);
+        indices = Probabilities.ensureCapacity(indices, classes);
+        for (int i = 0; i < classes; i++) {
+            indices[i] = i;
+        }
+        if (count < classes) {
+            select(probabilities, from, stride, classes, count);
+        }
+        weights = Probabilities.ensureCapacity(weights, count);
+        double total = 0.0;
+        for (int i = 0; i < count; i++) {
+            total += Probabilities.scale(probabilities[from + indices[i] * stride], exponent, integerExponent);
+            weights[i] = total;
+        }
+        return indices[Probabilities.sampleCumulative(weights, count, rng)];
+    }
+
+    /**
+     * Moves indices of the count most probable classes to the beginning of indices, in no particular order.
+     */
+    private void select(float[] probabilities, int from, int stride, int classes, int count) {
+        int left = 0;
+        int right = classes - 1;
+        while (left < right) {
+            // median of three pivot, partitioned in descending order of probability
+            int middle = (left + right) >>> 1;
+            float pivot = median(probabilities[from + indices[left] * stride],
+                    probabilities[from + indices[middle] * stride],
+                    probabilities[from + indices[right] * stride]);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (probabilities[from + indices[i] * stride] > pivot) {
+                    i++;
+                }
+                while (probabilities[from + indices[j] * stride] < pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = indices[i];
+                    indices[i++] = indices[j];
+                    indices[j--] = swap;
+                }
+            }
+            if (count - 1 <= j) {
+                right = j;
+            } else if (count - 1 >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static float median(float a, float b, float c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    @Override
+    public String toString() {
+        return "top " + k + ", temperature " + temperature;
+    }
+}
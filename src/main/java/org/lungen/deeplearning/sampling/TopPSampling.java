@@ -0,0 +1,98 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+/**
+ * TopPSampling.
+ * Nucleus sampling: samples from the smallest set of the most probable classes, cumulative probability
+ * of which, scaled by temperature, reaches p. The classes are taken from a max-heap built in O(classes)
+ * time one by one, so that only the nucleus is ordered instead of sorting the whole distribution.
+ *
+ */
+public class TopPSampling implements SamplingStrategy {
+
+    private final double p;
+    private final double temperature;
+    private final double exponent;
+    private final int integerExponent;
+
+    private int[] heap;
+    private double[] weights;
+    private double[] cumulative;
+
+    /**
+     * @param p             cumulative probability of the nucleus, in range (0.0, 1.0]
+     * @param temperature   in range (0.0, 1.0]
+     */
+    public TopPSampling(double p, double temperature) {
+        if (p <= 0.0 || p > 1.0) {
+            throw new IllegalArgumentException("Cumulative probability must be in range (0.0, 1.0]");
+        }
+        if (temperature <= 0.0 || temperature > 1.0) {
+            throw new IllegalArgumentException("Temperature must be in range (0.0, 1.0]");
+        }
+        this.p = p;
+        this.temperature = temperature;
+        this.exponent = 1.0 / temperature;
+        this.integerExponent = Probabilities.integerExponent(temperature);
+    }
+
+    @Override
+    public double getTemperature() {
+        return temperature;
+    }
+
+    @Override
+    public int sample(float[] probabilities, int from, int stride, int classes, Random rng) {
+        weights = Probabilities.ensureCapacity(weights, classes);
+        cumulative = Probabilities.ensureCapacity(cumulative, classes);
+        heap = Probabilities.ensureCapacity(heap, classes);
+        double total = 0.0;
+        for (int i = 0; i < classes; i++) {
+            weights[i] = Probabilities.scale(probabilities[from + i * stride], exponent, integerExponent);
+            total += weights[i];
+            heap[i] = i;
+        }
+        for (int i = classes / 2 - 1; i >= 0; i--) {
+            siftDown(i, classes);
+        }
+        // classes of the nucleus are moved to the end of the heap array in descending order of weight
+        double threshold = p * total;
+        double mass = 0.0;
+        int size = classes;
+        int count = 0;
+        while (size > 0 && (count == 0 || mass < threshold)) {
+            int top = heap[0];
+            heap[0] = heap[--size];
+            heap[size] = top;
+            siftDown(0, size);
+            mass += weights[top];
+            cumulative[count++] = mass;
+        }
+        return heap[classes - 1 - Probabilities.sampleCumulative(cumulative, count, rng)];
+    }
+
+    private void siftDown(int i, int size) {
+        int index = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && weights[heap[child + 1]] > weights[heap[child]]) {
+                child++;
+            }
+            if (weights[heap[child]] <= weights[index]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = index;
+    }
+
+    @Override
+    public String toString() {
+        return "top p " + p + ", temperature " + temperature;
+    }
+}
@@ -0,0 +1,102 @@
+package org.lungen.deeplearning.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.deeplearning4j.api.storage.Persistable;
+import org.deeplearning4j.ui.stats.StatsListener;
+import org.deeplearning4j.ui.stats.api.StatsReport;
+import org.deeplearning4j.ui.storage.FileStatsStorage;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtilities;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+import org.lungen.deeplearning.listener.RotatingFileStatsStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * StatsChartRenderer.
+ * Renders score and throughput curves from stats files written by
+ * {@link org.lungen.deeplearning.listener.FileStatsListener} to PNG images, without UI server.
+ * Each training session (run) is a separate curve.
+ * <p>
+ * Usage: StatsChartRenderer statsDir modelName [outputDir]
+ *
+ */
+public class StatsChartRenderer {
+
+    private static final Logger log = LoggerFactory.getLogger("util.charts");
+
+    private static final int WIDTH = 1200;
+    private static final int HEIGHT = 600;
+
+    private final Map<String, XYSeries> scores = new LinkedHashMap<>();
+    private final Map<String, XYSeries> throughput = new LinkedHashMap<>();
+
+    /**
+     * Reads reports of all sessions and workers of the stats file.
+     */
+    public void read(File file) {
+        FileStatsStorage storage = new FileStatsStorage(file);
+        try {
+            for (String session : storage.listSessionIDs()) {
+                for (String worker : storage.listWorkerIDsForSessionAndType(session, StatsListener.TYPE_ID)) {
+                    for (Persistable update : storage.getAllUpdatesAfter(session, StatsListener.TYPE_ID, worker, 0)) {
+                        if (update instanceof StatsReport) {
+                            add(session, (StatsReport) update);
+                        }
+                    }
+                }
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void add(String session, StatsReport report) {
+        scores.computeIfAbsent(session, XYSeries::new).add(report.getIterationCount(), report.getScore());
+        throughput.computeIfAbsent(session, XYSeries::new).add(report.getIterationCount(), report.getExamplesPerSecond());
+    }
+
+    public void render(File outputDir, String name) throws IOException {
+        save(chart(name + " score", "Score", scores), new File(outputDir, name + "-score.png"));
+        save(chart(name + " throughput", "Examples/sec", throughput), new File(outputDir, name + "-throughput.png"));
+    }
+
+    private static JFreeChart chart(String title, String valueLabel, Map<String, XYSeries> series) {
+        XYSeriesCollection dataset = new XYSeriesCollection();
+        for (XYSeries s : series.values()) {
+            dataset.addSeries(s);
+        }
+        return ChartFactory.createXYLineChart(title, "Iteration", valueLabel, dataset,
+                PlotOrientation.VERTICAL, true, false, false);
+    }
+
+    private static void save(JFreeChart chart, File file) throws IOException {
+        ChartUtilities.saveChartAsPNG(file, chart, WIDTH, HEIGHT);
+        log.info("Chart saved: {}", file);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: StatsChartRenderer statsDir modelName [outputDir]");
+            return;
+        }
+        System.setProperty("java.awt.headless", "true");
+        File statsDir = new File(args[0]);
+        String name = args[1];
+        File outputDir = args.length > 2 ? new File(args[2]) : statsDir;
+
+        StatsChartRenderer renderer = new StatsChartRenderer();
+        for (File file : RotatingFileStatsStorage.listFiles(statsDir, name).values()) {
+            log.info("Reading stats: {}", file);
+            renderer.read(file);
+        }
+        renderer.render(outputDir, name);
+    }
+}
@@ -2,11 +2,14 @@ package org.lungen.deeplearning.iterator;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.lungen.deeplearning.model.TrainingState;
+import org.nd4j.linalg.dataset.DataSet;
 
 import java.io.File;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -47,4 +50,55 @@ public class CharacterIteratorTest {
         }
     }
 
+    @Test
+    public void testRestoreState() throws Exception {
+        File f = new File(CharacterIterator.class.getResource("/tolstoy_selected.txt").toURI());
+        CharacterIterator iter = new CharacterIterator(f.getAbsolutePath(),
+                Charset.forName("windows-1251"), 16, 500,
+                CharactersSets.getRussianCharacterSet(), new Random(1));
+        iter.next();
+        iter.next();
+
+        // state as written with a checkpoint
+        TrainingState state = new TrainingState();
+        state.setIteratorOffsets(iter.getExampleStartOffsets());
+        state.setIteratorRng(iter.getRng());
+        TrainingState restored = TrainingState.fromBytes(state.toBytes());
+
+        CharacterIterator resumed = new CharacterIterator(f.getAbsolutePath(),
+                Charset.forName("windows-1251"), 16, 500,
+                CharactersSets.getRussianCharacterSet(), new Random(1));
+        resumed.restoreState(restored.getIteratorOffsets(), restored.getIteratorRng());
+
+        DataSet expected = iter.next();
+        DataSet actual = resumed.next();
+        Assert.assertEquals(expected.getFeatures(), actual.getFeatures());
+
+        // next epoch is shuffled the same way
+        iter.reset();
+        resumed.reset();
+        Assert.assertArrayEquals(iter.getExampleStartOffsets(), resumed.getExampleStartOffsets());
+    }
+
+    @Test
+    public void testHoldOut() throws Exception {
+        int exampleLength = 500;
+        File f = new File(CharacterIterator.class.getResource("/tolstoy_selected.txt").toURI());
+        CharacterIterator iter = new CharacterIterator(f.getAbsolutePath(),
+                Charset.forName("windows-1251"), 16, exampleLength,
+                CharactersSets.getRussianCharacterSet(), new Random(1));
+        int numTrainExamples = iter.getExampleStartOffsets().length;
+
+        List<DataSet> holdOut = iter.holdOut(20);
+        Assert.assertEquals(20, holdOut.stream().mapToInt(DataSet::numExamples).sum());
+        Assert.assertEquals(numTrainExamples - 20, iter.getExampleStartOffsets().length);
+
+        // held out examples are excluded from the next epochs as well
+        int firstHoldOutOffset = (numTrainExamples - 20) * exampleLength;
+        iter.reset();
+        Assert.assertEquals(numTrainExamples - 20, iter.getExampleStartOffsets().length);
+        for (int offset : iter.getExampleStartOffsets()) {
+            Assert.assertTrue(offset < firstHoldOutOffset);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package org.lungen.deeplearning.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+/**
+ * CheckpointManagerTest
+ *
+ */
+public class CheckpointManagerTest {
+
+    private File directory;
+    private MultiLayerNetwork net;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDirectory("checkpoints").toFile();
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(7)
+                .list()
+                .layer(0, new LSTM.Builder().nIn(3).nOut(4).activation(Activation.TANH).build())
+                .layer(1, new RnnOutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .activation(Activation.SOFTMAX).nIn(4).nOut(3).build())
+                .build();
+        net = new MultiLayerNetwork(conf);
+        net.init();
+    }
+
+    @Test
+    public void testNewRunDoesNotReuseCheckpointsOfPreviousRun() {
+        CheckpointManager first = new CheckpointManager(directory, 500, 2, 1, false);
+        save(first, 500, 2.0);
+        save(first, 1000, 1.0);
+        first.close();
+
+        CheckpointManager second = new CheckpointManager(directory, 500, 2, 1, false);
+        Assert.assertNotEquals(first.getDirectory(), second.getDirectory());
+        save(second, 500, 3.0);
+        second.close();
+
+        // checkpoint of the new run is complete, checkpoints of the previous run are intact
+        assertCheckpoint(second.getDirectory(), 500, true);
+        assertCheckpoint(first.getDirectory(), 500, true);
+        assertCheckpoint(first.getDirectory(), 1000, true);
+
+        // resumed run is the latest one, not the one with the highest checkpoint number
+        CheckpointManager resumed = new CheckpointManager(directory, 500, 2, 1, true);
+        Assert.assertEquals(second.getDirectory(), resumed.getDirectory());
+        Assert.assertEquals(500, resumed.latestState().getMiniBatchNumber());
+        resumed.close();
+    }
+
+    @Test
+    public void testRewrittenCheckpointIsKept() {
+        CheckpointManager manager = new CheckpointManager(directory, 500, 1, 0, false);
+        save(manager, 500, 1.0);
+        save(manager, 500, 1.0);
+        manager.close();
+        assertCheckpoint(manager.getDirectory(), 500, true);
+
+        // resumed run tracks its checkpoints, the same checkpoint written again is kept
+        CheckpointManager resumed = new CheckpointManager(directory, 500, 1, 0, true);
+        Assert.assertEquals(manager.getDirectory(), resumed.getDirectory());
+        save(resumed, 500, 1.0);
+        resumed.close();
+        assertCheckpoint(resumed.getDirectory(), 500, true);
+    }
+
+    @Test
+    public void testRetentionKeepsBestByScoreGiven() {
+        CheckpointManager manager = new CheckpointManager(directory, 500, 1, 1, false);
+        save(manager, 500, 3.0);
+        save(manager, 1000, 1.0);
+        save(manager, 1500, 2.0);
+        save(manager, 2000, 4.0);
+        manager.close();
+
+        assertCheckpoint(manager.getDirectory(), 500, false);
+        assertCheckpoint(manager.getDirectory(), 1000, true);
+        assertCheckpoint(manager.getDirectory(), 1500, false);
+        assertCheckpoint(manager.getDirectory(), 2000, true);
+    }
+
+    private void save(CheckpointManager manager, int miniBatchNumber, double score) {
+        TrainingState state = new TrainingState();
+        state.setMiniBatchNumber(miniBatchNumber);
+        state.setSamplingRng(new Random(7));
+        state.setIteratorRng(new Random(7));
+        state.setIteratorOffsets(new int[0]);
+        manager.save(net, net.params(), state, score);
+    }
+
+    private static void assertCheckpoint(File runDirectory, int number, boolean exists) {
+        Assert.assertEquals(exists, new File(runDirectory, "checkpoint-" + number + ".zip").isFile());
+        Assert.assertEquals(exists, new File(runDirectory, "checkpoint-" + number + ".state").isFile());
+        Assert.assertEquals(exists, new File(runDirectory, "checkpoint-" + number + "-best.bin").isFile());
+    }
+}
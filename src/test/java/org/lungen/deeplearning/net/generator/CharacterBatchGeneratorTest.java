@@ -0,0 +1,74 @@
+package org.lungen.deeplearning.net.generator;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.lungen.deeplearning.iterator.CharacterIterator;
+import org.lungen.deeplearning.sampling.GreedySampling;
+
+/**
+ * CharacterBatchGeneratorTest
+ *
+ */
+public class CharacterBatchGeneratorTest {
+
+    private static final String[] PROMPTS = {
+            "Copyright",
+            "All rights reserved. ",
+            "L",
+            "Licensed under the terms",
+            "the authors"};
+
+    private MultiLayerNetwork net;
+    private CharacterIterator iter;
+
+    @Before
+    public void init() throws IOException {
+        iter = PrefixStateCacheTest.iterator();
+        net = PrefixStateCacheTest.net(iter);
+    }
+
+    @Test
+    public void testGreedyBatchEqualsSamplesOfEachPrompt() {
+        String[] generated = CharacterBatchGenerator.generate(net, iter, PROMPTS, 30,
+                new GreedySampling(), new Random(7));
+        Assert.assertEquals(PROMPTS.length, generated.length);
+        for (int i = 0; i < PROMPTS.length; i++) {
+            Assert.assertEquals(PROMPTS[i].length() + 30, generated[i].length());
+            Assert.assertEquals(sample(PROMPTS[i], 30), generated[i]);
+        }
+    }
+
+    @Test
+    public void testRowsFinishedEarlyAreRemovedFromBatch() {
+        // rows finish at different steps, so that the batch is compacted several times
+        int[] maxCharacters = {5, 40, 0, 12, 25};
+        String[] generated = CharacterBatchGenerator.generate(net, iter, PROMPTS, maxCharacters,
+                null, new GreedySampling(), new Random(7));
+        for (int i = 0; i < PROMPTS.length; i++) {
+            Assert.assertEquals(sample(PROMPTS[i], maxCharacters[i]), generated[i]);
+        }
+    }
+
+    @Test
+    public void testStopCondition() {
+        String[] generated = CharacterBatchGenerator.generate(net, iter, PROMPTS, new int[] {30, 30, 30, 30, 30},
+                (prompt, text) -> prompt % 2 == 0 && text.length() == 3, new GreedySampling(), new Random(7));
+        for (int i = 0; i < PROMPTS.length; i++) {
+            int characters = i % 2 == 0 ? 3 : 30;
+            Assert.assertEquals(sample(PROMPTS[i], characters), generated[i]);
+        }
+    }
+
+    private String sample(String prompt, int characters) {
+        if (characters == 0) {
+            return prompt;
+        }
+        return CharacterSequenceGeneratorSampler.sample(prompt, net, iter, new Random(7), characters, 1,
+                new GreedySampling(), null)[0];
+    }
+}
@@ -0,0 +1,188 @@
+package org.lungen.deeplearning.net.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.lungen.deeplearning.iterator.CharacterIterator;
+import org.lungen.deeplearning.iterator.CharactersSets;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+/**
+ * PrefixStateCacheTest
+ *
+ */
+public class PrefixStateCacheTest {
+
+    private static final double EPS = 1e-5;
+
+    private MultiLayerNetwork net;
+    private CharacterIterator iter;
+
+    @Before
+    public void init() throws IOException {
+        iter = iterator();
+        net = net(iter);
+    }
+
+    @Test
+    public void testExactHitIsNotFed() {
+        PrefixStateCache cache = new PrefixStateCache(1 << 20);
+        String text = "Copyright (c) the authors.";
+        assertPrimed(cache, text, 3);
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(text.length(), cache.getCharactersFed());
+
+        assertPrimed(cache, text, 3);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(text.length(), cache.getCharactersFed());
+        Assert.assertEquals(text.length(), cache.getCharactersSaved());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testPartialHitFeedsRest() {
+        PrefixStateCache cache = new PrefixStateCache(1 << 20);
+        String header = "Copyright (c) the authors.";
+        String text = header + " All rights reserved.";
+        assertPrimed(cache, header, 1);
+        assertPrimed(cache, text, 2);
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(header.length(), cache.getCharactersSaved());
+        Assert.assertEquals(text.length(), cache.getCharactersFed());
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testBranchingPointIsCached() {
+        PrefixStateCache cache = new PrefixStateCache(1 << 20);
+        String shared = "Copyright (c) the authors. ";
+        assertPrimed(cache, shared + "one", 2);
+        // the text branches off at the end of the shared part, where no state was cached
+        assertPrimed(cache, shared + "two", 2);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(0, cache.getCharactersSaved());
+
+        assertPrimed(cache, shared + "four", 2);
+        Assert.assertEquals(shared.length(), cache.getCharactersSaved());
+        Assert.assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTextIsEvicted() {
+        long entryBytes = entryBytes("first text");
+        // two texts of the same length fit
+        PrefixStateCache cache = new PrefixStateCache(2 * entryBytes + entryBytes / 2);
+        assertPrimed(cache, "first text", 1);
+        assertPrimed(cache, "other text", 1);
+        // marks the first text as recently used
+        assertPrimed(cache, "first text", 1);
+        assertPrimed(cache, "third text", 1);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(cache.getBytes() <= 2 * entryBytes + entryBytes / 2);
+        long hits = cache.getHits();
+        assertPrimed(cache, "first text", 1);
+        Assert.assertEquals(hits + 1, cache.getHits());
+        assertPrimed(cache, "other text", 1);
+        Assert.assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    public void testTrieIsPrunedAfterEviction() {
+        long entryBytes = entryBytes("evicted");
+        PrefixStateCache cache = new PrefixStateCache(entryBytes + entryBytes / 2);
+        assertPrimed(cache, "evicted", 1);
+        assertPrimed(cache, "another", 1);
+        Assert.assertEquals(1, cache.size());
+
+        // no branching point is found at the end of the evicted text, only the text itself is cached
+        assertPrimed(cache, "evicted text", 1);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(0, cache.getCharactersSaved());
+        assertPrimed(cache, "evicted text", 1);
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testEntryLargerThanCacheIsNotCached() {
+        PrefixStateCache cache = new PrefixStateCache(entryBytes("text") - 1);
+        assertPrimed(cache, "text", 1);
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getBytes());
+    }
+
+    private long entryBytes(String text) {
+        PrefixStateCache cache = new PrefixStateCache(1 << 20);
+        cache.prime(net, iter, text, 1);
+        return cache.getBytes();
+    }
+
+    /**
+     * Primes the text through the cache and checks output and RNN state against the text fed from cleared state.
+     */
+    private void assertPrimed(PrefixStateCache cache, String text, int numSamples) {
+        net.rnnClearPreviousState();
+        INDArray expectedOutput = CharacterSequenceGeneratorSampler.feed(net, iter, text, 0, numSamples).dup();
+        List<Map<String, INDArray>> expectedStates = states();
+
+        // state left by the previous call must be replaced
+        CharacterSequenceGeneratorSampler.feed(net, iter, "noise", 0, numSamples);
+        INDArray output = cache.prime(net, iter, text, numSamples);
+        Assert.assertTrue(text, expectedOutput.equalsWithEps(output, EPS));
+        List<Map<String, INDArray>> states = states();
+        for (int i = 0; i < states.size(); i++) {
+            for (Map.Entry<String, INDArray> state : expectedStates.get(i).entrySet()) {
+                Assert.assertTrue(text, state.getValue().equalsWithEps(states.get(i).get(state.getKey()), EPS));
+            }
+        }
+    }
+
+    private List<Map<String, INDArray>> states() {
+        List<Map<String, INDArray>> states = new ArrayList<>();
+        for (RecurrentLayer layer : PrefixStateCache.recurrentLayers(net)) {
+            Map<String, INDArray> state = layer.rnnGetPreviousState();
+            state.replaceAll((key, array) -> array.dup());
+            states.add(state);
+        }
+        return states;
+    }
+
+    static CharacterIterator iterator() throws IOException {
+        File file = Files.createTempFile("generator", ".txt").toFile();
+        file.deleteOnExit();
+        String line = "Copyright (c) the authors. All rights reserved. Licensed under the terms of the license.\n";
+        Files.write(file.toPath(), String.join("", Collections.nCopies(40, line)).getBytes(StandardCharsets.UTF_8));
+        return new CharacterIterator(file, 8, 50, CharactersSets.getEnglishCharacterSet());
+    }
+
+    static MultiLayerNetwork net(CharacterIterator iter) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(7)
+                .list()
+                .layer(0, new LSTM.Builder().nIn(iter.inputColumns()).nOut(16).activation(Activation.TANH).build())
+                .layer(1, new RnnOutputLayer.Builder(LossFunctions.LossFunction.MCXENT)
+                        .activation(Activation.SOFTMAX).nIn(16).nOut(iter.totalOutcomes()).build())
+                .build();
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+}
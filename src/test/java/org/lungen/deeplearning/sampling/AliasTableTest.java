@@ -0,0 +1,65 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * AliasTableTest
+ *
+ */
+public class AliasTableTest {
+
+    private static final int DRAWS = 50000;
+
+    @Test
+    public void testEmpiricalFrequencies() {
+        double[] weights = {1.0, 0.0, 3.0, 6.0, 0.0, 10.0};
+        int[] counts = draw(weights, weights.length);
+        for (int i = 0; i < weights.length; i++) {
+            Assert.assertEquals(weights[i] / 20.0, counts[i] / (double) DRAWS, 0.01);
+        }
+    }
+
+    @Test
+    public void testZeroWeightClassesAreNeverDrawn() {
+        // weights that do not add up exactly, so that rounding errors are left in the table
+        double[] weights = new double[64];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i % 3 == 0 ? 0.0 : 0.1 * (i % 7 + 1) / 3.0;
+        }
+        int[] counts = draw(weights, weights.length);
+        for (int i = 0; i < weights.length; i += 3) {
+            Assert.assertEquals("class " + i, 0, counts[i]);
+        }
+    }
+
+    @Test
+    public void testRebuiltTableReusedForFewerClasses() {
+        AliasTable table = new AliasTable();
+        table.build(new double[] {1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0}, 8);
+        // only the first classes of the weights array belong to the distribution
+        table.build(new double[] {0.0, 1.0, 0.0, 5.0, 5.0}, 3);
+        Random rng = new Random(7);
+        for (int i = 0; i < DRAWS; i++) {
+            Assert.assertEquals(1, table.sample(rng));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDistribution() {
+        new AliasTable().build(new double[] {0.0, 0.0}, 2);
+    }
+
+    private static int[] draw(double[] weights, int classes) {
+        AliasTable table = new AliasTable();
+        table.build(weights, classes);
+        Random rng = new Random(7);
+        int[] counts = new int[classes];
+        for (int i = 0; i < DRAWS; i++) {
+            counts[table.sample(rng)]++;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,87 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TopKSamplingTest
+ *
+ */
+public class TopKSamplingTest {
+
+    private static final int DRAWS = 20000;
+
+    @Test
+    public void testTiesSelectExactlyKClasses() {
+        float[] probabilities = {0.1f, 0.3f, 0.3f, 0.3f, 0.0f};
+        int[] counts = draw(new TopKSampling(2, 1.0), probabilities, 0, 1, 5);
+
+        // two of the tied classes are selected, the same ones in each call
+        Assert.assertEquals(0, counts[0]);
+        Assert.assertEquals(0, counts[4]);
+        int drawn = 0;
+        for (int i = 1; i <= 3; i++) {
+            if (counts[i] > 0) {
+                drawn++;
+                Assert.assertEquals(0.5, counts[i] / (double) DRAWS, 0.02);
+            }
+        }
+        Assert.assertEquals(2, drawn);
+    }
+
+    @Test
+    public void testAllEqualProbabilities() {
+        float[] probabilities = {0.25f, 0.25f, 0.25f, 0.25f};
+        for (int k = 1; k <= 4; k++) {
+            int[] counts = draw(new TopKSampling(k, 1.0), probabilities, 0, 1, 4);
+            int drawn = 0;
+            for (int count : counts) {
+                if (count > 0) {
+                    drawn++;
+                }
+            }
+            Assert.assertEquals(k, drawn);
+        }
+    }
+
+    @Test
+    public void testKNotLessThanClassesSamplesWholeDistribution() {
+        float[] probabilities = {0.1f, 0.2f, 0.0f, 0.7f};
+        for (int k : new int[] {4, 10}) {
+            int[] counts = draw(new TopKSampling(k, 1.0), probabilities, 0, 1, 4);
+            Assert.assertEquals(0, counts[2]);
+            for (int i = 0; i < probabilities.length; i++) {
+                Assert.assertEquals(probabilities[i], counts[i] / (double) DRAWS, 0.02);
+            }
+        }
+    }
+
+    @Test
+    public void testSelectsMostProbableOfStridedDistribution() {
+        // distribution of the second sample, classes are columns of [classes, samples] buffer
+        float[] probabilities = {
+                0.9f, 0.1f,
+                0.05f, 0.6f,
+                0.05f, 0.3f};
+        int[] counts = draw(new TopKSampling(2, 1.0), probabilities, 1, 2, 3);
+        Assert.assertEquals(0, counts[0]);
+        Assert.assertEquals(0.6 / 0.9, counts[1] / (double) DRAWS, 0.02);
+        Assert.assertEquals(0.3 / 0.9, counts[2] / (double) DRAWS, 0.02);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidK() {
+        new TopKSampling(0, 1.0);
+    }
+
+    static int[] draw(SamplingStrategy strategy, float[] probabilities, int from, int stride, int classes) {
+        Random rng = new Random(7);
+        int[] counts = new int[classes];
+        for (int i = 0; i < DRAWS; i++) {
+            counts[strategy.sample(probabilities, from, stride, classes, rng)]++;
+        }
+        return counts;
+    }
+}
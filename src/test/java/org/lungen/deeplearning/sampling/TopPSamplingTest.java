@@ -0,0 +1,61 @@
+package org.lungen.deeplearning.sampling;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TopPSamplingTest
+ *
+ */
+public class TopPSamplingTest {
+
+    private static final int DRAWS = 20000;
+
+    @Test
+    public void testWholeDistributionWhenPIsOne() {
+        float[] probabilities = {0.1f, 0.0f, 0.2f, 0.3f, 0.4f};
+        int[] counts = TopKSamplingTest.draw(new TopPSampling(1.0, 1.0), probabilities, 0, 1, 5);
+        Assert.assertEquals(0, counts[1]);
+        for (int i = 0; i < probabilities.length; i++) {
+            Assert.assertEquals(probabilities[i], counts[i] / (double) DRAWS, 0.02);
+        }
+    }
+
+    @Test
+    public void testSingleDominantClass() {
+        float[] probabilities = {0.02f, 0.95f, 0.01f, 0.02f};
+        for (double p : new double[] {0.01, 0.5, 0.95}) {
+            int[] counts = TopKSamplingTest.draw(new TopPSampling(p, 1.0), probabilities, 0, 1, 4);
+            Assert.assertEquals(DRAWS, counts[1]);
+        }
+        // nucleus exceeding the dominant class includes the next most probable ones
+        int[] counts = TopKSamplingTest.draw(new TopPSampling(0.96, 1.0), probabilities, 0, 1, 4);
+        Assert.assertEquals(0, counts[2]);
+        Assert.assertTrue(counts[0] + counts[3] > 0);
+    }
+
+    @Test
+    public void testNucleusOfStridedDistribution() {
+        // distribution of the second sample, classes are columns of [classes, samples] buffer
+        float[] probabilities = {
+                0.7f, 0.5f,
+                0.2f, 0.1f,
+                0.1f, 0.4f};
+        int[] counts = TopKSamplingTest.draw(new TopPSampling(0.8, 1.0), probabilities, 1, 2, 3);
+        Assert.assertEquals(0, counts[1]);
+        Assert.assertEquals(0.5 / 0.9, counts[0] / (double) DRAWS, 0.02);
+        Assert.assertEquals(0.4 / 0.9, counts[2] / (double) DRAWS, 0.02);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidP() {
+        new TopPSampling(0.0, 1.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDistribution() {
+        new TopPSampling(1.0, 1.0).sample(new float[] {0.0f, 0.0f}, 0, 1, 2, new Random(7));
+    }
+}